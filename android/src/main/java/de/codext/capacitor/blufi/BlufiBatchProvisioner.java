@@ -0,0 +1,551 @@
+package de.codext.capacitor.blufi;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import com.getcapacitor.JSObject;
+
+import org.json.JSONArray;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import de.codext.capacitor.blufi.params.BlufiConfigureParams;
+import de.codext.capacitor.blufi.params.BlufiParameter;
+import de.codext.capacitor.blufi.response.BlufiStatusResponse;
+
+/**
+ * Provisions a batch of devices with one set of wifi credentials: connects each device, negotiates
+ * security, configures the station and polls the device status until it joined the network.
+ * <p>
+ * At most {@link #getParallelism()} devices are provisioned at once. A device failing any step is
+ * retried from the connection, up to the retry count. If other connections hold every session slot and
+ * none of the batch runs, the queued devices fail once none was free for the attempt timeout. All state
+ * is kept on the batch thread, the clients of the batch deliver their results there too.
+ * <p>
+ * With {@link #setCandidates(BlufiCandidatePool, int, long)} the batch also takes the devices a scan
+ * finds while it runs, the best candidate as soon as a slot is free.
+ */
+class BlufiBatchProvisioner {
+    static final String STEP_QUEUED = "queued";
+    static final String STEP_CONNECTING = "connecting";
+    static final String STEP_NEGOTIATING = "negotiating";
+    static final String STEP_CONFIGURING = "configuring";
+    static final String STEP_WAITING_WIFI = "waiting_wifi";
+    static final String STEP_PROVISIONED = "provisioned";
+    static final String STEP_RETRYING = "retrying";
+    static final String STEP_FAILED = "failed";
+
+    static final int PARALLELISM_DEFAULT = 2;
+    static final int RETRIES_DEFAULT = 1;
+    static final long TIMEOUT_DEFAULT = 30000L;
+
+    private static final long STATUS_POLL_INTERVAL = 1000L;
+    private static final long RETRY_DELAY = 1000L;
+    // Waiting for a session slot another connection holds
+    private static final long SLOT_RETRY_DELAY = 500L;
+    // Checking the candidates of the scan while a slot is free
+    private static final long CANDIDATE_POLL_INTERVAL = 250L;
+
+    interface Host {
+        /**
+         * Create the session of a device of the batch, its client runs the callbacks on the executor.
+         *
+         * @return null if no session slot is free
+         */
+        BlufiSession openSession(BluetoothDevice device, Executor callbackExecutor);
+
+        void closeSession(BlufiSession session);
+
+        void onProgress(JSObject progress);
+
+        void onFinished(JSObject summary);
+    }
+
+    private final long mBatchId;
+    private final String mSsid;
+    private final String mPassword;
+    private final int mParallelism;
+    private final int mRetries;
+    private final long mTimeout;
+    private final Host mHost;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Executor mExecutor;
+    private final BlufiLog mLog = new BlufiLog(getClass());
+
+    private final List<Task> mTasks = new ArrayList<>();
+    private final LinkedList<Task> mQueue = new LinkedList<>();
+    private final Runnable mPumpTask = this::pump;
+    private int mRunning;
+    private int mRetrying;
+    private long mSlotWaitSince;
+
+    private BlufiCandidatePool<BluetoothDevice> mCandidates;
+    private int mMaxDevices;
+    private long mIdleTimeout;
+    private long mIdleSince;
+    private long mStartTime;
+    private long mEndTime;
+    private volatile boolean mFinished;
+
+    /**
+     * @param parallelism devices provisioned at once
+     * @param retries     attempts after the first one failed
+     * @param timeout     in milliseconds, of each attempt
+     */
+    BlufiBatchProvisioner(long batchId, List<BluetoothDevice> devices, String ssid, String password,
+                          int parallelism, int retries, long timeout, Host host) {
+        mBatchId = batchId;
+        mSsid = ssid;
+        mPassword = password;
+        mParallelism = Math.max(1, parallelism);
+        mRetries = Math.max(0, retries);
+        mTimeout = timeout;
+        mHost = host;
+        for (BluetoothDevice device : devices) {
+            mTasks.add(new Task(device));
+        }
+
+        mThread = new HandlerThread("BlufiBatch");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mExecutor = mHandler::post;
+    }
+
+    /**
+     * Provision the candidates of a scan running along with the batch too, call before {@link #start()}.
+     * The batch finishes once nothing runs and no new candidate was found for the idle timeout.
+     *
+     * @param maxDevices  devices provisioned at most, including the given ones, no limit if not positive
+     * @param idleTimeout in milliseconds
+     */
+    void setCandidates(BlufiCandidatePool<BluetoothDevice> candidates, int maxDevices, long idleTimeout) {
+        mCandidates = candidates;
+        mMaxDevices = maxDevices;
+        mIdleTimeout = idleTimeout;
+        for (Task task : mTasks) {
+            candidates.exclude(task.mDeviceId);
+        }
+    }
+
+    long getBatchId() {
+        return mBatchId;
+    }
+
+    int getParallelism() {
+        return mParallelism;
+    }
+
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    void start() {
+        mHandler.post(() -> {
+            mStartTime = SystemClock.elapsedRealtime();
+            for (Task task : mTasks) {
+                mQueue.add(task);
+                onProgress(task);
+            }
+            pump();
+        });
+    }
+
+    /**
+     * Stop the batch, the devices not provisioned yet fail
+     */
+    void cancel() {
+        mHandler.post(() -> {
+            if (mFinished) {
+                return;
+            }
+            mHandler.removeCallbacksAndMessages(null);
+            for (Task task : mTasks) {
+                if (!task.isDone()) {
+                    endAttempt(task);
+                    task.mError = "Cancelled";
+                    setStep(task, STEP_FAILED);
+                    onProgress(task);
+                }
+            }
+            mQueue.clear();
+            mRunning = 0;
+            mRetrying = 0;
+            finish();
+        });
+    }
+
+    private void pump() {
+        if (mFinished) {
+            return;
+        }
+        boolean waitCandidates = false;
+        while (mRunning < mParallelism) {
+            if (mQueue.isEmpty() && !takeCandidate()) {
+                waitCandidates = mCandidates != null;
+                break;
+            }
+            if (!startAttempt(mQueue.peek())) {
+                if (waitSlotTimedOut()) {
+                    failQueued("No session slot free");
+                    continue;
+                }
+                mHandler.removeCallbacks(mPumpTask);
+                mHandler.postDelayed(mPumpTask, SLOT_RETRY_DELAY);
+                return;
+            }
+            mSlotWaitSince = 0;
+            mQueue.poll();
+            mRunning++;
+            mIdleSince = 0;
+        }
+        if (mRunning > 0 || mRetrying > 0 || !mQueue.isEmpty()) {
+            if (waitCandidates) {
+                mHandler.removeCallbacks(mPumpTask);
+                mHandler.postDelayed(mPumpTask, CANDIDATE_POLL_INTERVAL);
+            }
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (mIdleSince == 0) {
+            mIdleSince = now;
+        }
+        if (!waitCandidates || isFull()
+                || now - Math.max(mIdleSince, mCandidates.getLastNewTime()) >= mIdleTimeout) {
+            finish();
+        } else {
+            mHandler.removeCallbacks(mPumpTask);
+            mHandler.postDelayed(mPumpTask, CANDIDATE_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * @return true if no session slot was free for the attempt timeout, while none of the batch runs.
+     * An attempt of the batch frees its slot when it ends.
+     */
+    private boolean waitSlotTimedOut() {
+        long now = SystemClock.elapsedRealtime();
+        if (mRunning > 0 || mSlotWaitSince == 0) {
+            mSlotWaitSince = now;
+            return false;
+        }
+        return now - mSlotWaitSince >= (mTimeout > 0 ? mTimeout : TIMEOUT_DEFAULT);
+    }
+
+    private void failQueued(String error) {
+        mLog.w("Batch " + mBatchId + ": " + error + ", failing " + mQueue.size() + " devices");
+        for (Task task : mQueue) {
+            task.mError = error;
+            endAttempt(task);
+            setStep(task, STEP_FAILED);
+            onProgress(task);
+        }
+        mQueue.clear();
+        mSlotWaitSince = 0;
+    }
+
+    private boolean isFull() {
+        return mMaxDevices > 0 && mTasks.size() >= mMaxDevices;
+    }
+
+    /**
+     * Queue the best candidate of the scan
+     *
+     * @return false if there is none
+     */
+    private boolean takeCandidate() {
+        if (mCandidates == null || isFull()) {
+            return false;
+        }
+        BluetoothDevice device = mCandidates.poll(SystemClock.elapsedRealtime());
+        if (device == null) {
+            return false;
+        }
+        Task task = new Task(device);
+        mTasks.add(task);
+        mQueue.add(task);
+        onProgress(task);
+        return true;
+    }
+
+    private void finish() {
+        mFinished = true;
+        mEndTime = SystemClock.elapsedRealtime();
+        mLog.d("Batch " + mBatchId + " finished in " + (mEndTime - mStartTime) + "ms");
+        mHost.onFinished(toSummary());
+        mThread.quitSafely();
+    }
+
+    private boolean startAttempt(final Task task) {
+        final BlufiSession session = mHost.openSession(task.mDevice, mExecutor);
+        if (session == null) {
+            return false;
+        }
+        final int attempt = ++task.mAttempts;
+        task.mSession = session;
+        task.mStepDurations.clear();
+        if (task.mStartTime == 0) {
+            task.mStartTime = SystemClock.elapsedRealtime();
+        }
+        task.mTimeoutTask = () -> {
+            if (task.isAttempt(attempt)) {
+                failAttempt(task, "Timeout while " + task.mStep);
+            }
+        };
+        if (mTimeout > 0) {
+            mHandler.postDelayed(task.mTimeoutTask, mTimeout);
+        }
+
+        setStep(task, STEP_CONNECTING);
+        onProgress(task);
+        // Negotiate once the MTU exchange settled, the setup calls back on a GATT thread
+        session.getSetup().setListener(() -> mHandler.post(() -> {
+            if (task.isAttempt(attempt)) {
+                negotiate(task);
+            }
+        }));
+        session.getSetup().start();
+        session.getClient().connect(new StepListener<BluetoothGatt>(task) {
+            @Override
+            void onSuccess(BluetoothGatt gatt) {
+                // The callback checks the service and requests the MTU, as for the other connections
+                session.getCallback().onGattPrepared(session.getClient(), BlufiCallback.STATUS_SUCCESS, gatt);
+            }
+        });
+        return true;
+    }
+
+    private void negotiate(final Task task) {
+        final BlufiSession session = task.mSession;
+        if (session.isClosed()) {
+            failAttempt(task, "Disconnected while " + task.mStep);
+            return;
+        }
+        setStep(task, STEP_NEGOTIATING);
+        onProgress(task);
+        session.getClient().negotiateSecurity(new StepListener<Void>(task) {
+            @Override
+            void onSuccess(Void result) {
+                session.getCallback().onNegotiateSecurityResult(session.getClient(), BlufiCallback.STATUS_SUCCESS);
+                configure(task);
+            }
+        });
+    }
+
+    private void configure(final Task task) {
+        final BlufiSession session = task.mSession;
+        setStep(task, STEP_CONFIGURING);
+        onProgress(task);
+        BlufiConfigureParams params = new BlufiConfigureParams();
+        params.setOpMode(BlufiParameter.OP_MODE_STA);
+        params.setStaSSIDBytes(mSsid.getBytes());
+        params.setStaPassword(mPassword);
+        session.getClient().configure(params, new StepListener<Void>(task) {
+            @Override
+            void onSuccess(Void result) {
+                session.getCallback().onPostConfigureParams(session.getClient(), BlufiCallback.STATUS_SUCCESS);
+                setStep(task, STEP_WAITING_WIFI);
+                onProgress(task);
+                requestStatus(task);
+            }
+        });
+    }
+
+    private void requestStatus(final Task task) {
+        final int attempt = task.mAttempts;
+        if (task.mSession.isClosed()) {
+            failAttempt(task, "Disconnected while " + task.mStep);
+            return;
+        }
+        task.mSession.getClient().requestDeviceStatus(new StepListener<BlufiStatusResponse>(task) {
+            @Override
+            void onSuccess(BlufiStatusResponse response) {
+                if (response.isStaConnectWifi()) {
+                    succeed(task);
+                    return;
+                }
+                mHandler.postDelayed(() -> {
+                    if (task.isAttempt(attempt)) {
+                        requestStatus(task);
+                    }
+                }, STATUS_POLL_INTERVAL);
+            }
+        });
+    }
+
+    private void succeed(Task task) {
+        setStep(task, STEP_PROVISIONED);
+        endAttempt(task);
+        onProgress(task);
+        mRunning--;
+        pump();
+    }
+
+    private void failAttempt(final Task task, String error) {
+        mLog.w("Provision " + task.mDeviceId + " attempt " + task.mAttempts + " failed: " + error);
+        task.mError = error;
+        endAttempt(task);
+        mRunning--;
+        if (task.mAttempts <= mRetries) {
+            setStep(task, STEP_RETRYING);
+            onProgress(task);
+            mRetrying++;
+            mHandler.postDelayed(() -> {
+                mRetrying--;
+                mQueue.add(task);
+                pump();
+            }, RETRY_DELAY);
+        } else {
+            setStep(task, STEP_FAILED);
+            onProgress(task);
+        }
+        pump();
+    }
+
+    private void endAttempt(Task task) {
+        if (task.mTimeoutTask != null) {
+            mHandler.removeCallbacks(task.mTimeoutTask);
+            task.mTimeoutTask = null;
+        }
+        if (task.mSession != null) {
+            mHost.closeSession(task.mSession);
+            task.mSession = null;
+        }
+        task.mEndTime = SystemClock.elapsedRealtime();
+    }
+
+    private void setStep(Task task, String step) {
+        long now = SystemClock.elapsedRealtime();
+        if (task.isRunningStep()) {
+            task.mStepDurations.put(task.mStep, now - task.mStepStartTime);
+        }
+        task.mStep = step;
+        task.mStepStartTime = now;
+    }
+
+    private void onProgress(Task task) {
+        JSObject progress = task.toJson();
+        progress.put("batchId", mBatchId);
+        mHost.onProgress(progress);
+    }
+
+    private JSObject toSummary() {
+        int succeeded = 0;
+        JSONArray devices = new JSONArray();
+        for (Task task : mTasks) {
+            if (STEP_PROVISIONED.equals(task.mStep)) {
+                succeeded++;
+            }
+            devices.put(task.toJson());
+        }
+        JSObject summary = new JSObject();
+        summary.put("batchId", mBatchId);
+        summary.put("total", mTasks.size());
+        summary.put("succeeded", succeeded);
+        summary.put("failed", mTasks.size() - succeeded);
+        summary.put("duration", mEndTime - mStartTime);
+        summary.put("devices", devices);
+        return summary;
+    }
+
+    private static class Task {
+        final BluetoothDevice mDevice;
+        final String mDeviceId;
+        String mStep = STEP_QUEUED;
+        int mAttempts;
+        String mError;
+        long mStartTime;
+        long mEndTime;
+        long mStepStartTime;
+        // Durations of the steps of the last attempt, in milliseconds
+        final Map<String, Long> mStepDurations = new LinkedHashMap<>();
+
+        BlufiSession mSession;
+        Runnable mTimeoutTask;
+
+        Task(BluetoothDevice device) {
+            mDevice = device;
+            mDeviceId = device.getAddress();
+        }
+
+        boolean isAttempt(int attempt) {
+            return mAttempts == attempt && mSession != null;
+        }
+
+        boolean isDone() {
+            return STEP_PROVISIONED.equals(mStep) || STEP_FAILED.equals(mStep);
+        }
+
+        boolean isRunningStep() {
+            return STEP_CONNECTING.equals(mStep) || STEP_NEGOTIATING.equals(mStep)
+                    || STEP_CONFIGURING.equals(mStep) || STEP_WAITING_WIFI.equals(mStep);
+        }
+
+        JSObject toJson() {
+            JSObject json = new JSObject();
+            json.put("deviceId", mDeviceId);
+            json.put("step", mStep);
+            json.put("success", STEP_PROVISIONED.equals(mStep));
+            json.put("attempts", mAttempts);
+            long end = isDone() ? mEndTime : SystemClock.elapsedRealtime();
+            json.put("duration", mStartTime > 0 ? end - mStartTime : 0);
+            if (mError != null && !STEP_PROVISIONED.equals(mStep)) {
+                json.put("error", mError);
+            }
+            JSObject steps = new JSObject();
+            for (Map.Entry<String, Long> entry : mStepDurations.entrySet()) {
+                steps.put(entry.getKey(), (long) entry.getValue());
+            }
+            json.put("steps", steps);
+            return json;
+        }
+    }
+
+    /**
+     * Listener of a step of one attempt, the results of an attempt given up already are dropped.
+     */
+    private abstract class StepListener<T> extends BlufiResultListener<T> {
+        private final Task mTask;
+        private final int mAttempt;
+        private final String mStep;
+
+        StepListener(Task task) {
+            mTask = task;
+            mAttempt = task.mAttempts;
+            mStep = task.mStep;
+        }
+
+        @Override
+        void onClosed() {
+            mHandler.post(() -> {
+                if (mTask.isAttempt(mAttempt)) {
+                    failAttempt(mTask, "Disconnected while " + mStep);
+                }
+            });
+        }
+
+        @Override
+        void onResult(int status, T result) {
+            if (!mTask.isAttempt(mAttempt)) {
+                return;
+            }
+            if (status != BlufiCallback.STATUS_SUCCESS) {
+                failAttempt(mTask, mStep + " failed, status " + status);
+                return;
+            }
+            onSuccess(result);
+        }
+
+        abstract void onSuccess(T result);
+    }
+}
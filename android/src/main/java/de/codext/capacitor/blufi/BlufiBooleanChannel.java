@@ -0,0 +1,37 @@
+package de.codext.capacitor.blufi;
+
+/**
+ * {@link BlufiChannel} of boolean values, such as the results of the GATT writes.
+ */
+class BlufiBooleanChannel extends BlufiChannel {
+    private final boolean[] mValues;
+
+    BlufiBooleanChannel(int capacity) {
+        super(capacity);
+        mValues = new boolean[capacity()];
+    }
+
+    /**
+     * Producer side
+     *
+     * @return false if the channel is full
+     */
+    boolean offer(boolean value) {
+        int index = claim();
+        if (index < 0) {
+            return false;
+        }
+        mValues[index] = value;
+        publish();
+        return true;
+    }
+
+    /**
+     * Consumer side, only valid if the channel is not empty.
+     */
+    boolean poll() {
+        boolean value = mValues[peekIndex()];
+        release();
+        return value;
+    }
+}
@@ -0,0 +1,108 @@
+package de.codext.capacitor.blufi;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Devices found by a scan and waiting to be provisioned, keyed by address.
+ * <p>
+ * {@link #poll(long)} hands out the best candidate: the strongest smoothed signal, less a penalty for
+ * each second since the device was seen. Candidates not seen for {@link #STALE_TIMEOUT} are dropped,
+ * the device may be gone or provisioned by someone else. A device is handed out once.
+ *
+ * @param <D> the device, kept so the next target is ready without another lookup
+ */
+class BlufiCandidatePool<D> {
+    static final long STALE_TIMEOUT = 10000L;
+    // Rank lost per second since the device was seen, in dBm
+    static final int AGE_PENALTY = 3;
+
+    private final Map<String, Candidate<D>> mCandidates = new HashMap<>();
+    private final Set<String> mTaken = new HashSet<>();
+    private long mLastNewTime;
+
+    /**
+     * Add a sighting of a device, ignored if the device has been handed out already.
+     *
+     * @param time in milliseconds, of {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    synchronized void offer(String address, D device, int rssi, long time) {
+        if (mTaken.contains(address)) {
+            return;
+        }
+        Candidate<D> candidate = mCandidates.get(address);
+        if (candidate == null) {
+            mCandidates.put(address, new Candidate<>(device, rssi, time));
+            mLastNewTime = time;
+            return;
+        }
+        // Smooth the RSSI, single advertisements vary by several dBm
+        candidate.mRssi = (candidate.mRssi * 3 + rssi) / 4;
+        candidate.mTime = time;
+    }
+
+    /**
+     * Never hand out the device, it is provisioned already or by another path.
+     */
+    synchronized void exclude(String address) {
+        mTaken.add(address);
+        mCandidates.remove(address);
+    }
+
+    /**
+     * @return the best candidate, or null if there is none
+     */
+    synchronized D poll(long now) {
+        String bestAddress = null;
+        Candidate<D> best = null;
+        int bestScore = Integer.MIN_VALUE;
+        Iterator<Map.Entry<String, Candidate<D>>> iterator = mCandidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Candidate<D>> entry = iterator.next();
+            Candidate<D> candidate = entry.getValue();
+            long age = now - candidate.mTime;
+            if (age > STALE_TIMEOUT) {
+                iterator.remove();
+                continue;
+            }
+            int score = candidate.mRssi - (int) (age * AGE_PENALTY / 1000);
+            if (score > bestScore) {
+                bestScore = score;
+                bestAddress = entry.getKey();
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        mCandidates.remove(bestAddress);
+        mTaken.add(bestAddress);
+        return best.mDevice;
+    }
+
+    synchronized int size() {
+        return mCandidates.size();
+    }
+
+    /**
+     * @return when a device not known before was last offered, 0 if never
+     */
+    synchronized long getLastNewTime() {
+        return mLastNewTime;
+    }
+
+    private static class Candidate<D> {
+        final D mDevice;
+        int mRssi;
+        long mTime;
+
+        Candidate(D device, int rssi, long time) {
+            mDevice = device;
+            mRssi = rssi;
+            mTime = time;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package de.codext.capacitor.blufi;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring of completions handed from one producer thread to one consumer thread without locks
+ * or allocation. The subclasses hold the values in a primitive array.
+ * <p>
+ * The producer calls {@link #claim()}, stores the value and calls {@link #publish()}, the consumer checks
+ * {@link #isEmpty()}, reads the value at {@link #peekIndex()} and calls {@link #release()}. Calls on
+ * the same side must not overlap. The consumer either blocks in {@link #await(long)}, or is woken by
+ * an event the producer sends only if {@link #markWakeup()} returns true.
+ */
+abstract class BlufiChannel {
+    // The completions usually follow shortly, check a few times before parking the thread
+    private static final int SPIN_TRIES = 256;
+
+    private final int mMask;
+
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicBoolean mWakeupPending = new AtomicBoolean();
+    private volatile Thread mWaiter;
+
+    BlufiChannel(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Producer side
+     *
+     * @return index of the slot to store the next value in, or -1 if the channel is full
+     */
+    int claim() {
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            return -1;
+        }
+        return (int) (tail & mMask);
+    }
+
+    /**
+     * Producer side, make the value stored in the claimed slot visible to the consumer.
+     */
+    void publish() {
+        // A volatile write, the consumer must see it before it reads the waiter back as null
+        mTail.set(mTail.get() + 1);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Consumer side, only valid if the channel is not empty.
+     *
+     * @return index of the slot holding the oldest value
+     */
+    int peekIndex() {
+        return (int) (mHead.get() & mMask);
+    }
+
+    /**
+     * Consumer side, free the slot of the oldest value.
+     */
+    void release() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    /**
+     * Producer side, after publishing.
+     *
+     * @return true if no wakeup is pending yet and the producer has to send one
+     */
+    boolean markWakeup() {
+        return !mWakeupPending.get() && mWakeupPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Consumer side, call on wakeup before draining the channel.
+     */
+    void clearWakeup() {
+        mWakeupPending.set(false);
+    }
+
+    /**
+     * Consumer side, block until a value is available.
+     *
+     * @param timeoutNanos negative to wait without timeout
+     * @return false if timeout or the thread was interrupted
+     */
+    boolean await(long timeoutNanos) {
+        for (int i = 0; i < SPIN_TRIES; i++) {
+            if (!isEmpty()) {
+                return true;
+            }
+        }
+
+        Thread thread = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNanos;
+        mWaiter = thread;
+        try {
+            while (isEmpty()) {
+                if (thread.isInterrupted()) {
+                    return false;
+                }
+                if (timeoutNanos < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            return true;
+        } finally {
+            mWaiter = null;
+        }
+    }
+}
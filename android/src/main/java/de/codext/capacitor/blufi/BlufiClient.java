@@ -1,18 +1,34 @@
 package de.codext.capacitor.blufi;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.RequiresApi;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import de.codext.capacitor.blufi.params.BlufiConfigureParams;
+import de.codext.capacitor.blufi.response.BlufiScanResult;
 import de.codext.capacitor.blufi.response.BlufiStatusResponse;
 import de.codext.capacitor.blufi.response.BlufiVersionResponse;
+import de.codext.capacitor.blufi.security.BlufiDHNegotiator;
+import de.codext.capacitor.blufi.security.BlufiSecurityNegotiator;
 
 public class BlufiClient {
     public static final String VERSION = "1.0.0";
 
+    /**
+     * Run the callbacks right on the thread which got the result, see {@link #setCallbackExecutor(Executor)}
+     */
+    public static final Executor DIRECT_EXECUTOR = Runnable::run;
+
     private final BlufiClientImpl mImpl;
 
     public BlufiClient(Context context, BluetoothDevice device) {
@@ -46,19 +62,65 @@ public class BlufiClient {
         mImpl.setBlufiCallback(callback);
     }
 
+    /**
+     * Set the executor running the {@link BlufiCallback} methods, the main thread by default.
+     * With {@link #DIRECT_EXECUTOR} they run on the client threads and must not block.
+     *
+     * @param executor null restores the main thread
+     */
+    public void setCallbackExecutor(Executor executor) {
+        mImpl.setCallbackExecutor(executor);
+    }
+
+    /**
+     * Run the {@link BlufiCallback} methods on the thread of the looper
+     *
+     * @param looper null restores the main thread
+     */
+    public void setCallbackLooper(Looper looper) {
+        mImpl.setCallbackExecutor(looper == null ? null : new Handler(looper)::post);
+    }
+
+    /**
+     * Get the statistics of the callback delivery, how long the results waited for the callback executor
+     *
+     * @return the statistics, updated as callbacks run
+     */
+    public BlufiDispatchStats getDispatchStats() {
+        return mImpl.getDispatchStats();
+    }
+
     /**
      * Set the maximum length of each Blufi packet, the excess part will be subcontracted.
      *
-     * @param lengthLimit range is 20 ~ 255. If -1, use default limit value of BluFi
+     * @param lengthLimit range is 20 ~ 255. If -1, follow the MTU, see {@link #getPostPackageLength()}
      */
     public void setPostPackageLengthLimit(int lengthLimit) {
         mImpl.setPostPackageLengthLimit(lengthLimit);
     }
 
+    /**
+     * Get the length limit of the posted packets. Without a limit set it follows the MTU, probing whether
+     * the device accepts packets that long and stepping down if it does not.
+     *
+     * @return range is 20 ~ 255
+     */
+    public int getPostPackageLength() {
+        return mImpl.getPostPackageLength();
+    }
+
+    /**
+     * Get the data bytes each packet of a fragmented message carries at the current packet length
+     */
+    public int getPostPayloadLength() {
+        return mImpl.getPostPayloadLength();
+    }
+
     /**
      * Set gatt write timeout.
      * If timeout, {@link BlufiCallback#onError(BlufiClient, int)} will be invoked,
-     * the errCode is {@link BlufiCallback#CODE_GATT_WRITE_TIMEOUT}
+     * the errCode is {@link BlufiCallback#CODE_GATT_WRITE_TIMEOUT}.
+     * It also bounds the wait for the acks of a post, 5000ms if not set.
      *
      * @param timeout in milliseconds
      */
@@ -66,6 +128,106 @@ public class BlufiClient {
         mImpl.setGattWriteTimeout(timeout);
     }
 
+    /**
+     * Set how many posted fragments may wait for device ack while the next fragments are posted.
+     * It only takes effect on the data which requires ack.
+     *
+     * @param size range is 1 ~ 32, 1 waits for the ack of each fragment before posting the next one
+     */
+    public void setTransmitWindowSize(int size) {
+        mImpl.setTransmitWindowSize(size);
+    }
+
+    /**
+     * Set the profile of the BLE link: connection priority, preferred PHY, MTU and frame pacing together.
+     * Set before {@link #connect()} for the MTU of the profile to be requested.
+     *
+     * @param profile null switches automatically: {@link BlufiLinkProfile#BULK_THROUGHPUT} while posting long
+     *                data, {@link BlufiLinkProfile#LOW_LATENCY} for other requests and
+     *                {@link BlufiLinkProfile#BALANCED} once idle. This is the default.
+     */
+    public void setLinkProfile(BlufiLinkProfile profile) {
+        mImpl.setLinkProfile(profile);
+    }
+
+    /**
+     * @return the profile set, null if it switches automatically
+     */
+    public BlufiLinkProfile getLinkProfile() {
+        return mImpl.getLinkProfile();
+    }
+
+    /**
+     * @return the profile the link uses now, null if not connected
+     */
+    public BlufiLinkProfile getAppliedLinkProfile() {
+        return mImpl.getAppliedLinkProfile();
+    }
+
+    /**
+     * @return the MTU to request after connecting, by the link profile
+     */
+    public int getLinkMtu() {
+        return mImpl.getLinkMtu();
+    }
+
+    /**
+     * Get the statistics of the GATT operations, including how long they waited for the ones before them
+     *
+     * @return the statistics, updated as operations are issued
+     */
+    public BlufiGattStats getGattStats() {
+        return mImpl.getGattStats();
+    }
+
+    /**
+     * Request the MTU, queued with the other GATT operations of the connection.
+     * {@link BluetoothGattCallback#onMtuChanged} reports the result, with a failure status if the request
+     * could not be issued.
+     *
+     * @return false if not connected
+     */
+    public boolean requestMtu(int mtu) {
+        return mImpl.requestMtu(mtu);
+    }
+
+    /**
+     * Read the RSSI of the connection, queued with the other GATT operations of the connection.
+     * {@link BluetoothGattCallback#onReadRemoteRssi} reports the result.
+     *
+     * @return false if not connected
+     */
+    public boolean readRemoteRssi() {
+        return mImpl.readRemoteRssi();
+    }
+
+    /**
+     * Get the statistics of the posted data, including the achieved throughput
+     *
+     * @return the statistics, updated as data is posted
+     */
+    public BlufiTransmitStats getTransmitStats() {
+        return mImpl.getTransmitStats();
+    }
+
+    /**
+     * Get the statistics of the received notifications, including the depth of the decoding queue
+     *
+     * @return the statistics, updated as notifications are received
+     */
+    public BlufiReceiveStats getReceiveStats() {
+        return mImpl.getReceiveStats();
+    }
+
+    /**
+     * Set the key exchange used by {@link #negotiateSecurity()}, the device firmware must support it
+     *
+     * @param negotiator null restores the default {@link BlufiDHNegotiator}
+     */
+    public void setSecurityNegotiator(BlufiSecurityNegotiator negotiator) {
+        mImpl.setSecurityNegotiator(negotiator);
+    }
+
     /**
      * Establish a BLE connection with BluetoothDevice
      */
@@ -138,4 +300,152 @@ public class BlufiClient {
     public void postCustomData(byte[] data) {
         mImpl.postCustomData(data);
     }
+
+    /*
+     * The future API. Each request returns a future of its own result, which fails with BlufiException if
+     * the device reports an error, with TimeoutException if the result does not arrive within the timeout,
+     * and is cancelled when the client closes. Cancelling the future drops a request not posted yet.
+     * The results of these requests are not notified to the BlufiCallback, the futures complete on the
+     * callback executor.
+     */
+
+    /**
+     * Establish a BLE connection with BluetoothDevice and enable the Blufi notifications
+     *
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future of the connected gatt
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<BluetoothGatt> connectAsync(long timeout) {
+        BlufiFutureListener<BluetoothGatt> listener = mImpl.newFutureListener(timeout);
+        mImpl.connect(listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Negotiate security with device
+     *
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future completing once the data is encrypted
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<Void> negotiateSecurityAsync(long timeout) {
+        BlufiFutureListener<Void> listener = mImpl.newFutureListener(timeout);
+        mImpl.negotiateSecurity(listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Request to get device version
+     *
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future of the device version
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<BlufiVersionResponse> requestDeviceVersionAsync(long timeout) {
+        BlufiFutureListener<BlufiVersionResponse> listener = mImpl.newFutureListener(timeout);
+        mImpl.requestDeviceVersion(listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Request to get device current status
+     *
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future of the device status
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<BlufiStatusResponse> requestDeviceStatusAsync(long timeout) {
+        BlufiFutureListener<BlufiStatusResponse> listener = mImpl.newFutureListener(timeout);
+        mImpl.requestDeviceStatus(listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Request to get wifi list that the device scanned
+     *
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future of the wifi list
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<List<BlufiScanResult>> requestDeviceWifiScanAsync(long timeout) {
+        BlufiFutureListener<List<BlufiScanResult>> listener = mImpl.newFutureListener(timeout);
+        mImpl.requestDeviceWifiScan(listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Configure the device to a station or soft AP
+     *
+     * @param params  the config parameter
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future completing once the parameters are posted
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<Void> configureAsync(BlufiConfigureParams params, long timeout) {
+        BlufiFutureListener<Void> listener = mImpl.newFutureListener(timeout);
+        mImpl.configure(params, listener);
+        return listener.getFuture();
+    }
+
+    /**
+     * Request to post custom data to device
+     *
+     * @param data    the custom data
+     * @param timeout in milliseconds, no timeout if not positive
+     * @return the future of the posted data
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    public CompletableFuture<byte[]> postCustomDataAsync(byte[] data, long timeout) {
+        BlufiFutureListener<byte[]> listener = mImpl.newFutureListener(timeout);
+        mImpl.postCustomData(data, listener);
+        return listener.getFuture();
+    }
+
+    /*
+     * Requests of the plugin, which handles the result of each one with its own listener.
+     * The listeners get onClosed if the client closes first.
+     */
+
+    void connect(BlufiResultListener<BluetoothGatt> listener) {
+        mImpl.track(listener);
+        mImpl.connect(listener);
+    }
+
+    void negotiateSecurity(BlufiResultListener<Void> listener) {
+        mImpl.track(listener);
+        mImpl.negotiateSecurity(listener);
+    }
+
+    void requestDeviceVersion(BlufiResultListener<BlufiVersionResponse> listener) {
+        mImpl.track(listener);
+        mImpl.requestDeviceVersion(listener);
+    }
+
+    void requestDeviceStatus(BlufiResultListener<BlufiStatusResponse> listener) {
+        mImpl.track(listener);
+        mImpl.requestDeviceStatus(listener);
+    }
+
+    void requestDeviceWifiScan(BlufiResultListener<List<BlufiScanResult>> listener) {
+        mImpl.track(listener);
+        mImpl.requestDeviceWifiScan(listener);
+    }
+
+    void configure(BlufiConfigureParams params, BlufiResultListener<Void> listener) {
+        mImpl.track(listener);
+        mImpl.configure(params, listener);
+    }
+
+    void postCustomData(byte[] data, BlufiResultListener<byte[]> listener) {
+        mImpl.track(listener);
+        mImpl.postCustomData(data, listener);
+    }
+
+    /**
+     * Drop the request of the listener if it has not been posted yet, its result is not delivered anymore
+     */
+    void cancel(BlufiResultListener<?> listener) {
+        mImpl.cancel(listener);
+    }
 }
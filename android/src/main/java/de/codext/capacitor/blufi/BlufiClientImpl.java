@@ -2,6 +2,7 @@ package de.codext.capacitor.blufi;
 
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -12,53 +13,113 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.math.BigInteger;
+import androidx.annotation.RequiresApi;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.crypto.interfaces.DHPublicKey;
 
 import de.codext.capacitor.blufi.params.BlufiConfigureParams;
 import de.codext.capacitor.blufi.params.BlufiParameter;
 import de.codext.capacitor.blufi.response.BlufiScanResult;
 import de.codext.capacitor.blufi.response.BlufiStatusResponse;
 import de.codext.capacitor.blufi.response.BlufiVersionResponse;
-import de.codext.capacitor.blufi.security.BlufiAES;
+import de.codext.capacitor.blufi.security.BlufiAESEngine;
 import de.codext.capacitor.blufi.security.BlufiCRC;
-import de.codext.capacitor.blufi.security.BlufiDH;
-import de.codext.capacitor.blufi.security.BlufiMD5;
+import de.codext.capacitor.blufi.security.BlufiDHKeyPool;
+import de.codext.capacitor.blufi.security.BlufiDHNegotiator;
+import de.codext.capacitor.blufi.security.BlufiSecurityNegotiator;
 
 @SuppressLint("MissingPermission")
 class BlufiClientImpl implements BlufiParameter {
     private static final String TAG = "BlufiClientImpl";
 
-    private static final int PACKAGE_LENGTH_DEFAULT = 20;
-    private static final int PACKAGE_LENGTH_MIN = 20;
-    private static final int PACKAGE_LENGTH_MAX = 255;
+    private static final int PACKAGE_LENGTH_MIN = BlufiFrameSizer.LENGTH_MIN;
+    private static final int PACKAGE_LENGTH_MAX = BlufiFrameSizer.LENGTH_MAX;
     private static final int PACKAGE_HEADER_LENGTH = 4;
 
-    private static final byte NEG_SECURITY_SET_TOTAL_LENGTH = 0x00;
-    private static final byte NEG_SECURITY_SET_ALL_DATA = 0x01;
+    // Error codes the device reports when frames arrive faster than it handles them
+    private static final int DEVICE_ERR_SEQUENCE = 0;
+    private static final int DEVICE_ERR_CHECKSUM = 1;
+
+    // Events of the loop, posted by the user commands, the GATT callbacks and the scheduled timeouts
+    private static final int MSG_OPERATION = 1;
+    private static final int MSG_WRITE = 2;
+    private static final int MSG_WRITE_COMPLETE = 3;
+    private static final int MSG_WRITE_TIMEOUT = 4;
+    private static final int MSG_ACK = 5;
+    private static final int MSG_ACK_TIMEOUT = 6;
+    private static final int MSG_NEGOTIATION_DATA = 7;
+    private static final int MSG_OPERATION_TIMEOUT = 8;
+    private static final int MSG_DISCONNECTED = 9;
+    private static final int MSG_LINK_PROFILE = 10;
+    private static final int MSG_LINK_IDLE = 11;
+    private static final int MSG_GATT_OPERATION = 12;
+    private static final int MSG_GATT_COMPLETE = 13;
+    private static final int MSG_CLOSE = 14;
+    private static final int MSG_GATT_ISSUE = 15;
+    private static final int MSG_GATT_TIMEOUT = 16;
+
+    private static final int POST_IDLE = 0;
+    // Waiting for the pacing gap
+    private static final int POST_WRITE_SCHEDULED = 1;
+    // The frame write is queued or in flight
+    private static final int POST_WRITING = 2;
+    private static final int POST_WAIT_ACK = 3;
+
+    private static final int NEG_STATE_POST = 0;
+    private static final int NEG_STATE_WAIT_DEVICE = 1;
+    private static final int NEG_STATE_SET_SECURITY = 2;
+    private static final int NEG_STATE_DONE = 3;
+
+    private static final long NEGOTIATE_DEVICE_TIMEOUT = 10_000L;
+    // Wait for acks unless a write timeout is set, a lost ack must not hold the operation forever
+    private static final long ACK_TIMEOUT_DEFAULT = BlufiGattQueue.CALLBACK_TIMEOUT;
+
+    // The ATT MTU before the exchange
+    private static final int ATT_MTU_DEFAULT = 23;
+    // Some stacks never report the MTU exchange, security is negotiated once it is done
+    private static final long REQUEST_MTU_TIMEOUT = 2000L;
+    // Discovery takes several round trips per service if the stack has no cache of the device
+    private static final long DISCOVER_SERVICES_TIMEOUT = 30_000L;
+
+    // A post of this many frames is a bulk transfer for the automatic link profile
+    private static final int LINK_BULK_FRAMES = 4;
+    // Idle time before the automatic link profile falls back to balanced
+    private static final long LINK_IDLE_DELAY = 2000L;
+
+    // Kinds of the request results
+    private static final int RESULT_GATT_PREPARED = 0;
+    private static final int RESULT_NEGOTIATE = 1;
+    private static final int RESULT_CONFIGURE = 2;
+    private static final int RESULT_POST_CUSTOM_DATA = 3;
+    private static final int RESULT_VERSION = 4;
+    private static final int RESULT_STATUS = 5;
+    private static final int RESULT_WIFI_SCAN = 6;
+    private static final int RESULT_KIND_COUNT = 7;
+
+    // One write is in flight at a time, at most a transmit window of acks
+    private static final int WRITE_RESULT_CHANNEL_CAPACITY = 4;
+    private static final int ACK_CHANNEL_CAPACITY = BlufiTransmitWindow.SIZE_MAX * 2;
 
-    private static final String DH_P = "cf5cf5c38419a724957ff5dd323b9c45c3cdd261eb740f69aa94b8bb1a5c9640" +
-            "9153bd76b24222d03274e4725a5406092e9e82e9135c643cae98132b0d95f7d6" +
-            "5347c68afc1e677da90e51bbab5f5cf429c291b4ba39c6b2dc5e8c7231e46aa7" +
-            "728e87664532cdf547be20c9a3fa8342be6e34371a27c06f7dc0edddd2f86373";
-    private static final String DH_G = "2";
-    private static final String AES_TRANSFORMATION = "AES/CFB/NoPadding";
 
     private boolean mPrintDebug = false;
 
@@ -69,23 +130,41 @@ class BlufiClientImpl implements BlufiParameter {
     private BluetoothGattCallback mInnerGattCallback;
     private volatile BluetoothGattCallback mUserGattCallback;
     private volatile BlufiCallback mUserBlufiCallback;
+    // Copy the notification data for onGattNotification only if the callback overrides it
+    private volatile boolean mUserConsumesNotification;
 
     private BluetoothGatt mGatt;
     private BluetoothGattCharacteristic mWriteChar;
-    private final LinkedBlockingQueue<Boolean> mWriteResultQueue;
+    private final BlufiBooleanChannel mWriteResults;
     private BluetoothGattCharacteristic mNotifyChar;
     private long mWriteTimeout = -1;
 
-    private int mPackageLengthLimit = -1;
-    private int mBlufiMTU = -1;
-
-    private final AtomicInteger mSendSequence;
-    private final AtomicInteger mReadSequence;
-    private LinkedBlockingQueue<Integer> mAck;
+    private volatile int mPackageLengthLimit = -1;
+    private final BlufiFrameSizer mFrameSizer;
 
-    private volatile BlufiNotifyData mNotifyData;
+    private final BlufiFrameEncoder mFrameEncoder;
 
-    private byte[] mAESKey;
+    private final AtomicInteger mSendSequence;
+    private final BlufiIntChannel mAcks;
+    private final BlufiTransmitWindow mTransmitWindow;
+    private final BlufiTransmitStats mTransmitStats;
+    private final BlufiPacer mPacer;
+    // Every GATT operation of the connection goes through the queue, only used on the loop thread
+    private final BlufiGattQueue mGattQueue;
+    private final BlufiGattStats mGattStats = new BlufiGattStats();
+
+    // Null switches the profile automatically, the applied one is only changed on the loop thread
+    private volatile BlufiLinkProfile mLinkProfile;
+    private volatile BlufiLinkProfile mAppliedLinkProfile;
+    private int mTxPhy = BluetoothDevice.PHY_LE_1M;
+
+    private final BlufiFrameDecoder mFrameDecoder;
+    // Notifications are copied here on the callback thread and decoded on the decode thread
+    private final BlufiNotificationRing mNotifications;
+    private final BlufiReceiveStats mReceiveStats;
+    private Thread mDecodeThread;
+
+    private volatile BlufiAESEngine mAESEngine;
 
     private boolean mEncrypted = false;
     private boolean mChecksum = false;
@@ -93,34 +172,95 @@ class BlufiClientImpl implements BlufiParameter {
     private boolean mRequireAck = false;
 
     private final SecurityCallback mSecurityCallback;
-    private final LinkedBlockingQueue<BigInteger> mDevicePublicKeyQueue;
-
-    private ExecutorService mThreadPool;
-    private final Handler mUIHandler;
-
-    private int mConnectState = BluetoothGatt.STATE_DISCONNECTED;
-
+    private volatile BlufiSecurityNegotiator mSecurityNegotiator;
+
+    // Commands run one at a time on the loop thread, which never blocks while waiting for the device
+    private HandlerThread mLoopThread;
+    private final Handler mLoopHandler;
+    private final LinkedList<Operation> mOperations = new LinkedList<>();
+    private Operation mOperation;
+
+    // State of the message being posted, only touched on the loop thread
+    private int mPostState = POST_IDLE;
+    private boolean mPostEncrypt;
+    private boolean mPostChecksum;
+    private boolean mPostRequireAck;
+    private int mPostType;
+    private byte[] mPostData;
+    private long mPostStartTime;
+    private int mFragmentCount;
+    private int mFragment;
+    private int mFrameBytes;
+    private byte[] mFrame;
+    private int mFrameSequence;
+    // The write of the current frame, and the frame write in flight which may be of an ended post
+    private FrameWrite mFrameWrite;
+    private FrameWrite mIssuedWrite;
+    private long mWriteTime;
+    private boolean mAckMismatch;
+
+    private final Executor mMainExecutor;
+    private volatile Executor mCallbackExecutor;
+    private final BlufiDispatchStats mDispatchStats;
+
+    // Per result kind, the requests waiting for a device response, oldest first
+    private final List<LinkedList<BlufiResultListener<?>>> mPendingResponses;
+    // Listeners which get onClosed if the client closes before their result, guarded by mPendingResponses
+    private final Set<BlufiResultListener<?>> mOpenListeners = new HashSet<>();
+
+    private volatile int mConnectState = BluetoothGatt.STATE_DISCONNECTED;
+
+    @SuppressWarnings("unchecked")
     BlufiClientImpl(BlufiClient client, Context context, BluetoothDevice device) {
         mClient = client;
         mContext = context;
         mDevice = device;
         mInnerGattCallback = new InnerGattCallback();
 
+        mFrameEncoder = new BlufiFrameEncoder();
+        mFrameDecoder = new BlufiFrameDecoder();
+        mNotifications = new BlufiNotificationRing(BlufiNotificationRing.CAPACITY_DEFAULT);
+        mReceiveStats = new BlufiReceiveStats(mNotifications);
+
         mSendSequence = new AtomicInteger(-1);
-        mReadSequence = new AtomicInteger(-1);
-        mAck = new LinkedBlockingQueue<>();
+        mAcks = new BlufiIntChannel(ACK_CHANNEL_CAPACITY);
+        mTransmitWindow = new BlufiTransmitWindow();
+        mTransmitStats = new BlufiTransmitStats();
+        mPacer = new BlufiPacer(device.getAddress());
+        mFrameSizer = new BlufiFrameSizer(device.getAddress());
 
         mSecurityCallback = new SecurityCallback();
-        mDevicePublicKeyQueue = new LinkedBlockingQueue<>();
+        mSecurityNegotiator = new BlufiDHNegotiator();
 
-        mThreadPool = Executors.newSingleThreadExecutor();
-        mUIHandler = new Handler(Looper.getMainLooper());
+        mLoopThread = new HandlerThread(TAG);
+        mLoopThread.start();
+        mLoopHandler = new Handler(mLoopThread.getLooper(), this::handleMessage);
+        mGattQueue = new BlufiGattQueue(mLoopHandler, MSG_GATT_ISSUE, MSG_GATT_TIMEOUT, mGattStats);
+        mDecodeThread = new Thread(this::decodeNotifications, "BlufiDecoder");
+        mDecodeThread.start();
+        mMainExecutor = new Handler(Looper.getMainLooper())::post;
+        mCallbackExecutor = mMainExecutor;
+        mDispatchStats = new BlufiDispatchStats();
+        mPendingResponses = new ArrayList<>(RESULT_KIND_COUNT);
+        for (int i = 0; i < RESULT_KIND_COUNT; i++) {
+            mPendingResponses.add(new LinkedList<>());
+        }
 
-        mWriteResultQueue = new LinkedBlockingQueue<>();
+        mWriteResults = new BlufiBooleanChannel(WRITE_RESULT_CHANNEL_CAPACITY);
     }
 
     void printDebugLog(boolean enable) {
         mPrintDebug = enable;
+        mPacer.printDebugLog(enable);
+        mFrameSizer.printDebugLog(enable);
+    }
+
+    void setCallbackExecutor(Executor executor) {
+        mCallbackExecutor = executor != null ? executor : mMainExecutor;
+    }
+
+    BlufiDispatchStats getDispatchStats() {
+        return mDispatchStats;
     }
 
     void setGattCallback(BluetoothGattCallback callback) {
@@ -128,11 +268,21 @@ class BlufiClientImpl implements BlufiParameter {
     }
 
     void setBlufiCallback(BlufiCallback callback) {
+        mUserConsumesNotification = callback != null && overridesGattNotification(callback);
         mUserBlufiCallback = callback;
     }
 
+    private static boolean overridesGattNotification(BlufiCallback callback) {
+        try {
+            return callback.getClass().getMethod("onGattNotification",
+                    BlufiClient.class, int.class, int.class, byte[].class).getDeclaringClass() != BlufiCallback.class;
+        } catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
     synchronized void connect() {
-        if (mThreadPool == null) {
+        if (mLoopThread == null) {
             throw new IllegalStateException("The BlufiClient has closed");
         }
 
@@ -143,30 +293,60 @@ class BlufiClientImpl implements BlufiParameter {
         }
     }
 
+    /**
+     * Connect, the listener gets the result instead of {@link BlufiCallback#onGattPrepared}
+     */
+    synchronized void connect(BlufiResultListener<BluetoothGatt> listener) {
+        connect();
+        awaitResponse(RESULT_GATT_PREPARED, listener);
+    }
+
     synchronized void close() {
         mConnectState = BluetoothGatt.STATE_DISCONNECTED;
 
-        mWriteResultQueue.clear();
-        if (mThreadPool != null) {
-            mThreadPool.shutdownNow();
-            mThreadPool = null;
+        List<BlufiResultListener<?>> openListeners;
+        synchronized (mPendingResponses) {
+            openListeners = new ArrayList<>(mOpenListeners);
         }
+        for (BlufiResultListener<?> listener : openListeners) {
+            listener.onClosed();
+        }
+
+        mUserBlufiCallback = null;
+        mUserGattCallback = null;
+        if (mLoopThread != null) {
+            // The loop may be issuing a GATT operation, it releases the connection after that
+            mLoopHandler.removeCallbacksAndMessages(null);
+            mLoopHandler.obtainMessage(MSG_CLOSE, mLoopThread).sendToTarget();
+            mLoopThread = null;
+        }
+        if (mDecodeThread != null) {
+            mDecodeThread.interrupt();
+            mDecodeThread = null;
+        }
+    }
+
+    /**
+     * Release the connection on the loop thread, then end the loop
+     */
+    private void onClose(HandlerThread loopThread) {
+        mGattQueue.clear();
+        mOperations.clear();
+        mOperation = null;
+        mIssuedWrite = null;
+        mFrameWrite = null;
+        mPostState = POST_IDLE;
         if (mGatt != null) {
             mGatt.close();
             mGatt = null;
         }
         mNotifyChar = null;
         mWriteChar = null;
-        if (mAck != null) {
-            mAck.clear();
-            mAck = null;
-        }
         mClient = null;
-        mUserBlufiCallback = null;
         mInnerGattCallback = null;
-        mUserGattCallback = null;
         mContext = null;
         mDevice = null;
+        loopThread.quitSafely();
     }
 
     void setGattWriteTimeout(long timeout) {
@@ -185,77 +365,278 @@ class BlufiClientImpl implements BlufiParameter {
         );
     }
 
-    void requestDeviceVersion() {
-        mThreadPool.submit(new ThrowableRunnable() {
+    /**
+     * @return the length limit of the posted frames, set or found over the MTU
+     */
+    int getPostPackageLength() {
+        int limit = mPackageLengthLimit;
+        return limit > 0 ? limit : mFrameSizer.getLength();
+    }
+
+    /**
+     * @return the data bytes each fragment of a posted message carries
+     */
+    int getPostPayloadLength() {
+        return BlufiFrameSizer.getPayloadLength(getPostPackageLength(), mChecksum);
+    }
+
+    void setLinkProfile(BlufiLinkProfile profile) {
+        mLinkProfile = profile;
+        mLoopHandler.sendEmptyMessage(MSG_LINK_PROFILE);
+    }
+
+    BlufiGattStats getGattStats() {
+        return mGattStats;
+    }
+
+    /**
+     * Queue an MTU exchange, the GATT callback gets onMtuChanged, with a failure status if it could not be
+     * requested or was not reported in time.
+     *
+     * @return false if not connected
+     */
+    boolean requestMtu(final int mtu) {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null || !isConnected()) {
+            return false;
+        }
+        enqueueGatt(new BlufiGattQueue.Operation(BlufiGattQueue.OP_REQUEST_MTU) {
+            @Override
+            boolean issue() {
+                return gatt.requestMtu(mtu);
+            }
+
+            @Override
+            long getCallbackTimeout() {
+                return REQUEST_MTU_TIMEOUT;
+            }
+
             @Override
-            void execute() {
-                __requestDeviceVersion();
+            void onFailed() {
+                // Whoever waits for the exchange goes on with the default MTU
+                mInnerGattCallback.onMtuChanged(gatt, ATT_MTU_DEFAULT, BluetoothGatt.GATT_FAILURE);
             }
         });
+        return true;
     }
 
-    void requestDeviceStatus() {
-        mThreadPool.submit(new ThrowableRunnable() {
+    /**
+     * Queue a read of the RSSI, the GATT callback gets onReadRemoteRssi
+     *
+     * @return false if not connected
+     */
+    boolean readRemoteRssi() {
+        final BluetoothGatt gatt = mGatt;
+        if (gatt == null || !isConnected()) {
+            return false;
+        }
+        enqueueGatt(new BlufiGattQueue.Operation(BlufiGattQueue.OP_READ_RSSI) {
             @Override
-            void execute() {
-                __requestDeviceStatus();
+            boolean issue() {
+                return gatt.readRemoteRssi();
             }
         });
+        return true;
     }
 
-    void negotiateSecurity() {
-        mThreadPool.submit(new ThrowableRunnable() {
+    private void enqueueGatt(BlufiGattQueue.Operation operation) {
+        mLoopHandler.obtainMessage(MSG_GATT_OPERATION, operation).sendToTarget();
+    }
+
+    private void onGattComplete(String operation) {
+        mLoopHandler.obtainMessage(MSG_GATT_COMPLETE, operation).sendToTarget();
+    }
+
+    BlufiLinkProfile getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    BlufiLinkProfile getAppliedLinkProfile() {
+        return mAppliedLinkProfile;
+    }
+
+    /**
+     * @return the MTU to request when connecting, the largest one of the profiles if switching automatically
+     */
+    int getLinkMtu() {
+        BlufiLinkProfile profile = mLinkProfile;
+        return (profile != null ? profile : BlufiLinkProfile.BULK_THROUGHPUT).getMtu();
+    }
+
+    void setTransmitWindowSize(int size) {
+        mTransmitWindow.setSize(size);
+    }
+
+    BlufiTransmitStats getTransmitStats() {
+        return mTransmitStats;
+    }
+
+    BlufiReceiveStats getReceiveStats() {
+        return mReceiveStats;
+    }
+
+    void setSecurityNegotiator(BlufiSecurityNegotiator negotiator) {
+        mSecurityNegotiator = negotiator != null ? negotiator : new BlufiDHNegotiator();
+    }
+
+    void requestDeviceVersion() {
+        requestDeviceVersion(new CallbackListener<>(RESULT_VERSION));
+    }
+
+    void requestDeviceVersion(BlufiResultListener<BlufiVersionResponse> listener) {
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
+        awaitResponse(RESULT_VERSION, listener);
+        enqueue(new RequestOperation(type, true, false, null, listener) {
             @Override
-            void execute() {
-                __negotiateSecurity();
+            void onResult(boolean posted) {
+                if (!posted) {
+                    failResponse(RESULT_VERSION, listener, null);
+                }
             }
         });
     }
 
-    void configure(final BlufiConfigureParams params) {
-        mThreadPool.submit(new ThrowableRunnable() {
+    void requestDeviceStatus() {
+        requestDeviceStatus(new CallbackListener<>(RESULT_STATUS));
+    }
+
+    void requestDeviceStatus(BlufiResultListener<BlufiStatusResponse> listener) {
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
+        awaitResponse(RESULT_STATUS, listener);
+        enqueue(new RequestOperation(type, true, false, null, listener) {
             @Override
-            void execute() {
-                __configure(params);
+            void onResult(boolean posted) {
+                if (!posted) {
+                    failResponse(RESULT_STATUS, listener, null);
+                }
             }
         });
     }
 
+    void negotiateSecurity() {
+        negotiateSecurity(new CallbackListener<>(RESULT_NEGOTIATE));
+    }
+
+    void negotiateSecurity(BlufiResultListener<Void> listener) {
+        enqueue(new NegotiateOperation(listener));
+    }
+
+    void configure(final BlufiConfigureParams params) {
+        configure(params, new CallbackListener<>(RESULT_CONFIGURE));
+    }
+
+    void configure(BlufiConfigureParams params, BlufiResultListener<Void> listener) {
+        enqueue(new ConfigureOperation(params, listener));
+    }
+
     void requestDeviceWifiScan() {
-        mThreadPool.submit(new ThrowableRunnable() {
+        requestDeviceWifiScan(new CallbackListener<>(RESULT_WIFI_SCAN));
+    }
+
+    void requestDeviceWifiScan(BlufiResultListener<List<BlufiScanResult>> listener) {
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_LIST);
+        awaitResponse(RESULT_WIFI_SCAN, listener);
+        enqueue(new RequestOperation(type, true, mRequireAck, null, listener) {
+            @Override
+            void start() {
+                Log.d(TAG, "requestDeviceWifiScan: starting, mEncrypted=" + mEncrypted + ", mChecksum=" + mChecksum
+                        + ", connected=" + isConnected());
+                super.start();
+            }
+
             @Override
-            void execute() {
-                __requestDeviceWifiScan();
+            void onResult(boolean posted) {
+                if (!posted) {
+                    Log.e(TAG, "requestDeviceWifiScan: request failed, returning empty list");
+                    failResponse(RESULT_WIFI_SCAN, listener, Collections.emptyList());
+                } else {
+                    Log.d(TAG, "requestDeviceWifiScan: request sent successfully, waiting for device response...");
+                }
             }
         });
     }
 
     void postCustomData(final byte[] data) {
-        mThreadPool.submit(new ThrowableRunnable() {
+        postCustomData(data, new CallbackListener<>(RESULT_POST_CUSTOM_DATA));
+    }
+
+    void postCustomData(byte[] data, BlufiResultListener<byte[]> listener) {
+        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA);
+        enqueue(new RequestOperation(type, true, mRequireAck, data, listener) {
             @Override
-            void execute() {
-                __postCustomData(data);
+            void onResult(boolean posted) {
+                int status = posted ? BlufiCallback.STATUS_SUCCESS : BlufiCallback.CODE_WRITE_DATA_FAILED;
+                complete(listener, status, data);
             }
         });
     }
 
     void requestCloseConnection() {
-        mThreadPool.submit(new ThrowableRunnable() {
+        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CLOSE_CONNECTION);
+        enqueue(new RequestOperation(type, false, false, null, null) {
             @Override
-            void execute() {
-                __requestCloseConnection();
+            void onResult(boolean posted) {
             }
         });
     }
 
+    private void enqueue(Operation operation) {
+        mLoopHandler.obtainMessage(MSG_OPERATION, operation).sendToTarget();
+    }
+
+    /**
+     * Create the listener of a request of the future API. The future fails with {@link TimeoutException} if
+     * the result does not arrive in time, and once it is done for any reason the request is dropped.
+     *
+     * @param timeout in milliseconds, no timeout if not positive
+     */
+    @RequiresApi(api = Build.VERSION_CODES.N)
+    <T> BlufiFutureListener<T> newFutureListener(long timeout) {
+        BlufiFutureListener<T> listener = new BlufiFutureListener<>();
+        CompletableFuture<T> future = listener.getFuture();
+        Runnable timeoutTask = () -> future.completeExceptionally(
+                new TimeoutException("No Blufi result in " + timeout + "ms"));
+        track(listener);
+        future.whenComplete((result, throwable) -> {
+            mLoopHandler.removeCallbacks(timeoutTask);
+            cancel(listener);
+        });
+        if (timeout > 0) {
+            mLoopHandler.postDelayed(timeoutTask, timeout);
+        }
+        return listener;
+    }
+
+    /**
+     * The listener gets {@link BlufiResultListener#onClosed()} if the client closes before its result
+     */
+    void track(BlufiResultListener<?> listener) {
+        synchronized (mPendingResponses) {
+            mOpenListeners.add(listener);
+        }
+    }
+
+    /**
+     * Drop the request of the listener, a result arriving later is not delivered
+     */
+    void cancel(BlufiResultListener<?> listener) {
+        listener.cancel();
+        synchronized (mPendingResponses) {
+            mOpenListeners.remove(listener);
+            for (LinkedList<BlufiResultListener<?>> pending : mPendingResponses) {
+                pending.remove(listener);
+            }
+        }
+    }
+
     private int toInt(byte b) {
         return b & 0xff;
     }
 
-    private String toHex(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            int number = b & 0xff;
+    private String toHex(byte[] bytes, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            int number = bytes[i] & 0xff;
             String str = Integer.toHexString(number);
             if (str.length() == 1) {
                 sb.append("0");
@@ -265,14 +646,9 @@ class BlufiClientImpl implements BlufiParameter {
         return sb.toString();
     }
 
-    private byte[] toBytes(String hex) {
-        if (hex.length() % 2 != 0) {
-            hex = "0" + hex;
-        }
-        byte[] result = new byte[hex.length() / 2];
-        for (int i = 0; i < hex.length(); i += 2) {
-            result[i / 2] = (byte) Integer.parseInt(hex.substring(i, i + 2), 16);
-        }
+    private byte[] toBytes(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
         return result;
     }
 
@@ -292,264 +668,508 @@ class BlufiClientImpl implements BlufiParameter {
         return mSendSequence.incrementAndGet() & 0xff;
     }
 
-    private byte[] generateAESIV(int sequence) {
-        byte[] result = new byte[16];
-        result[0] = (byte) sequence;
-
-        return result;
-    }
-
     private boolean isConnected() {
         return mConnectState == BluetoothGatt.STATE_CONNECTED;
     }
 
-    private boolean gattWrite(byte[] data) throws InterruptedException {
-        if (!isConnected()) {
-            return false;
+    private boolean handleMessage(Message msg) {
+        try {
+            switch (msg.what) {
+                case MSG_OPERATION:
+                    mOperations.add((Operation) msg.obj);
+                    if (mOperation == null) {
+                        startNextOperation();
+                    }
+                    break;
+                case MSG_WRITE:
+                    if (mPostState == POST_WRITE_SCHEDULED) {
+                        writeFrame();
+                    }
+                    break;
+                case MSG_WRITE_COMPLETE:
+                    mWriteResults.clearWakeup();
+                    while (!mWriteResults.isEmpty()) {
+                        boolean success = mWriteResults.poll();
+                        FrameWrite issued = mIssuedWrite;
+                        mIssuedWrite = null;
+                        mGattQueue.onComplete(BlufiGattQueue.OP_WRITE_CHARACTERISTIC);
+                        // A write completing after its post timed out says nothing about the current frame
+                        if (issued != null && issued == mFrameWrite) {
+                            onWriteComplete(success);
+                        }
+                    }
+                    break;
+                case MSG_GATT_OPERATION:
+                    mGattQueue.enqueue((BlufiGattQueue.Operation) msg.obj);
+                    break;
+                case MSG_GATT_COMPLETE:
+                    mGattQueue.onComplete((String) msg.obj);
+                    break;
+                case MSG_GATT_ISSUE:
+                    mGattQueue.onIssueMessage();
+                    break;
+                case MSG_GATT_TIMEOUT:
+                    mGattQueue.onTimeoutMessage();
+                    break;
+                case MSG_WRITE_TIMEOUT:
+                    onWriteTimeout();
+                    break;
+                case MSG_ACK:
+                    mAcks.clearWakeup();
+                    while (!mAcks.isEmpty()) {
+                        onAck(mAcks.poll());
+                    }
+                    break;
+                case MSG_ACK_TIMEOUT:
+                    onAckTimeout();
+                    break;
+                case MSG_NEGOTIATION_DATA:
+                    if (mOperation != null) {
+                        mOperation.onNegotiationData((byte[]) msg.obj);
+                    }
+                    break;
+                case MSG_OPERATION_TIMEOUT:
+                    if (mOperation != null) {
+                        mOperation.onTimeout();
+                    }
+                    break;
+                case MSG_LINK_PROFILE: {
+                    BlufiLinkProfile automatic = (BlufiLinkProfile) msg.obj;
+                    if (automatic == null) {
+                        automatic = mOperation != null ? BlufiLinkProfile.LOW_LATENCY : BlufiLinkProfile.BALANCED;
+                    }
+                    updateLinkProfile(automatic);
+                    break;
+                }
+                case MSG_LINK_IDLE:
+                    updateLinkProfile(BlufiLinkProfile.BALANCED);
+                    break;
+                case MSG_CLOSE:
+                    onClose((HandlerThread) msg.obj);
+                    break;
+                case MSG_DISCONNECTED:
+                    mGattQueue.clear();
+                    mIssuedWrite = null;
+                    mLoopHandler.removeMessages(MSG_LINK_IDLE);
+                    mAppliedLinkProfile = null;
+                    mTxPhy = BluetoothDevice.PHY_LE_1M;
+                    if (mPostState != POST_IDLE) {
+                        finishPost(false);
+                    } else if (mOperation != null) {
+                        // The device will not reply anymore
+                        mOperation.onTimeout();
+                    }
+                    break;
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "handleMessage: ", e);
+            recover();
         }
-        if (mPrintDebug) {
-            Log.i(TAG, "gattWrite= " + Arrays.toString(data));
+        return true;
+    }
+
+    /**
+     * An event failed on the loop. Fail the current operation and drop the GATT operation in flight,
+     * so neither stalls the ones queued behind them.
+     */
+    private void recover() {
+        mPostState = POST_IDLE;
+        removePostMessages();
+        mTransmitWindow.clear();
+        mGattQueue.clear();
+        mIssuedWrite = null;
+        mFrameWrite = null;
+        Operation operation = mOperation;
+        if (operation != null && operation.mListener != null) {
+            failListener(operation.mListener);
+        }
+        finishOperation();
+    }
+
+    private void startNextOperation() {
+        Operation operation = mOperations.poll();
+        // Nobody waits for the result of a cancelled request anymore
+        while (operation != null && operation.isCancelled()) {
+            operation = mOperations.poll();
+        }
+        mOperation = operation;
+        if (operation == null) {
+            mLoopHandler.sendEmptyMessageDelayed(MSG_LINK_IDLE, LINK_IDLE_DELAY);
+            return;
         }
-        mWriteChar.setValue(data);
-        mGatt.writeCharacteristic(mWriteChar);
-        Boolean result;
-        if (mWriteTimeout > 0) {
-            result = mWriteResultQueue.poll(mWriteTimeout, TimeUnit.MILLISECONDS);
-            if (result == null) {
-                onError(BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
-            }
-        } else {
-            result = mWriteResultQueue.take();
+        mLoopHandler.removeMessages(MSG_LINK_IDLE);
+        if (mAppliedLinkProfile == BlufiLinkProfile.BALANCED) {
+            updateLinkProfile(BlufiLinkProfile.LOW_LATENCY);
         }
-        return result != null && result;
+        operation.start();
     }
 
-    private boolean receiveAck(int expectAck) {
-        try {
-            int ack = mAck.take();
-            return ack == expectAck;
-        } catch (InterruptedException e) {
-            Log.w(TAG, "receiveAck: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+    /**
+     * Apply the profile set, or the given one if the profile switches automatically
+     */
+    private void updateLinkProfile(BlufiLinkProfile automatic) {
+        BlufiLinkProfile profile = mLinkProfile;
+        applyLinkProfile(profile != null ? profile : automatic);
+    }
+
+    private void applyLinkProfile(BlufiLinkProfile profile) {
+        BluetoothGatt gatt = mGatt;
+        if (profile == mAppliedLinkProfile || gatt == null || !isConnected()) {
+            return;
+        }
+        // Neither has a callback on all versions, they are done once issued
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            final int priority = profile.getConnectionPriority();
+            mGattQueue.enqueue(new BlufiGattQueue.Operation(BlufiGattQueue.OP_CONNECTION_PRIORITY) {
+                @Override
+                boolean issue() {
+                    return gatt.requestConnectionPriority(priority);
+                }
+
+                @Override
+                boolean hasCallback() {
+                    return false;
+                }
+            });
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phyMask = profile.getPhyMask();
+            if (phyMask == BluetoothDevice.PHY_LE_2M_MASK && !isLe2MPhySupported()) {
+                phyMask = BluetoothDevice.PHY_LE_1M_MASK;
+            }
+            int phy = phyMask == BluetoothDevice.PHY_LE_2M_MASK ? BluetoothDevice.PHY_LE_2M : BluetoothDevice.PHY_LE_1M;
+            // The controllers fall back to 1M if the device does not support 2M, onPhyUpdate tells
+            if (phy != mTxPhy) {
+                final int mask = phyMask;
+                mGattQueue.enqueue(new BlufiGattQueue.Operation(BlufiGattQueue.OP_PREFERRED_PHY) {
+                    @Override
+                    boolean issue() {
+                        gatt.setPreferredPhy(mask, mask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                        return true;
+                    }
+
+                    @Override
+                    boolean hasCallback() {
+                        return false;
+                    }
+                });
+            }
+        }
+        mPacer.setGapFloor(profile.getGapMin());
+        if (mPrintDebug) {
+            Log.d(TAG, "applyLinkProfile: " + mAppliedLinkProfile + " -> " + profile);
         }
+        mAppliedLinkProfile = profile;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static boolean isLe2MPhySupported() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        return adapter != null && adapter.isLe2MPhySupported();
     }
 
-    private boolean post(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data)
-            throws InterruptedException {
+    private void finishOperation() {
+        mLoopHandler.removeMessages(MSG_OPERATION_TIMEOUT);
+        mOperation = null;
+        startNextOperation();
+    }
+
+    /**
+     * Post a message. The fragments are written one after another, each once the previous write completed,
+     * and if ack is required up to the transmit window size fragments may wait for their ack while the
+     * next ones are written. The current operation gets {@link Operation#onPosted(boolean)} at the end.
+     */
+    private void startPost(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data) {
+        mPostStartTime = SystemClock.elapsedRealtimeNanos();
+        mPostEncrypt = encrypt;
+        mPostChecksum = checksum;
+        mPostRequireAck = requireAck;
+        mPostType = type;
         if (data == null || data.length == 0) {
-            return postNonData(encrypt, checksum, requireAck, type);
+            mPostData = null;
+            mFragmentCount = 1;
         } else {
-            return postContainData(encrypt, checksum, requireAck, type, data);
+            mPostData = data;
+            int pkgLengthLimit = getPostPackageLength();
+            mFragmentCount = mFrameEncoder.planFragments(data.length, pkgLengthLimit, checksum);
+        }
+        if (mFragmentCount >= LINK_BULK_FRAMES) {
+            updateLinkProfile(BlufiLinkProfile.BULK_THROUGHPUT);
         }
+        mFragment = 0;
+        mFrameBytes = 0;
+        mAckMismatch = false;
+        mTransmitWindow.clear();
+        postNextFrame();
     }
 
-    private boolean postNonData(boolean encrypt, boolean checksum, boolean requireAck, int type)
-            throws InterruptedException {
-        int sequence = generateSendSequence();
+    private void postNextFrame() {
+        if (mAckMismatch) {
+            finishPost(false);
+            return;
+        }
+        if ((mPostRequireAck && mTransmitWindow.isFull())
+                || (mFragment == mFragmentCount && !mTransmitWindow.isEmpty())) {
+            mPostState = POST_WAIT_ACK;
+            mLoopHandler.sendEmptyMessageDelayed(MSG_ACK_TIMEOUT,
+                    mWriteTimeout > 0 ? mWriteTimeout : ACK_TIMEOUT_DEFAULT);
+            return;
+        }
+        if (mFragment == mFragmentCount) {
+            finishPost(true);
+            return;
+        }
+
+        mFrameSequence = generateSendSequence();
+        if (mPostData == null) {
+            mFrame = getPostBytes(mPostType, mPostEncrypt, mPostChecksum, mPostRequireAck, false,
+                    mFrameSequence, null, 0, 0);
+        } else {
+            mFrame = getPostBytes(mPostType, mPostEncrypt, mPostChecksum, mPostRequireAck,
+                    mFrameEncoder.hasFrag(mFragment), mFrameSequence, mPostData, mFragment);
+        }
+        if (mFrame == null) {
+            finishPost(false);
+            return;
+        }
+        writeFrame();
+    }
 
-        byte[] postBytes = getPostBytes(type, encrypt, checksum, requireAck, false, sequence, null);
-        boolean posted = gattWrite(postBytes);
+    private void writeFrame() {
+        if (!isConnected()) {
+            finishPost(false);
+            return;
+        }
+        long delay = mPacer.getDelay();
+        if (delay > 0) {
+            mPostState = POST_WRITE_SCHEDULED;
+            mLoopHandler.sendEmptyMessageDelayed(MSG_WRITE, delay);
+            return;
+        }
 
-        return posted && (!requireAck || receiveAck(sequence));
+        mPostState = POST_WRITING;
+        mFrameWrite = new FrameWrite();
+        mGattQueue.enqueue(mFrameWrite);
     }
 
-    private boolean postContainData(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data)
-            throws InterruptedException {
-        ByteArrayInputStream dataIS = new ByteArrayInputStream(data);
-        ByteArrayOutputStream dataContent = new ByteArrayOutputStream();
-        int pkgLengthLimit = mPackageLengthLimit > 0 ? mPackageLengthLimit :
-                (mBlufiMTU > 0 ? mBlufiMTU : PACKAGE_LENGTH_DEFAULT);
-        int postDataLengthLimit = pkgLengthLimit - PACKAGE_HEADER_LENGTH;
-        postDataLengthLimit -= 2; // if frag, two bytes total length in data
-        if (checksum) {
-            postDataLengthLimit -= 2;
+    /**
+     * Writes the current frame of the post once the GATT operations queued before it are done
+     */
+    private class FrameWrite extends BlufiGattQueue.Operation {
+        private boolean mWritten;
+
+        FrameWrite() {
+            super(BlufiGattQueue.OP_WRITE_CHARACTERISTIC);
         }
-        byte[] dataBuf = new byte[postDataLengthLimit];
-        while (true) {
-            int read = dataIS.read(dataBuf, 0, dataBuf.length);
-            if (read == -1) {
-                break;
-            }
 
-            dataContent.write(dataBuf, 0, read);
-            if (dataIS.available() > 0 && dataIS.available() <= 2) {
-                read = dataIS.read(dataBuf, 0, dataIS.available());
-                dataContent.write(dataBuf, 0, read);
-            }
-            boolean frag = dataIS.available() > 0;
-            int sequence = generateSendSequence();
-            if (frag) {
-                int totalLen = dataContent.size() + dataIS.available();
-                byte[] tempData = dataContent.toByteArray();
-                dataContent.reset();
-                dataContent.write(totalLen & 0xff);
-                dataContent.write(totalLen >> 8 & 0xff);
-                dataContent.write(tempData, 0, tempData.length);
-            }
-            byte[] postBytes = getPostBytes(type, encrypt, checksum, requireAck, frag, sequence, dataContent.toByteArray());
-            dataContent.reset();
-            boolean posted = gattWrite(postBytes);
-            if (!posted) {
+        @Override
+        boolean issue() {
+            mWritten = false;
+            if (this != mFrameWrite || mPostState != POST_WRITING) {
+                // The post ended while the write waited in the queue
+                return true;
+            }
+            if (mPrintDebug) {
+                Log.i(TAG, "gattWrite= " + Arrays.toString(mFrame));
+            }
+            mWriteChar.setValue(mFrame);
+            if (!mGatt.writeCharacteristic(mWriteChar)) {
+                mTransmitStats.onWriteBusy();
                 return false;
             }
-            if (frag) {
-                if (requireAck && !receiveAck(sequence)) {
-                    return false;
-                }
-                sleep(10L);
-            } else {
-                return !requireAck || receiveAck(sequence);
+            mWritten = true;
+            mIssuedWrite = this;
+            mWriteTime = SystemClock.elapsedRealtimeNanos();
+            if (mWriteTimeout > 0) {
+                mLoopHandler.sendEmptyMessageDelayed(MSG_WRITE_TIMEOUT, mWriteTimeout);
             }
+            return true;
         }
 
-        return true;
-    }
-
-    private byte[] getPostBytes(int type, boolean encrypt, boolean checksum, boolean requireAck, boolean hasFrag, int sequence, byte[] data) {
-        ByteArrayOutputStream byteOS = new ByteArrayOutputStream();
-
-        int dataLength = data == null ? 0 : data.length;
-        int frameCtrl = FrameCtrlData.getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, hasFrag);
-
-        byteOS.write(type);
-        byteOS.write(frameCtrl);
-        byteOS.write(sequence);
-        byteOS.write(dataLength);
+        @Override
+        boolean hasCallback() {
+            return mWritten;
+        }
 
-        byte[] checksumBytes = null;
-        if (checksum) {
-            byte[] willCheckBytes = new byte[]{(byte) sequence, (byte) dataLength};
-            int crc = BlufiCRC.calcCRC(0, willCheckBytes);
-            if (dataLength > 0) {
-                crc = BlufiCRC.calcCRC(crc, data);
+        @Override
+        void onFailed() {
+            if (mIssuedWrite == this) {
+                mIssuedWrite = null;
+            }
+            if (this == mFrameWrite && mPostState == POST_WRITING) {
+                Log.w(TAG, "writeFrame: writeCharacteristic failed");
+                finishPost(false);
             }
-            checksumBytes = new byte[]{(byte) (crc & 0xff), (byte) (crc >> 8 & 0xff)};
         }
+    }
 
-        if (encrypt && data != null && data.length > 0) {
-            BlufiAES aes = new BlufiAES(mAESKey, AES_TRANSFORMATION, generateAESIV(sequence));
-            data = aes.encrypt(data);
+    private void onWriteComplete(boolean success) {
+        if (mPostState != POST_WRITING) {
+            // The write already timed out
+            return;
         }
-        if (data != null) {
-            byteOS.write(data, 0, data.length);
+        mLoopHandler.removeMessages(MSG_WRITE_TIMEOUT);
+        mPacer.onWriteComplete(SystemClock.elapsedRealtimeNanos() - mWriteTime, success);
+        if (mPackageLengthLimit <= 0) {
+            mFrameSizer.onFrameWritten(mFrame.length, success);
         }
-
-        if (checksumBytes != null) {
-            byteOS.write(checksumBytes[0]);
-            byteOS.write(checksumBytes[1]);
+        if (!success) {
+            finishPost(false);
+            return;
         }
 
-        return byteOS.toByteArray();
+        mFrameBytes += mFrame.length;
+        if (mPostRequireAck) {
+            mTransmitWindow.add(mFrameSequence);
+        }
+        mFragment++;
+        postNextFrame();
     }
 
-    private int parseNotification(byte[] response, BlufiNotifyData notification) {
-        if (response == null) {
-            Log.w(TAG, "parseNotification null data");
-            return -1;
+    private void onWriteTimeout() {
+        if (mPostState != POST_WRITING) {
+            return;
         }
-        if (mPrintDebug) {
-            Log.d(TAG, "parseNotification Notification= " + Arrays.toString(response));
+        mPacer.onWriteTimeout();
+        if (mPackageLengthLimit <= 0) {
+            mFrameSizer.onWriteTimeout(mFrame.length);
         }
+        onError(BlufiCallback.CODE_GATT_WRITE_TIMEOUT);
+        finishPost(false);
+    }
 
-        if (response.length < 4) {
-            Log.w(TAG, "parseNotification data length less than 4");
-            return -2;
+    private void onAck(int ack) {
+        if (mTransmitWindow.isEmpty()) {
+            Log.w(TAG, "onAck: unexpected ack " + ack);
+            return;
         }
-
-        int sequence = toInt(response[2]);
-        if (sequence != (mReadSequence.incrementAndGet() & 0xff)) {
-            Log.w(TAG, "parseNotification read sequence wrong");
-            return -3;
+        int expectAck = mTransmitWindow.poll();
+        if (ack != expectAck) {
+            Log.w(TAG, "onAck: " + ack + ", expect " + expectAck);
+            mAckMismatch = true;
         }
+        if (mPostState == POST_WAIT_ACK) {
+            mLoopHandler.removeMessages(MSG_ACK_TIMEOUT);
+            postNextFrame();
+        }
+    }
 
-        int type = toInt(response[0]);
-        int pkgType = getPackageType(type);
-        int subType = getSubType(type);
-        notification.setType(type);
-        notification.setPkgType(pkgType);
-        notification.setSubType(subType);
-
-        int frameCtrl = toInt(response[1]);
-        notification.setFrameCtrl(frameCtrl);
-        FrameCtrlData frameCtrlData = new FrameCtrlData(frameCtrl);
+    private void onAckTimeout() {
+        if (mPostState != POST_WAIT_ACK) {
+            return;
+        }
+        Log.w(TAG, "onAckTimeout: " + (mFragmentCount - mFragment) + " frames not posted");
+        finishPost(false);
+    }
 
-        int dataLen = toInt(response[3]);
-        byte[] dataBytes = new byte[dataLen];
-        int dataOffset = 4;
-        try {
-            System.arraycopy(response, dataOffset, dataBytes, 0, dataLen);
-        } catch (Exception e) {
-            Log.w(TAG, "parseNotification: ", e);
-            return -100;
+    private void finishPost(boolean posted) {
+        mPostState = POST_IDLE;
+        removePostMessages();
+        mTransmitWindow.clear();
+        if (posted) {
+            long elapsed = SystemClock.elapsedRealtimeNanos() - mPostStartTime;
+            int dataLength = mPostData == null ? 0 : mPostData.length;
+            mTransmitStats.onPosted(mFragmentCount, dataLength, mFrameBytes, elapsed);
+            if (mPrintDebug && mPostData != null) {
+                Log.d(TAG, "finishPost: " + dataLength + " bytes in " + mFragmentCount + " frames, "
+                        + (elapsed / 1000) + "us, gap " + mPacer.getGap() + "ms, " + mTransmitStats);
+            }
         }
+        mPostData = null;
+        mFrame = null;
+        mFrameWrite = null;
 
-        if (frameCtrlData.isEncrypted()) {
-            BlufiAES aes = new BlufiAES(mAESKey, AES_TRANSFORMATION, generateAESIV(sequence));
-            dataBytes = aes.decrypt(dataBytes);
+        Operation operation = mOperation;
+        if (operation != null) {
+            operation.onPosted(posted);
         }
+    }
+
+    private void removePostMessages() {
+        mLoopHandler.removeMessages(MSG_WRITE);
+        mLoopHandler.removeMessages(MSG_WRITE_TIMEOUT);
+        mLoopHandler.removeMessages(MSG_ACK_TIMEOUT);
+    }
 
-        if (frameCtrlData.isChecksum()) {
-            int respChecksum1 = toInt(response[response.length - 1]);
-            int respChecksum2 = toInt(response[response.length - 2]);
+    private byte[] getPostBytes(int type, boolean encrypt, boolean checksum, boolean requireAck, boolean hasFrag,
+                                int sequence, byte[] data, int offset, int length) {
+        int frameCtrl = FrameCtrlData.getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, hasFrag);
+        BlufiAESEngine aes = encrypt ? mAESEngine : null;
+        return mFrameEncoder.encode(type, frameCtrl, sequence, data, offset, length, -1, checksum, aes);
+    }
 
-            int crc = BlufiCRC.calcCRC(0, new byte[]{(byte) sequence, (byte) dataLen});
-            crc = BlufiCRC.calcCRC(crc, dataBytes);
-            int calcChecksum1 = crc >> 8 & 0xff;
-            int calcChecksum2 = crc & 0xff;
+    private byte[] getPostBytes(int type, boolean encrypt, boolean checksum, boolean requireAck, boolean hasFrag,
+                                int sequence, byte[] data, int fragment) {
+        int frameCtrl = FrameCtrlData.getFrameCTRLValue(encrypt, checksum, DIRECTION_OUTPUT, requireAck, hasFrag);
+        BlufiAESEngine aes = encrypt ? mAESEngine : null;
+        return mFrameEncoder.encodeFragment(type, frameCtrl, sequence, data, fragment, checksum, aes);
+    }
+
+    /**
+     * Body of the decode thread, decrypting, checking and parsing the queued notifications in order.
+     */
+    private void decodeNotifications() {
+        BlufiNotificationRing ring = mNotifications;
+        while (ring.await(-1)) {
+            int index = ring.peekIndex();
+            int skipped = ring.getSkipped(index);
+            if (skipped > 0) {
+                Log.w(TAG, "decodeNotifications: " + skipped + " notifications dropped, " + mReceiveStats);
+                mFrameDecoder.skip(skipped);
+                onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
+            }
+            byte[] data = ring.getSlot(index);
+            int length = ring.getLength(index);
+            if (mPrintDebug) {
+                Log.i(TAG, "Gatt Notification: " + Arrays.toString(Arrays.copyOf(data, length)));
+            }
+            // lt 0 is error, eq 0 is complete, gt 0 is continue or discarded
+            int parse = mFrameDecoder.decode(data, length);
+            ring.release();
 
-            if (respChecksum1 != calcChecksum1 || respChecksum2 != calcChecksum2) {
-                Log.w(TAG, "parseNotification: read invalid checksum");
-                if (mPrintDebug) {
-                    Log.d(TAG, "expect   checksum: " + respChecksum1 + ", " + respChecksum2);
-                    Log.d(TAG, "received checksum: " + calcChecksum1 + ", " + calcChecksum2);
+            try {
+                if (parse < 0) {
+                    onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
+                } else if (parse == BlufiFrameDecoder.RESULT_COMPLETE) {
+                    parseBlufiNotifyData(mFrameDecoder.getNotifyData());
                 }
-                return -4;
+            } catch (Exception e) {
+                Log.w(TAG, "decodeNotifications: ", e);
             }
         }
-
-        if (frameCtrlData.hasFrag()) {
-//            int totalLen = dataBytes[0] | (dataBytes[1] << 8);
-            dataOffset = 2;
-        } else {
-            dataOffset = 0;
-        }
-        notification.addData(dataBytes, dataOffset);
-
-        return frameCtrlData.hasFrag() ? 1 : 0;
     }
 
     private void parseBlufiNotifyData(BlufiNotifyData data) {
         int pkgType = data.getPkgType();
         int subType = data.getSubType();
-        byte[] dataBytes = data.getDataArray();
-        if (mUserBlufiCallback != null) {
-            boolean complete = mUserBlufiCallback.onGattNotification(mClient, pkgType, subType, dataBytes);
+        if (mUserBlufiCallback != null && mUserConsumesNotification) {
+            boolean complete = mUserBlufiCallback.onGattNotification(mClient, pkgType, subType, data.getDataArray());
             if (complete) {
                 return;
             }
         }
 
+        ByteBuffer dataBuffer = data.getData();
         switch (pkgType) {
             case Type.Ctrl.PACKAGE_VALUE:
-                parseCtrlData(subType, dataBytes);
+                parseCtrlData(subType, dataBuffer);
                 break;
             case Type.Data.PACKAGE_VALUE:
-                parseDataData(subType, dataBytes);
+                parseDataData(subType, dataBuffer);
                 break;
         }
     }
 
-    private void parseCtrlData(int subType, byte[] data) {
+    private void parseCtrlData(int subType, ByteBuffer data) {
         if (subType == Type.Ctrl.SUBTYPE_ACK) {
             parseAck(data);
         }
     }
 
-    private void parseDataData(int subType, byte[] data) {
+    private void parseDataData(int subType, ByteBuffer data) {
         switch (subType) {
             case Type.Data.SUBTYPE_NEG:
-                mSecurityCallback.onReceiveDevicePublicKey(data);
+                mSecurityCallback.onReceiveNegotiationData(data);
                 break;
             case Type.Data.SUBTYPE_VERSION:
                 parseVersion(data);
@@ -561,142 +1181,152 @@ class BlufiClientImpl implements BlufiParameter {
                 parseWifiScanList(data);
                 break;
             case Type.Data.SUBTYPE_CUSTOM_DATA:
-                onReceiveCustomData(data);
+                onReceiveCustomData(toBytes(data));
                 break;
             case Type.Data.SUBTYPE_ERROR:
-                int errCode = data.length > 0 ? (data[0] & 0xff) : 0xff;
+                int errCode = data.hasRemaining() ? toInt(data.get()) : 0xff;
+                if (errCode == DEVICE_ERR_SEQUENCE || errCode == DEVICE_ERR_CHECKSUM) {
+                    mPacer.onLinkError();
+                    mFrameSizer.onLinkError();
+                }
                 onError(errCode);
                 break;
         }
     }
 
-    private void parseAck(byte[] data) {
+    private void parseAck(ByteBuffer data) {
         int ack = 0x100;
-        if (data.length > 0) {
-            ack = data[0] & 0xff;
+        if (data.hasRemaining()) {
+            ack = toInt(data.get());
         }
 
-        mAck.add(ack);
+        // The decode thread is the only producer of the channel
+        if (!mAcks.offer(ack)) {
+            Log.w(TAG, "parseAck: ack channel full, drop " + ack);
+        } else if (mAcks.markWakeup()) {
+            mLoopHandler.sendEmptyMessage(MSG_ACK);
+        }
     }
 
-    private void parseVersion(byte[] data) {
-        if (data.length != 2) {
+    private void parseVersion(ByteBuffer data) {
+        if (data.remaining() != 2) {
             onVersionResponse(BlufiCallback.CODE_INVALID_DATA, null);
+            return;
         }
 
         BlufiVersionResponse response = new BlufiVersionResponse();
-        response.setVersionValues(toInt(data[0]), toInt(data[1]));
+        response.setVersionValues(toInt(data.get()), toInt(data.get()));
         onVersionResponse(BlufiCallback.STATUS_SUCCESS, response);
     }
 
-    private void parseWifiState(byte[] data) {
-        if (data.length < 3) {
+    private void parseWifiState(ByteBuffer data) {
+        if (data.remaining() < 3) {
             onStatusResponse(BlufiCallback.CODE_INVALID_DATA, null);
             return;
         }
 
         BlufiStatusResponse response = new BlufiStatusResponse();
 
-        ByteArrayInputStream dataIS = new ByteArrayInputStream(data);
-
-        int opMode = dataIS.read() & 0xff;
+        int opMode = toInt(data.get());
         response.setOpMode(opMode);
 
-        int staConn = dataIS.read() & 0xff;
+        int staConn = toInt(data.get());
         response.setStaConnectionStatus(staConn);
 
-        int softAPConn = dataIS.read() & 0xff;
+        int softAPConn = toInt(data.get());
         response.setSoftAPConnectionCount(softAPConn);
 
         int callbackStatus = BlufiCallback.STATUS_SUCCESS;
-        while (dataIS.available() > 0) {
-            int infoType = dataIS.read() & 0xff;
-            int len = dataIS.read() & 0xff;
-            byte[] stateBytes = new byte[len];
-            int read = dataIS.read(stateBytes, 0, len);
-            if (read != len) {
+        while (data.hasRemaining()) {
+            int infoType = toInt(data.get());
+            int len = data.hasRemaining() ? toInt(data.get()) : -1;
+            if (len < 0 || len > data.remaining()) {
                 callbackStatus = BlufiCallback.CODE_INVALID_DATA;
                 break;
             }
-            parseWifiStateData(response, infoType, stateBytes);
+            int offset = data.arrayOffset() + data.position();
+            data.position(data.position() + len);
+            if (len > 0) {
+                parseWifiStateData(response, infoType, data.array(), offset, len);
+            }
         }
 
         onStatusResponse(callbackStatus, response);
     }
 
-    private void parseWifiStateData(BlufiStatusResponse response, int infoType, byte[] data) {
+    private void parseWifiStateData(BlufiStatusResponse response, int infoType, byte[] data, int offset, int length) {
         switch (infoType) {
             case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_BSSID:
-                String staBssid = toHex(data);
+                String staBssid = toHex(data, offset, length);
                 response.setStaBSSID(staBssid);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_SSID:
-                String staSsid = new String(data);
+                String staSsid = new String(data, offset, length);
                 response.setStaSSID(staSsid);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_PASSWORD:
-                String staPassword = new String(data);
+                String staPassword = new String(data, offset, length);
                 response.setStaPassword(staPassword);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_AUTH_MODE:
-                int authMode = toInt(data[0]);
+                int authMode = toInt(data[offset]);
                 response.setSoftAPSecrity(authMode);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_CHANNEL:
-                int softAPChannel = toInt(data[0]);
+                int softAPChannel = toInt(data[offset]);
                 response.setSoftAPChannel(softAPChannel);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT:
-                int softAPMaxConnCount = toInt(data[0]);
+                int softAPMaxConnCount = toInt(data[offset]);
                 response.setSoftAPMaxConnectionCount(softAPMaxConnCount);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD:
-                String softapPassword = new String(data);
+                String softapPassword = new String(data, offset, length);
                 response.setSoftAPPassword(softapPassword);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_SOFTAP_WIFI_SSID:
-                String softapSSID = new String(data);
+                String softapSSID = new String(data, offset, length);
                 response.setSoftAPSSID(softapSSID);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_MAX_CONN_RETRY:
-                int maxRetry = toInt(data[0]);
+                int maxRetry = toInt(data[offset]);
                 response.setMaxRetry(maxRetry);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_END_REASON:
-                int endReason = toInt(data[0]);
+                int endReason = toInt(data[offset]);
                 response.setEndReason(endReason);
                 break;
             case BlufiParameter.Type.Data.SUBTYPE_STA_WIFI_CONN_RSSI:
-                int rssi = data[0];
+                int rssi = data[offset];
                 response.setRssi(rssi);
                 break;
 
         }
     }
 
-    private void parseWifiScanList(byte[] data) {
-        Log.d(TAG, "parseWifiScanList: received data length=" + (data != null ? data.length : 0));
+    private void parseWifiScanList(ByteBuffer data) {
+        Log.d(TAG, "parseWifiScanList: received data length=" + data.remaining());
         List<BlufiScanResult> result = new LinkedList<>();
 
-        ByteArrayInputStream dataReader = new ByteArrayInputStream(data);
-        while (dataReader.available() > 0) {
-            int length = dataReader.read() & 0xff;
+        while (data.hasRemaining()) {
+            int length = toInt(data.get());
             if (length < 1) {
                 Log.w(TAG, "parseWifiScanList: invalid length=" + length);
                 break;
             }
-            byte rssi = (byte) dataReader.read();
-            byte[] ssidBytes = new byte[length - 1];
-            int ssidRead = dataReader.read(ssidBytes, 0, ssidBytes.length);
-            if (ssidRead != ssidBytes.length) {
-                Log.w(TAG, "parseWifiScanList: parse ssid failed, expected=" + ssidBytes.length + ", read=" + ssidRead);
+            if (length > data.remaining()) {
+                Log.w(TAG, "parseWifiScanList: parse ssid failed, expected=" + (length - 1)
+                        + ", remaining=" + Math.max(data.remaining() - 1, 0));
                 break;
             }
+            byte rssi = data.get();
+            int ssidLength = length - 1;
+            String ssid = new String(data.array(), data.arrayOffset() + data.position(), ssidLength);
+            data.position(data.position() + ssidLength);
 
             BlufiScanResult sr = new BlufiScanResult();
             sr.setType(BlufiScanResult.TYPE_WIFI);
             sr.setRssi(rssi);
-            String ssid = new String(ssidBytes);
             sr.setSsid(ssid);
             result.add(sr);
             Log.d(TAG, "parseWifiScanList: parsed SSID=" + ssid + ", RSSI=" + rssi);
@@ -706,172 +1336,207 @@ class BlufiClientImpl implements BlufiParameter {
         onDeviceScanResult(BlufiCallback.STATUS_SUCCESS, result);
     }
 
+    /**
+     * Run a user callback on the callback executor and measure how long it waited there.
+     */
+    private void dispatch(Runnable callback) {
+        long queueTime = SystemClock.elapsedRealtimeNanos();
+        try {
+            mCallbackExecutor.execute(() -> {
+                mDispatchStats.onDelivered(SystemClock.elapsedRealtimeNanos() - queueTime);
+                callback.run();
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "dispatch: callback executor rejected", e);
+        }
+    }
+
     private void onError(final int errCode) {
-        mUIHandler.post(() -> {
+        dispatch(() -> {
             if (mUserBlufiCallback != null) {
                 mUserBlufiCallback.onError(mClient, errCode);
             }
         });
     }
 
-    private void __negotiateSecurity() {
-        BlufiDH espDH = postNegotiateSecurity();
-        if (espDH == null) {
-            Log.w(TAG, "negotiateSecurity postNegotiateSecurity failed");
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_POST_FAILED);
-            return;
+    /**
+     * A user command run on the event loop. It starts posts and waits for their results as events,
+     * and must call {@link #finishOperation()} once done so the next command starts.
+     */
+    private abstract class Operation {
+        final BlufiResultListener<?> mListener;
+
+        Operation(BlufiResultListener<?> listener) {
+            mListener = listener;
         }
 
-        BigInteger devicePublicKey;
-        try {
-            devicePublicKey = mDevicePublicKeyQueue.take();
-            if (devicePublicKey.bitLength() == 0) {
-                onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
-                return;
-            }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "Take device public key interrupted");
-            Thread.currentThread().interrupt();
-            return;
+        boolean isCancelled() {
+            return mListener != null && mListener.isCancelled();
         }
 
-        try {
-            espDH.generateSecretKey(devicePublicKey);
-            if (espDH.getSecretKey() == null) {
-                onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
-                return;
-            }
+        abstract void start();
 
-            mAESKey = BlufiMD5.getMD5Bytes(espDH.getSecretKey());
-        } catch (Exception e) {
-            Log.w(TAG, "__negotiateSecurity: ", e);
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SECURITY);
-            return;
+        /**
+         * The post started by this operation completed
+         */
+        abstract void onPosted(boolean posted);
+
+        void onNegotiationData(byte[] data) {
         }
 
-        boolean setSecurity = false;
-        try {
-            setSecurity = postSetSecurity(false, false, true, true);
-        } catch (Exception e) {
-            Log.w(TAG, "__negotiateSecurity: ", e);
+        /**
+         * The device did not reply in time, or disconnected
+         */
+        void onTimeout() {
+        }
+    }
+
+    /**
+     * Post a single message, encrypted and checksummed as negotiated if secure.
+     */
+    private abstract class RequestOperation extends Operation {
+        private final int mType;
+        private final boolean mSecure;
+        private final boolean mRequireAck;
+        private final byte[] mData;
+
+        RequestOperation(int type, boolean secure, boolean requireAck, byte[] data, BlufiResultListener<?> listener) {
+            super(listener);
+            mType = type;
+            mSecure = secure;
+            mRequireAck = requireAck;
+            mData = data;
         }
 
-        if (setSecurity) {
-            mEncrypted = true;
-            mChecksum = true;
-            onNegotiateSecurityResult(BlufiCallback.STATUS_SUCCESS);
-        } else {
-            mEncrypted = false;
-            mChecksum = false;
-            onNegotiateSecurityResult(BlufiCallback.CODE_NEG_ERR_SET_SECURITY);
+        @Override
+        void start() {
+            startPost(mSecure && mEncrypted, mSecure && mChecksum, mRequireAck, mType, mData);
+        }
+
+        @Override
+        void onPosted(boolean posted) {
+            onResult(posted);
+            finishOperation();
         }
+
+        abstract void onResult(boolean posted);
     }
 
-    private void onNegotiateSecurityResult(final int status) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onNegotiateSecurityResult(mClient, status);
+    /**
+     * Post the payloads of the negotiator, pass it the device replies until it derived the key, then
+     * switch the data frames to encrypted and checksummed.
+     */
+    private class NegotiateOperation extends Operation {
+        private final BlufiResultListener<Void> mResultListener;
+        private final LinkedList<byte[]> mDeviceData = new LinkedList<>();
+        private BlufiSecurityNegotiator mNegotiator;
+        private byte[][] mPayloads;
+        private int mPayloadIndex;
+        private int mState;
+
+        NegotiateOperation(BlufiResultListener<Void> listener) {
+            super(listener);
+            mResultListener = listener;
+        }
+
+        @Override
+        void start() {
+            mNegotiator = mSecurityNegotiator;
+            mPayloads = mNegotiator.begin();
+            mState = NEG_STATE_POST;
+            postNextPayload();
+        }
+
+        private void postNextPayload() {
+            if (mPayloadIndex < mPayloads.length) {
+                int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
+                startPost(false, false, mRequireAck, type, mPayloads[mPayloadIndex++]);
+                return;
             }
-        });
-    }
 
-    private BlufiDH postNegotiateSecurity() {
-        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_NEG);
-
-        final int radix = 16;
-        final int dhLength = 1024;
-        final BigInteger dhP = new BigInteger(DH_P, radix);
-        final BigInteger dhG = new BigInteger(DH_G);
-        BlufiDH blufiDH;
-        String p;
-        String g;
-        String k;
-        do {
-            blufiDH = new BlufiDH(dhP, dhG, dhLength);
-            p = blufiDH.getP().toString(radix);
-            g = blufiDH.getG().toString(radix);
-            k = getPublicValue(blufiDH);
-        } while (k == null);
-
-        byte[] pBytes = toBytes(p);
-        byte[] gBytes = toBytes(g);
-        byte[] kBytes = toBytes(k);
-
-        ByteArrayOutputStream dataOS = new ByteArrayOutputStream();
-
-        int pgkLength = pBytes.length + gBytes.length + kBytes.length + 6;
-        int pgkLen1 = (pgkLength >> 8) & 0xff;
-        int pgkLen2 = pgkLength & 0xff;
-        dataOS.write(NEG_SECURITY_SET_TOTAL_LENGTH);
-        dataOS.write((byte) pgkLen1);
-        dataOS.write((byte) pgkLen2);
-        try {
-            boolean postLength = post(false, false, mRequireAck, type, dataOS.toByteArray());
-            if (!postLength) {
-                return null;
-            }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postNegotiateSecurity: pgk length interrupted");
-            Thread.currentThread().interrupt();
-            return null;
-        }
-
-        sleep(10);
-
-        dataOS.reset();
-        dataOS.write(NEG_SECURITY_SET_ALL_DATA);
-
-        int pLength = pBytes.length;
-        int pLen1 = (pLength >> 8) & 0xff;
-        int pLen2 = pLength & 0xff;
-        dataOS.write(pLen1);
-        dataOS.write(pLen2);
-        dataOS.write(pBytes, 0, pLength);
-
-        int gLength = gBytes.length;
-        int gLen1 = (gLength >> 8) & 0xff;
-        int gLen2 = gLength & 0xff;
-        dataOS.write(gLen1);
-        dataOS.write(gLen2);
-        dataOS.write(gBytes, 0, gLength);
-
-        int kLength = kBytes.length;
-        int kLen1 = (kLength >> 8) & 0xff;
-        int kLen2 = kLength & 0xff;
-        dataOS.write(kLen1);
-        dataOS.write(kLen2);
-        dataOS.write(kBytes, 0, kLength);
+            mState = NEG_STATE_WAIT_DEVICE;
+            mLoopHandler.sendEmptyMessageDelayed(MSG_OPERATION_TIMEOUT, NEGOTIATE_DEVICE_TIMEOUT);
+            // The device may reply before the completion of the last write is reported
+            while (mState == NEG_STATE_WAIT_DEVICE && !mDeviceData.isEmpty()) {
+                receive(mDeviceData.poll());
+            }
+        }
 
-        try {
-            boolean postPGK = post(false, false, mRequireAck, type, dataOS.toByteArray());
-            if (!postPGK) {
-                return null;
+        @Override
+        void onPosted(boolean posted) {
+            switch (mState) {
+                case NEG_STATE_POST:
+                    if (!posted) {
+                        Log.w(TAG, "negotiateSecurity postNegotiateSecurity failed");
+                        finish(BlufiCallback.CODE_NEG_POST_FAILED);
+                        return;
+                    }
+                    postNextPayload();
+                    break;
+                case NEG_STATE_SET_SECURITY:
+                    mEncrypted = posted;
+                    mChecksum = posted;
+                    if (!posted) {
+                        finish(BlufiCallback.CODE_NEG_ERR_SET_SECURITY);
+                        return;
+                    }
+                    if (mPrintDebug && mNegotiator instanceof BlufiDHNegotiator) {
+                        Log.d(TAG, "DH key pool: " + BlufiDHKeyPool.getInstance());
+                    }
+                    finish(BlufiCallback.STATUS_SUCCESS);
+                    break;
             }
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postNegotiateSecurity: PGK interrupted");
-            Thread.currentThread().interrupt();
-            return null;
         }
 
-        dataOS.reset();
-        return blufiDH;
-    }
+        @Override
+        void onNegotiationData(byte[] data) {
+            if (mState == NEG_STATE_POST) {
+                mDeviceData.add(data);
+            } else if (mState == NEG_STATE_WAIT_DEVICE) {
+                receive(data);
+            }
+        }
+
+        private void receive(byte[] data) {
+            int result = mNegotiator.receive(ByteBuffer.wrap(data));
+            mLoopHandler.removeMessages(MSG_OPERATION_TIMEOUT);
+            if (result == BlufiSecurityNegotiator.RESULT_CONTINUE) {
+                mLoopHandler.sendEmptyMessageDelayed(MSG_OPERATION_TIMEOUT, NEGOTIATE_DEVICE_TIMEOUT);
+                return;
+            }
+            if (result == BlufiSecurityNegotiator.ERR_DEVICE_KEY) {
+                finish(BlufiCallback.CODE_NEG_ERR_DEV_KEY);
+                return;
+            }
+            if (result != BlufiSecurityNegotiator.RESULT_SUCCESS) {
+                finish(BlufiCallback.CODE_NEG_ERR_SECURITY);
+                return;
+            }
+
+            BlufiAESEngine aesEngine = new BlufiAESEngine(mNegotiator.getKey());
+            mAESEngine = aesEngine;
+            mFrameDecoder.setAESEngine(aesEngine);
 
-    private String getPublicValue(BlufiDH espDH) {
-        DHPublicKey publicKey = espDH.getPublicKey();
-        if (publicKey != null) {
-            BigInteger y = publicKey.getY();
-            StringBuilder keySB = new StringBuilder(y.toString(16));
-            while (keySB.length() < 256) {
-                keySB.insert(0, "0");
+            mState = NEG_STATE_SET_SECURITY;
+            postSetSecurity(false, false, true, true);
+        }
+
+        @Override
+        void onTimeout() {
+            if (mState == NEG_STATE_WAIT_DEVICE) {
+                Log.w(TAG, "negotiateSecurity: no device negotiation data");
+                finish(BlufiCallback.CODE_NEG_ERR_SECURITY);
             }
-            return keySB.toString();
         }
 
-        return null;
+        private void finish(int status) {
+            mState = NEG_STATE_DONE;
+            complete(mResultListener, status, null);
+            finishOperation();
+        }
     }
 
-    private boolean postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted, boolean dataChecksum) {
+    private void postSetSecurity(boolean ctrlEncrypted, boolean ctrlChecksum, boolean dataEncrypted, boolean dataChecksum) {
         int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_SEC_MODE);
         int data = 0;
         if (dataChecksum) {
@@ -889,347 +1554,318 @@ class BlufiClientImpl implements BlufiParameter {
 
         byte[] postData = {(byte) data};
 
-        try {
-            return post(false, true, mRequireAck, type, postData);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postSetSecurity interrupted");
-            Thread.currentThread().interrupt();
-            return false;
-        }
+        startPost(false, true, mRequireAck, type, postData);
     }
 
     private class SecurityCallback {
-        void onReceiveDevicePublicKey(byte[] keyData) {
-            String keyStr = toHex(keyData);
-            try {
-                BigInteger devicePublicValue = new BigInteger(keyStr, 16);
-                mDevicePublicKeyQueue.add(devicePublicValue);
-            } catch (NumberFormatException e) {
-                Log.w(TAG, "onReceiveDevicePublicKey: NumberFormatException -> " + keyStr);
-                mDevicePublicKeyQueue.add(new BigInteger("0"));
-            }
+        void onReceiveNegotiationData(ByteBuffer data) {
+            // The notify data buffer is reused for the next message
+            mLoopHandler.obtainMessage(MSG_NEGOTIATION_DATA, toBytes(data)).sendToTarget();
         }
     }
 
-    private void __configure(BlufiConfigureParams params) {
-        int opMode = params.getOpMode();
-        switch (opMode) {
-            case OP_MODE_NULL: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
+    /**
+     * Post the op mode, then the station and soft AP settings it needs, stopping at the first message
+     * which fails.
+     */
+    private class ConfigureOperation extends Operation {
+        private final BlufiConfigureParams mParams;
+        private final BlufiResultListener<Void> mResultListener;
+        private final LinkedList<ConfigureMessage> mMessages = new LinkedList<>();
+        private int mFailedStatus;
 
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                return;
-            }
-            case OP_MODE_STA: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postStaWifiInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_STA);
-                    return;
-                }
+        ConfigureOperation(BlufiConfigureParams params, BlufiResultListener<Void> listener) {
+            super(listener);
+            mParams = params;
+            mResultListener = listener;
+        }
 
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                return;
-            }
-            case OP_MODE_SOFTAP: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postSoftAPInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_SOFTAP);
+        @Override
+        void start() {
+            int opMode = mParams.getOpMode();
+            switch (opMode) {
+                case OP_MODE_NULL:
+                    addDeviceMode(opMode);
+                    break;
+                case OP_MODE_STA:
+                    addDeviceMode(opMode);
+                    addStaWifiInfo();
+                    break;
+                case OP_MODE_SOFTAP:
+                    addDeviceMode(opMode);
+                    addSoftAPInfo();
+                    break;
+                case OP_MODE_STASOFTAP:
+                    addDeviceMode(opMode);
+                    addStaWifiInfo();
+                    addSoftAPInfo();
+                    break;
+                default:
+                    complete(mResultListener, BlufiCallback.CODE_CONF_INVALID_OPMODE, null);
+                    finishOperation();
                     return;
-                }
+            }
+
+            postNextMessage();
+        }
 
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
+        private void postNextMessage() {
+            ConfigureMessage message = mMessages.poll();
+            if (message == null) {
+                complete(mResultListener, BlufiCallback.STATUS_SUCCESS, null);
+                finishOperation();
                 return;
             }
-            case OP_MODE_STASOFTAP: {
-                if (!postDeviceMode(opMode)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
-                    return;
-                }
-                if (!postStaWifiInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_STA);
-                    return;
-                }
-                if (!postSoftAPInfo(params)) {
-                    onPostConfigureParams(BlufiCallback.CODE_CONF_ERR_POST_SOFTAP);
-                    return;
-                }
 
-                onPostConfigureParams(BlufiCallback.STATUS_SUCCESS);
-                break;
-            }
-            default: {
-                onPostConfigureParams(BlufiCallback.CODE_CONF_INVALID_OPMODE);
-                break;
-            }
+            mFailedStatus = message.failedStatus;
+            startPost(message.encrypt, message.checksum, message.requireAck, message.type, message.data);
         }
-    }
 
-    private void onPostConfigureParams(final int status) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onPostConfigureParams(mClient, status);
+        @Override
+        void onPosted(boolean posted) {
+            if (!posted) {
+                complete(mResultListener, mFailedStatus, null);
+                finishOperation();
+                return;
             }
-        });
-    }
 
-    private boolean postDeviceMode(int deviceMode) {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_OP_MODE);
-        byte[] data = {(byte) deviceMode};
+            postNextMessage();
+        }
+
+        private void add(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data,
+                         int failedStatus) {
+            mMessages.add(new ConfigureMessage(encrypt, checksum, requireAck, type, data, failedStatus));
+        }
 
-        try {
-            return post(mEncrypted, mChecksum, true, type, data);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postDeviceMode interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+        private void addDeviceMode(int deviceMode) {
+            int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_SET_OP_MODE);
+            byte[] data = {(byte) deviceMode};
+            add(mEncrypted, mChecksum, true, type, data, BlufiCallback.CODE_CONF_ERR_SET_OPMODE);
         }
-    }
 
-    private boolean postStaWifiInfo(BlufiConfigureParams params) {
-        try {
+        private void addStaWifiInfo() {
+            int failedStatus = BlufiCallback.CODE_CONF_ERR_POST_STA;
+
             int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_SSID);
-            byte[] ssidBytes = params.getStaSSIDBytes();
-            if (!post(mEncrypted, mChecksum, mRequireAck, ssidType, ssidBytes)) {
-                return false;
-            }
-            sleep(10);
+            add(mEncrypted, mChecksum, mRequireAck, ssidType, mParams.getStaSSIDBytes(), failedStatus);
 
             int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_STA_WIFI_PASSWORD);
-            if (!post(mEncrypted, mChecksum, mRequireAck, pwdType, params.getStaPassword().getBytes())) {
-                return false;
-            }
-            sleep(10);
+            add(mEncrypted, mChecksum, mRequireAck, pwdType, mParams.getStaPassword().getBytes(), failedStatus);
 
             int comfirmType = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CONNECT_WIFI);
-            return post(false, false, mRequireAck, comfirmType, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postStaWifiInfo: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+            add(false, false, mRequireAck, comfirmType, null, failedStatus);
         }
-    }
 
-    private boolean postSoftAPInfo(BlufiConfigureParams params) {
-        try {
-            String ssid = params.getSoftAPSSID();
+        private void addSoftAPInfo() {
+            int failedStatus = BlufiCallback.CODE_CONF_ERR_POST_SOFTAP;
+
+            String ssid = mParams.getSoftAPSSID();
             if (!TextUtils.isEmpty(ssid)) {
                 int ssidType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_SSID);
-                if (!post(mEncrypted, mChecksum, mRequireAck, ssidType, params.getSoftAPSSID().getBytes())) {
-                    return false;
-                }
-                sleep(10);
+                add(mEncrypted, mChecksum, mRequireAck, ssidType, ssid.getBytes(), failedStatus);
             }
 
-            String password = params.getSoftAPPassword();
+            String password = mParams.getSoftAPPassword();
             if (!TextUtils.isEmpty(password)) {
                 int pwdType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_WIFI_PASSWORD);
-                if (!post(mEncrypted, mChecksum, mRequireAck, pwdType, password.getBytes())) {
-                    return false;
-                }
-                sleep(10);
+                add(mEncrypted, mChecksum, mRequireAck, pwdType, password.getBytes(), failedStatus);
             }
 
-            int channel = params.getSoftAPChannel();
+            int channel = mParams.getSoftAPChannel();
             if (channel > 0) {
                 int channelType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_CHANNEL);
-                if (!post(mEncrypted, mChecksum, mRequireAck, channelType, new byte[]{(byte) channel})) {
-                    return false;
-                }
-                sleep(10);
+                add(mEncrypted, mChecksum, mRequireAck, channelType, new byte[]{(byte) channel}, failedStatus);
             }
 
-            int maxConn = params.getSoftAPMaxConnection();
+            int maxConn = mParams.getSoftAPMaxConnection();
             if (maxConn > 0) {
                 int maxConnType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_MAX_CONNECTION_COUNT);
-                if (!post(mEncrypted, mChecksum, mRequireAck, maxConnType, new byte[]{(byte) maxConn})) {
-                    return false;
-                }
-                sleep(10);
+                add(mEncrypted, mChecksum, mRequireAck, maxConnType, new byte[]{(byte) maxConn}, failedStatus);
             }
 
             int securityType = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_SOFTAP_AUTH_MODE);
-            byte[] securityBytes = {(byte) params.getSoftAPSecurity()};
-            return post(mEncrypted, mChecksum, mRequireAck, securityType, securityBytes);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "postSoftAPInfo: interrupted");
-            Thread.currentThread().interrupt();
-            return false;
+            byte[] securityBytes = {(byte) mParams.getSoftAPSecurity()};
+            add(mEncrypted, mChecksum, mRequireAck, securityType, securityBytes, failedStatus);
         }
     }
 
-    private void __requestDeviceVersion() {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_VERSION);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceVersion interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
+    private static class ConfigureMessage {
+        final boolean encrypt;
+        final boolean checksum;
+        final boolean requireAck;
+        final int type;
+        final byte[] data;
+        final int failedStatus;
 
-        if (!request) {
-            onVersionResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
+        ConfigureMessage(boolean encrypt, boolean checksum, boolean requireAck, int type, byte[] data,
+                         int failedStatus) {
+            this.encrypt = encrypt;
+            this.checksum = checksum;
+            this.requireAck = requireAck;
+            this.type = type;
+            this.data = data;
+            this.failedStatus = failedStatus;
         }
     }
 
     private void onVersionResponse(final int status, final BlufiVersionResponse response) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceVersionResponse(mClient, status, response);
-            }
-        });
+        onResponse(RESULT_VERSION, status, response);
     }
 
-    private void __requestDeviceStatus() {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_STATUS);
-        boolean request;
-        try {
-            request = post(mEncrypted, mChecksum, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceStatus interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
+    private void onStatusResponse(final int status, final BlufiStatusResponse response) {
+        onResponse(RESULT_STATUS, status, response);
+    }
 
-        if (!request) {
-            onStatusResponse(BlufiCallback.CODE_WRITE_DATA_FAILED, null);
-        }
+    private void onDeviceScanResult(final int status, final List<BlufiScanResult> results) {
+        onResponse(RESULT_WIFI_SCAN, status, results);
     }
 
-    private void onStatusResponse(final int status, final BlufiStatusResponse response) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceStatusResponse(mClient, status, response);
-            }
-        });
+    /**
+     * The request of the listener expects a response of the device of the kind
+     */
+    private void awaitResponse(int kind, BlufiResultListener<?> listener) {
+        synchronized (mPendingResponses) {
+            mPendingResponses.get(kind).add(listener);
+        }
     }
 
-    private void __requestDeviceWifiScan() {
-        Log.d(TAG, "__requestDeviceWifiScan: starting, mEncrypted=" + mEncrypted + ", mChecksum=" + mChecksum + ", connected=" + isConnected());
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_GET_WIFI_LIST);
-        boolean request;
-        try {
-            Log.d(TAG, "__requestDeviceWifiScan: posting request...");
-            request = post(mEncrypted, mChecksum, mRequireAck, type, null);
-            Log.d(TAG, "__requestDeviceWifiScan: post result=" + request);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestDeviceWifiScan interrupted");
-            request = false;
-            Thread.currentThread().interrupt();
-        }
-
-        if (!request) {
-            Log.e(TAG, "__requestDeviceWifiScan: request failed, returning empty list");
-            onDeviceScanResult(BlufiCallback.CODE_WRITE_DATA_FAILED, Collections.emptyList());
-        } else {
-            Log.d(TAG, "__requestDeviceWifiScan: request sent successfully, waiting for device response...");
+    /**
+     * The request of the listener was not posted, its response will never come
+     */
+    private <T> void failResponse(int kind, BlufiResultListener<T> listener, T result) {
+        synchronized (mPendingResponses) {
+            mPendingResponses.get(kind).remove(listener);
         }
+        complete(listener, BlufiCallback.CODE_WRITE_DATA_FAILED, result);
     }
 
-    private void onDeviceScanResult(final int status, final List<BlufiScanResult> results) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onDeviceScanResult(mClient, status, results);
+    /**
+     * The request of the listener failed before its result, drop it wherever it waits
+     */
+    private void failListener(BlufiResultListener<?> listener) {
+        synchronized (mPendingResponses) {
+            for (LinkedList<BlufiResultListener<?>> pending : mPendingResponses) {
+                pending.remove(listener);
             }
-        });
+        }
+        complete(listener, BlufiCallback.CODE_CATCH_EXCEPTION, null);
     }
 
-    private void __postCustomData(byte[] data) {
-        int type = getTypeValue(Type.Data.PACKAGE_VALUE, Type.Data.SUBTYPE_CUSTOM_DATA);
-        try {
-            boolean suc = post(mEncrypted, mChecksum, mRequireAck, type, data);
-            int status = suc ? BlufiCallback.STATUS_SUCCESS : BlufiCallback.CODE_WRITE_DATA_FAILED;
-            onPostCustomDataResult(status, data);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post postCustomData interrupted");
-            Thread.currentThread().interrupt();
+    /**
+     * Hand a device response to the oldest request waiting for its kind, or to the callback if the device
+     * sent it unasked.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> void onResponse(int kind, int status, T response) {
+        BlufiResultListener<T> listener;
+        synchronized (mPendingResponses) {
+            listener = (BlufiResultListener<T>) mPendingResponses.get(kind).poll();
         }
+        complete(listener != null ? listener : new CallbackListener<>(kind), status, response);
     }
 
-    private void onPostCustomDataResult(final int status, final byte[] data) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                mUserBlufiCallback.onPostCustomDataResult(mClient, status, data);
+    private <T> void complete(BlufiResultListener<T> listener, int status, T result) {
+        dispatch(() -> {
+            synchronized (mPendingResponses) {
+                mOpenListeners.remove(listener);
             }
-        });
-    }
-
-    private void onReceiveCustomData(final byte[] data) {
-        mUIHandler.post(() -> {
-            if (mUserBlufiCallback != null) {
-                int status = BlufiCallback.STATUS_SUCCESS;
-                mUserBlufiCallback.onReceiveCustomData(mClient, status, data);
+            if (!listener.isCancelled()) {
+                listener.onResult(status, result);
             }
         });
     }
 
-    private void __requestCloseConnection() {
-        int type = getTypeValue(Type.Ctrl.PACKAGE_VALUE, Type.Ctrl.SUBTYPE_CLOSE_CONNECTION);
-        try {
-            post(false, false, false, type, null);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "post requestCloseConnection interrupted");
-            Thread.currentThread().interrupt();
+    /**
+     * The callback API over the results: delivers them to the {@link BlufiCallback}.
+     */
+    private class CallbackListener<T> extends BlufiResultListener<T> {
+        private final int mKind;
+
+        CallbackListener(int kind) {
+            mKind = kind;
         }
-    }
 
-    private abstract static class ThrowableRunnable implements Runnable {
+        @SuppressWarnings("unchecked")
         @Override
-        public void run() {
-            try {
-                execute();
-            } catch (Exception e) {
-                Log.w(TAG, "ThrowableRunnable: ", e);
-                onError(e);
+        void onResult(int status, T result) {
+            BlufiCallback callback = mUserBlufiCallback;
+            if (callback == null) {
+                return;
+            }
+            switch (mKind) {
+                case RESULT_GATT_PREPARED:
+                    callback.onGattPrepared(mClient, status, (BluetoothGatt) result);
+                    break;
+                case RESULT_NEGOTIATE:
+                    callback.onNegotiateSecurityResult(mClient, status);
+                    break;
+                case RESULT_CONFIGURE:
+                    callback.onPostConfigureParams(mClient, status);
+                    break;
+                case RESULT_POST_CUSTOM_DATA:
+                    callback.onPostCustomDataResult(mClient, status, (byte[]) result);
+                    break;
+                case RESULT_VERSION:
+                    callback.onDeviceVersionResponse(mClient, status, (BlufiVersionResponse) result);
+                    break;
+                case RESULT_STATUS:
+                    callback.onDeviceStatusResponse(mClient, status, (BlufiStatusResponse) result);
+                    break;
+                case RESULT_WIFI_SCAN:
+                    callback.onDeviceScanResult(mClient, status, (List<BlufiScanResult>) result);
+                    break;
             }
-        }
-
-        abstract void execute();
-
-        void onError(Exception e) {
         }
     }
 
-    private void sleep(long timeout) {
-        try {
-            Thread.sleep(timeout);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "sleep: interrupted");
-            Thread.currentThread().interrupt();
-        }
+    private void onReceiveCustomData(final byte[] data) {
+        dispatch(() -> {
+            if (mUserBlufiCallback != null) {
+                int status = BlufiCallback.STATUS_SUCCESS;
+                mUserBlufiCallback.onReceiveCustomData(mClient, status, data);
+            }
+        });
     }
 
     private class InnerGattCallback extends BluetoothGattCallback {
 
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             mConnectState = newState;
-            mBlufiMTU = -1;
+            mFrameSizer.reset();
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (newState == BluetoothProfile.STATE_CONNECTED) {
-                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                        gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
-                    }
+                    // Service discovery and negotiation are round trips, set up at low latency
+                    mLoopHandler.obtainMessage(MSG_LINK_PROFILE, BlufiLinkProfile.LOW_LATENCY).sendToTarget();
+
+                    enqueueGatt(new BlufiGattQueue.Operation(BlufiGattQueue.OP_DISCOVER_SERVICES) {
+                        @Override
+                        boolean issue() {
+                            return gatt.discoverServices();
+                        }
 
-                    gatt.discoverServices();
+                        @Override
+                        long getCallbackTimeout() {
+                            return DISCOVER_SERVICES_TIMEOUT;
+                        }
+
+                        @Override
+                        void onFailed() {
+                            onResponse(RESULT_GATT_PREPARED, BlufiCallback.CODE_GATT_DISCOVER_SERVICE_FAILED, gatt);
+                        }
+                    });
                 }
             }
+            if (newState != BluetoothProfile.STATE_CONNECTED) {
+                mLoopHandler.sendEmptyMessage(MSG_DISCONNECTED);
+            }
 
             if (mUserGattCallback != null) {
                 mUserGattCallback.onConnectionStateChange(gatt, status, newState);
             }
         }
 
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(final BluetoothGatt gatt, int status) {
+            onGattComplete(BlufiGattQueue.OP_DISCOVER_SERVICES);
             BluetoothGattService service = null;
             BluetoothGattCharacteristic writeChar = null;
             BluetoothGattCharacteristic notifyChar = null;
@@ -1243,6 +1879,11 @@ class BlufiClientImpl implements BlufiParameter {
                     }
                 }
 
+                if (writeChar != null && (writeChar.getProperties()
+                        & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                    // Completion only waits for the local controller, not for a round trip to the device
+                    writeChar.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                }
                 mWriteChar = writeChar;
                 mNotifyChar = notifyChar;
             }
@@ -1250,50 +1891,43 @@ class BlufiClientImpl implements BlufiParameter {
             if (mUserGattCallback != null) {
                 mUserGattCallback.onServicesDiscovered(gatt, status);
             }
-            if (mUserBlufiCallback != null) {
-                final BluetoothGattDescriptor notifyDesc = notifyChar == null ? null :
-                        notifyChar.getDescriptor(BlufiParameter.UUID_NOTIFICATION_DESCRIPTOR);
-                Integer failedStatus = null;
-                if (service == null) {
-                    failedStatus = BlufiCallback.CODE_GATT_DISCOVER_SERVICE_FAILED;
-                } else if (writeChar == null) {
-                    failedStatus = BlufiCallback.CODE_GATT_DISCOVER_WRITE_CHAR_FAILED;
-                } else if (notifyChar == null) {
-                    failedStatus = BlufiCallback.CODE_GATT_DISCOVER_NOTIFY_CHAR_FAILED;
-                } else if (notifyDesc == null) {
-                    failedStatus = BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY;
-                } else {
-                    // Write ENABLE_NOTIFICATION_VALUE
-                    notifyDesc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                    gatt.writeDescriptor(notifyDesc);
-                }
+            // Both the callback and the future API wait for the notifications to be enabled
+            final BluetoothGattDescriptor notifyDesc = notifyChar == null ? null :
+                    notifyChar.getDescriptor(BlufiParameter.UUID_NOTIFICATION_DESCRIPTOR);
+            Integer failedStatus = null;
+            if (service == null) {
+                failedStatus = BlufiCallback.CODE_GATT_DISCOVER_SERVICE_FAILED;
+            } else if (writeChar == null) {
+                failedStatus = BlufiCallback.CODE_GATT_DISCOVER_WRITE_CHAR_FAILED;
+            } else if (notifyChar == null) {
+                failedStatus = BlufiCallback.CODE_GATT_DISCOVER_NOTIFY_CHAR_FAILED;
+            } else if (notifyDesc == null) {
+                failedStatus = BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY;
+            } else {
+                // Write ENABLE_NOTIFICATION_VALUE
+                enqueueGatt(new BlufiGattQueue.Operation(BlufiGattQueue.OP_WRITE_DESCRIPTOR) {
+                    @Override
+                    boolean issue() {
+                        notifyDesc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        return gatt.writeDescriptor(notifyDesc);
+                    }
 
-                if (failedStatus != null) {
-                    final int statusCode = failedStatus;
-                    mUIHandler.post(() -> {
-                        mUserBlufiCallback.onGattPrepared(mClient, statusCode, gatt);
-                    });
-                }
+                    @Override
+                    void onFailed() {
+                        onResponse(RESULT_GATT_PREPARED, BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY, gatt);
+                    }
+                });
+            }
+
+            if (failedStatus != null) {
+                onResponse(RESULT_GATT_PREPARED, failedStatus, gatt);
             }
         }
 
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
             if (characteristic.equals(mNotifyChar)) {
-                if (mNotifyData == null) {
-                    mNotifyData = new BlufiNotifyData();
-                }
-                byte[] data = characteristic.getValue();
-                if (mPrintDebug) {
-                    Log.i(TAG, "Gatt Notification: " + Arrays.toString(data));
-                }
-                // lt 0 is error, eq 0 is complete, gt 0 is continue
-                int parse = parseNotification(data, mNotifyData);
-                if (parse < 0) {
-                    onError(BlufiCallback.CODE_INVALID_NOTIFICATION);
-                } else if (parse == 0) {
-                    parseBlufiNotifyData(mNotifyData);
-                    mNotifyData = null;
-                }
+                // Notifications are delivered one at a time, this is the only producer of the ring
+                mReceiveStats.onReceived(mNotifications.offer(characteristic.getValue()));
             }
 
             if (mUserGattCallback != null) {
@@ -1306,7 +1940,11 @@ class BlufiClientImpl implements BlufiParameter {
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     Log.w(TAG, "onCharacteristicWrite: status=" + status);
                 }
-                mWriteResultQueue.add(status == BluetoothGatt.GATT_SUCCESS);
+                if (!mWriteResults.offer(status == BluetoothGatt.GATT_SUCCESS)) {
+                    Log.w(TAG, "onCharacteristicWrite: write result channel full");
+                } else if (mWriteResults.markWakeup()) {
+                    mLoopHandler.sendEmptyMessage(MSG_WRITE_COMPLETE);
+                }
             }
 
             if (mUserGattCallback != null) {
@@ -1327,21 +1965,15 @@ class BlufiClientImpl implements BlufiParameter {
         }
 
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            onGattComplete(BlufiGattQueue.OP_WRITE_DESCRIPTOR);
             if (descriptor.getUuid().equals(BlufiParameter.UUID_NOTIFICATION_DESCRIPTOR) &&
                     descriptor.getCharacteristic().getUuid().equals(BlufiParameter.UUID_NOTIFICATION_CHARACTERISTIC)) {
                 BluetoothGattService service = descriptor.getCharacteristic().getService();
                 BluetoothGattCharacteristic notifyChar = descriptor.getCharacteristic();
                 BluetoothGattCharacteristic writeChar = mWriteChar;
-                mUIHandler.post(() -> {
-                    if (mUserBlufiCallback != null) {
-                        if (status == BluetoothGatt.GATT_SUCCESS) {
-                            mUserBlufiCallback.onGattPrepared(mClient, BlufiCallback.STATUS_SUCCESS, gatt);
-                        } else {
-                            mUserBlufiCallback.onGattPrepared(mClient, BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY, gatt);
-                        }
-
-                    }
-                });
+                int preparedStatus = status == BluetoothGatt.GATT_SUCCESS ? BlufiCallback.STATUS_SUCCESS
+                        : BlufiCallback.CODE_GATT_ERR_OPEN_NOTIFY;
+                onResponse(RESULT_GATT_PREPARED, preparedStatus, gatt);
             }
 
             if (mUserGattCallback != null) {
@@ -1356,6 +1988,7 @@ class BlufiClientImpl implements BlufiParameter {
         }
 
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            onGattComplete(BlufiGattQueue.OP_READ_RSSI);
             if (mUserGattCallback != null) {
                 mUserGattCallback.onReadRemoteRssi(gatt, rssi, status);
             }
@@ -1363,11 +1996,9 @@ class BlufiClientImpl implements BlufiParameter {
 
         @TargetApi(Build.VERSION_CODES.LOLLIPOP)
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            onGattComplete(BlufiGattQueue.OP_REQUEST_MTU);
             if (status == BluetoothGatt.GATT_SUCCESS) {
-                mBlufiMTU = Math.min(
-                        mtu - 4, // Three bytes BLE header, one byte reserved
-                        PACKAGE_LENGTH_MAX
-                );
+                mFrameSizer.onMtuChanged(mtu);
             }
             if (mUserGattCallback != null) {
                 mUserGattCallback.onMtuChanged(gatt, mtu, status);
@@ -1376,6 +2007,9 @@ class BlufiClientImpl implements BlufiParameter {
 
         @TargetApi(Build.VERSION_CODES.O)
         public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mLoopHandler.post(() -> mTxPhy = txPhy);
+            }
             if (mUserGattCallback != null) {
                 mUserGattCallback.onPhyUpdate(gatt, txPhy, rxPhy, status);
             }
@@ -1383,6 +2017,9 @@ class BlufiClientImpl implements BlufiParameter {
 
         @TargetApi(Build.VERSION_CODES.O)
         public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                mLoopHandler.post(() -> mTxPhy = txPhy);
+            }
             if (mUserGattCallback != null) {
                 mUserGattCallback.onPhyRead(gatt, txPhy, rxPhy, status);
             }
@@ -0,0 +1,132 @@
+package de.codext.capacitor.blufi;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The stages of setting up the connection of a session, each one started by the event ending the
+ * one before: connecting, discovering the service, exchanging the MTU and negotiating security.
+ * <p>
+ * Security is negotiated as soon as the MTU exchange completed or failed, the negotiation frames are
+ * split by the MTU. Some stacks never report the exchange, the client gives it up after a timeout and
+ * reports it failed.
+ */
+class BlufiConnectSetup {
+    static final String STAGE_IDLE = "idle";
+    static final String STAGE_CONNECTING = "connecting";
+    static final String STAGE_DISCOVERING = "discovering";
+    static final String STAGE_MTU = "mtu";
+    static final String STAGE_NEGOTIATING = "negotiating";
+    static final String STAGE_READY = "ready";
+    static final String STAGE_FAILED = "failed";
+
+    interface Listener {
+        /**
+         * The MTU is settled, negotiate security now
+         */
+        void onNegotiate();
+    }
+
+    private final BlufiLog mLog = new BlufiLog(getClass());
+
+    private final Map<String, Long> mDurations = new LinkedHashMap<>();
+    private String mStage = STAGE_IDLE;
+    private long mStageStartTime;
+    private long mStartTime;
+    private Listener mListener;
+
+    /**
+     * @param listener called on an arbitrary thread
+     */
+    synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    synchronized void start() {
+        mDurations.clear();
+        mStartTime = SystemClock.elapsedRealtime();
+        setStage(STAGE_CONNECTING);
+    }
+
+    synchronized void onConnected() {
+        if (STAGE_CONNECTING.equals(mStage)) {
+            setStage(STAGE_DISCOVERING);
+        }
+    }
+
+    /**
+     * The service is discovered and its notifications enabled, the MTU is requested next.
+     */
+    synchronized void onPrepared() {
+        // The connection state may be reported after the discovery it started
+        if (STAGE_CONNECTING.equals(mStage) || STAGE_DISCOVERING.equals(mStage)) {
+            setStage(STAGE_MTU);
+        }
+    }
+
+    /**
+     * The MTU exchange completed, failed or could not be requested.
+     */
+    void onMtuDone() {
+        Listener listener;
+        synchronized (this) {
+            if (!STAGE_MTU.equals(mStage)) {
+                return;
+            }
+            setStage(STAGE_NEGOTIATING);
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onNegotiate();
+        }
+    }
+
+    synchronized void onNegotiated(boolean success) {
+        if (STAGE_NEGOTIATING.equals(mStage)) {
+            setStage(success ? STAGE_READY : STAGE_FAILED);
+        }
+    }
+
+    /**
+     * The connection is lost or closed, a stage still running failed.
+     */
+    synchronized void onDisconnected() {
+        if (isRunning()) {
+            setStage(STAGE_FAILED);
+        }
+    }
+
+    synchronized String getStage() {
+        return mStage;
+    }
+
+    /**
+     * @return milliseconds each finished stage took, in order
+     */
+    synchronized Map<String, Long> getDurations() {
+        return new LinkedHashMap<>(mDurations);
+    }
+
+    /**
+     * @return milliseconds from connecting until ready, or until now
+     */
+    synchronized long getElapsed() {
+        return (isRunning() ? SystemClock.elapsedRealtime() : mStageStartTime) - mStartTime;
+    }
+
+    private boolean isRunning() {
+        return !STAGE_IDLE.equals(mStage) && !STAGE_READY.equals(mStage) && !STAGE_FAILED.equals(mStage);
+    }
+
+    private void setStage(String stage) {
+        long now = SystemClock.elapsedRealtime();
+        if (isRunning()) {
+            mDurations.put(mStage, now - mStageStartTime);
+        }
+        mLog.d("Connect stage " + mStage + " -> " + stage);
+        mStage = stage;
+        mStageStartTime = now;
+    }
+}
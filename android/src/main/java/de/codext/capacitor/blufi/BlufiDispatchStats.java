@@ -0,0 +1,57 @@
+package de.codext.capacitor.blufi;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the {@link BlufiCallback} delivery of a {@link BlufiClient}: how long results waited on
+ * the callback executor before the callback ran.
+ */
+public class BlufiDispatchStats {
+    private long mCallbackCount;
+    private long mLatencyNanos;
+    private long mMaxLatencyNanos;
+    private long mLastLatencyNanos;
+
+    synchronized void onDelivered(long latencyNanos) {
+        mCallbackCount++;
+        mLatencyNanos += latencyNanos;
+        mLastLatencyNanos = latencyNanos;
+        if (latencyNanos > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * @return count of the delivered callbacks
+     */
+    public synchronized long getCallbackCount() {
+        return mCallbackCount;
+    }
+
+    /**
+     * @return average delivery latency in microseconds
+     */
+    public synchronized double getAverageLatencyMicros() {
+        return mCallbackCount > 0 ? mLatencyNanos / 1000d / mCallbackCount : 0;
+    }
+
+    /**
+     * @return highest delivery latency in microseconds
+     */
+    public synchronized double getMaxLatencyMicros() {
+        return mMaxLatencyNanos / 1000d;
+    }
+
+    /**
+     * @return delivery latency of the last callback in microseconds
+     */
+    public synchronized double getLastLatencyMicros() {
+        return mLastLatencyNanos / 1000d;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "callbacks=%d, latency=%.1fus, max=%.1fus, last=%.1fus",
+                mCallbackCount, getAverageLatencyMicros(), getMaxLatencyMicros(), getLastLatencyMicros());
+    }
+}
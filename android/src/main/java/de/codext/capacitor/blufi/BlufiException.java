@@ -0,0 +1,22 @@
+package de.codext.capacitor.blufi;
+
+/**
+ * A request of the future API of {@link BlufiClient} failed.
+ */
+public class BlufiException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int mStatus;
+
+    public BlufiException(int status) {
+        super("Blufi request failed, status " + status);
+        mStatus = status;
+    }
+
+    /**
+     * @return one of the error codes of {@link BlufiCallback}
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+}
@@ -0,0 +1,217 @@
+package de.codext.capacitor.blufi;
+
+import android.util.Log;
+
+import de.codext.capacitor.blufi.security.BlufiAESEngine;
+import de.codext.capacitor.blufi.security.BlufiCRC;
+
+/**
+ * Decode received Blufi frames and reassemble fragmented data.
+ * <p>
+ * Frames are read in place. The total length carried by the first fragment sizes the reassembly buffer
+ * of a reused {@link BlufiNotifyData}, and each following fragment is checked against the remaining length,
+ * so a broken message is dropped as soon as it is detected. Its remaining fragments are discarded up to the
+ * frame without the FRAG bit, so none of them is taken for the first fragment of a new message.
+ * <p>
+ * Not thread safe, it must be used on the thread decoding the notifications.
+ */
+class BlufiFrameDecoder {
+    private static final String TAG = "BlufiFrameDecoder";
+
+    static final int RESULT_COMPLETE = 0;
+    static final int RESULT_CONTINUE = 1;
+    static final int RESULT_DISCARDED = 2;
+
+    static final int ERR_NULL_DATA = -1;
+    static final int ERR_SHORT_FRAME = -2;
+    static final int ERR_SEQUENCE = -3;
+    static final int ERR_CHECKSUM = -4;
+    static final int ERR_FRAG_LENGTH = -5;
+    static final int ERR_MESSAGE_LENGTH = -6;
+    static final int ERR_DECRYPT = -7;
+    static final int ERR_DATA_LENGTH = -100;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_REASSEMBLING = 1;
+    private static final int STATE_DISCARDING = 2;
+
+    private static final int HEADER_LENGTH = BlufiFrameEncoder.HEADER_LENGTH;
+    private static final int FRAG_TOTAL_LENGTH = BlufiFrameEncoder.FRAG_TOTAL_LENGTH;
+    private static final int CHECKSUM_LENGTH = BlufiFrameEncoder.CHECKSUM_LENGTH;
+
+    private final BlufiNotifyData mNotifyData;
+    // Decrypted data of the current frame
+    private final byte[] mPlainData;
+
+    private volatile BlufiAESEngine mAESEngine;
+
+    private int mReadSequence = -1;
+    private int mState = STATE_IDLE;
+    private int mTotalLength;
+
+    BlufiFrameDecoder() {
+        mNotifyData = new BlufiNotifyData();
+        mPlainData = new byte[0xff];
+    }
+
+    /**
+     * Set the engine decrypting the encrypted frames, null until security is negotiated.
+     */
+    void setAESEngine(BlufiAESEngine aesEngine) {
+        mAESEngine = aesEngine;
+    }
+
+    /**
+     * @return the reassembled data, valid after {@link #decode(byte[])} returned {@link #RESULT_COMPLETE}
+     * and until the next call
+     */
+    BlufiNotifyData getNotifyData() {
+        return mNotifyData;
+    }
+
+    /**
+     * Decode a received frame.
+     *
+     * @return {@link #RESULT_COMPLETE} if a message is complete, {@link #RESULT_CONTINUE} if more fragments
+     * are expected, {@link #RESULT_DISCARDED} if the frame is a fragment of a broken message, or a negative
+     * error code. The partial message is dropped on error.
+     */
+    int decode(byte[] response) {
+        return decode(response, response == null ? 0 : response.length);
+    }
+
+    /**
+     * Decode a received frame held in the first length bytes of response.
+     *
+     * @see #decode(byte[])
+     */
+    int decode(byte[] response, int length) {
+        int result = decodeFrame(response, length);
+        if (result == RESULT_COMPLETE) {
+            mState = STATE_IDLE;
+        } else if (result < 0) {
+            if (response != null && length >= HEADER_LENGTH) {
+                // The rest of a fragmented message follows the broken frame
+                mState = FrameCtrlData.hasFrag(response[1] & 0xff) ? STATE_DISCARDING : STATE_IDLE;
+            } else if (mState == STATE_REASSEMBLING) {
+                mState = STATE_DISCARDING;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Frames were lost before decoding, expect the sequence after them and drop the partial message.
+     */
+    void skip(int frames) {
+        mReadSequence = (mReadSequence + frames) & 0xff;
+        if (mState == STATE_REASSEMBLING) {
+            mState = STATE_DISCARDING;
+        }
+    }
+
+    private int decodeFrame(byte[] response, int length) {
+        if (response == null) {
+            Log.w(TAG, "decode null data");
+            return ERR_NULL_DATA;
+        }
+        if (length < HEADER_LENGTH) {
+            Log.w(TAG, "decode data length less than 4");
+            return ERR_SHORT_FRAME;
+        }
+
+        int sequence = response[2] & 0xff;
+        mReadSequence = (mReadSequence + 1) & 0xff;
+        if (sequence != mReadSequence) {
+            Log.w(TAG, "decode read sequence wrong");
+            return ERR_SEQUENCE;
+        }
+
+        int type = response[0] & 0xff;
+        int frameCtrl = response[1] & 0xff;
+        if (mState == STATE_DISCARDING) {
+            if (!FrameCtrlData.hasFrag(frameCtrl)) {
+                mState = STATE_IDLE;
+            }
+            return RESULT_DISCARDED;
+        }
+        int dataLen = response[3] & 0xff;
+        boolean checksum = FrameCtrlData.isChecksum(frameCtrl);
+        if (length < HEADER_LENGTH + dataLen + (checksum ? CHECKSUM_LENGTH : 0)) {
+            Log.w(TAG, "decode data length " + dataLen + " exceeds frame length " + length);
+            return ERR_DATA_LENGTH;
+        }
+
+        byte[] data = response;
+        int dataOffset = HEADER_LENGTH;
+        int calcChecksum = checksum ? BlufiCRC.seed(sequence, dataLen) : -1;
+        if (FrameCtrlData.isEncrypted(frameCtrl)) {
+            BlufiAESEngine aes = mAESEngine;
+            if (aes == null) {
+                Log.w(TAG, "decode encrypted frame before security negotiated");
+                return ERR_DECRYPT;
+            }
+            if (checksum) {
+                calcChecksum = aes.decryptWithChecksum(sequence, calcChecksum, response, HEADER_LENGTH, dataLen,
+                        mPlainData, 0);
+                if (calcChecksum < 0) {
+                    return ERR_DECRYPT;
+                }
+            } else if (aes.decrypt(sequence, response, HEADER_LENGTH, dataLen, mPlainData, 0) < 0) {
+                return ERR_DECRYPT;
+            }
+            data = mPlainData;
+            dataOffset = 0;
+        } else if (checksum) {
+            calcChecksum = BlufiCRC.calcCRC(calcChecksum, response, HEADER_LENGTH, dataLen);
+        }
+
+        if (checksum) {
+            int crcOffset = HEADER_LENGTH + dataLen;
+            int respChecksum = (response[crcOffset] & 0xff) | ((response[crcOffset + 1] & 0xff) << 8);
+            if (respChecksum != calcChecksum) {
+                Log.w(TAG, "decode: read invalid checksum, expect " + respChecksum + ", calc " + calcChecksum);
+                return ERR_CHECKSUM;
+            }
+        }
+
+        mNotifyData.setType(type);
+        mNotifyData.setPkgType(type & 0b11);
+        mNotifyData.setSubType((type & 0b11111100) >> 2);
+        mNotifyData.setFrameCtrl(frameCtrl);
+
+        if (FrameCtrlData.hasFrag(frameCtrl)) {
+            if (dataLen < FRAG_TOTAL_LENGTH) {
+                Log.w(TAG, "decode fragment without total length");
+                return ERR_FRAG_LENGTH;
+            }
+            int totalLen = (data[dataOffset] & 0xff) | ((data[dataOffset + 1] & 0xff) << 8);
+            int fragLen = dataLen - FRAG_TOTAL_LENGTH;
+            if (mState == STATE_IDLE) {
+                mTotalLength = totalLen;
+                mNotifyData.reset(totalLen);
+                mState = STATE_REASSEMBLING;
+            } else if (totalLen != mTotalLength - mNotifyData.getDataLength()) {
+                Log.w(TAG, "decode fragment remaining length " + totalLen + ", expect "
+                        + (mTotalLength - mNotifyData.getDataLength()));
+                return ERR_FRAG_LENGTH;
+            }
+            if (fragLen >= totalLen) {
+                Log.w(TAG, "decode fragment length " + fragLen + " leaves nothing for the next fragment");
+                return ERR_MESSAGE_LENGTH;
+            }
+            mNotifyData.addData(data, dataOffset + FRAG_TOTAL_LENGTH, fragLen);
+            return RESULT_CONTINUE;
+        }
+
+        if (mState == STATE_IDLE) {
+            mNotifyData.reset(dataLen);
+        } else if (mNotifyData.getDataLength() + dataLen != mTotalLength) {
+            Log.w(TAG, "decode message length " + (mNotifyData.getDataLength() + dataLen)
+                    + ", expect " + mTotalLength);
+            return ERR_MESSAGE_LENGTH;
+        }
+        mNotifyData.addData(data, dataOffset, dataLen);
+        return RESULT_COMPLETE;
+    }
+}
@@ -0,0 +1,142 @@
+package de.codext.capacitor.blufi;
+
+import de.codext.capacitor.blufi.security.BlufiAESEngine;
+import de.codext.capacitor.blufi.security.BlufiCRC;
+
+/**
+ * Build outgoing Blufi frames into reusable buffers.
+ * <p>
+ * A frame is written as header, payload and checksum into a buffer which is kept for every frame length,
+ * so posting after the first frames of a length allocates nothing. The returned array is only valid
+ * until the next frame with the same length is encoded.
+ * <p>
+ * Not thread safe, it must be used on the thread posting the frames.
+ */
+class BlufiFrameEncoder {
+    static final int HEADER_LENGTH = 4;
+    static final int FRAG_TOTAL_LENGTH = 2;
+    static final int CHECKSUM_LENGTH = 2;
+
+    private static final int DATA_LENGTH_MAX = 0xff;
+    static final int FRAME_LENGTH_MAX = HEADER_LENGTH + DATA_LENGTH_MAX + CHECKSUM_LENGTH;
+
+    private final byte[][] mFramePool = new byte[FRAME_LENGTH_MAX + 1][];
+
+    private int[] mFragmentEnds = new int[16];
+    private int mFragmentCount;
+    private int mTotalLength;
+
+    /**
+     * Plan the fragment boundaries of the data.
+     *
+     * @param dataLength the length of the data will be posted
+     * @param packageLengthLimit the maximum length of each frame
+     * @param checksum whether the frames contain checksum
+     * @return the count of the fragments
+     */
+    int planFragments(int dataLength, int packageLengthLimit, boolean checksum) {
+        int chunkLimit = packageLengthLimit - HEADER_LENGTH - FRAG_TOTAL_LENGTH;
+        if (checksum) {
+            chunkLimit -= CHECKSUM_LENGTH;
+        }
+
+        int count = 0;
+        int offset = 0;
+        do {
+            int end = Math.min(offset + chunkLimit, dataLength);
+            int remain = dataLength - end;
+            if (remain > 0 && remain <= FRAG_TOTAL_LENGTH) {
+                // The last frame has no total length, so the remaining bytes fit into this one
+                end = dataLength;
+            }
+            if (count == mFragmentEnds.length) {
+                int[] ends = new int[count * 2];
+                System.arraycopy(mFragmentEnds, 0, ends, 0, count);
+                mFragmentEnds = ends;
+            }
+            mFragmentEnds[count++] = end;
+            offset = end;
+        } while (offset < dataLength);
+
+        mFragmentCount = count;
+        mTotalLength = dataLength;
+        return count;
+    }
+
+    /**
+     * @return true if the fragment is followed by another one
+     */
+    boolean hasFrag(int index) {
+        return index < mFragmentCount - 1;
+    }
+
+    /**
+     * Encode a fragment planned by {@link #planFragments(int, int, boolean)}.
+     */
+    byte[] encodeFragment(int type, int frameCtrl, int sequence, byte[] data, int index, boolean checksum,
+                          BlufiAESEngine aes) {
+        int start = index == 0 ? 0 : mFragmentEnds[index - 1];
+        int end = mFragmentEnds[index];
+        int totalLength = hasFrag(index) ? mTotalLength - start : -1;
+        return encode(type, frameCtrl, sequence, data, start, end - start, totalLength, checksum, aes);
+    }
+
+    /**
+     * Encode a frame.
+     *
+     * @param totalLength the remaining length of the fragmented data, -1 if the frame is not a fragment
+     * @param aes encrypt the frame data if not null
+     * @return the frame, or null if the encryption failed
+     */
+    byte[] encode(int type, int frameCtrl, int sequence, byte[] data, int offset, int length, int totalLength,
+                  boolean checksum, BlufiAESEngine aes) {
+        int dataLength = totalLength >= 0 ? length + FRAG_TOTAL_LENGTH : length;
+        if (dataLength > DATA_LENGTH_MAX) {
+            throw new IllegalArgumentException("Frame data length " + dataLength + " exceeds " + DATA_LENGTH_MAX);
+        }
+        byte[] frame = obtainFrame(HEADER_LENGTH + dataLength + (checksum ? CHECKSUM_LENGTH : 0));
+
+        frame[0] = (byte) type;
+        frame[1] = (byte) frameCtrl;
+        frame[2] = (byte) sequence;
+        frame[3] = (byte) dataLength;
+
+        int position = HEADER_LENGTH;
+        if (totalLength >= 0) {
+            frame[position++] = (byte) (totalLength & 0xff);
+            frame[position++] = (byte) (totalLength >> 8 & 0xff);
+        }
+        if (length > 0) {
+            System.arraycopy(data, offset, frame, position, length);
+        }
+
+        boolean encrypt = aes != null && dataLength > 0;
+        if (checksum) {
+            int crc = BlufiCRC.seed(sequence, dataLength);
+            if (encrypt) {
+                crc = aes.encryptWithChecksum(sequence, crc, frame, HEADER_LENGTH, dataLength);
+                if (crc < 0) {
+                    return null;
+                }
+            } else {
+                crc = BlufiCRC.calcCRC(crc, frame, HEADER_LENGTH, dataLength);
+            }
+            int crcPosition = HEADER_LENGTH + dataLength;
+            frame[crcPosition] = (byte) (crc & 0xff);
+            frame[crcPosition + 1] = (byte) (crc >> 8 & 0xff);
+        } else if (encrypt && aes.encrypt(sequence, frame, HEADER_LENGTH, dataLength) < 0) {
+            return null;
+        }
+
+        return frame;
+    }
+
+    private byte[] obtainFrame(int frameLength) {
+        byte[] frame = mFramePool[frameLength];
+        if (frame == null) {
+            frame = new byte[frameLength];
+            mFramePool[frameLength] = frame;
+        }
+        return frame;
+    }
+}
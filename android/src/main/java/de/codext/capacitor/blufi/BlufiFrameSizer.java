@@ -0,0 +1,166 @@
+package de.codext.capacitor.blufi;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Find the largest frame a device accepts over the negotiated MTU.
+ * <p>
+ * After the MTU exchange the frames grow to the MTU, up to {@link #LENGTH_MAX}. A length is trusted once
+ * {@link #PROBE_FRAMES} frames longer than the last trusted one went through. A failed or timed out write
+ * of such a frame, or a sequence or checksum error reported while one is in use, marks the length as too
+ * long, and the next frames use the middle between the trusted and the failed length. So the length
+ * converges on the largest one working within {@link #PROBE_STEP_MIN} bytes.
+ * The lengths learned are kept per device address for the next connection.
+ */
+class BlufiFrameSizer {
+    private static final String TAG = "BlufiFrameSizer";
+
+    static final int LENGTH_MIN = 20;
+    static final int LENGTH_MAX = 255;
+    // The ATT write header takes three bytes of the MTU, one is reserved
+    static final int MTU_OVERHEAD = 4;
+
+    static final int PROBE_FRAMES = 4;
+    static final int PROBE_STEP_MIN = 8;
+
+    // Per device, the longest trusted and the shortest failed length
+    private static final Map<String, int[]> LEARNED_LENGTHS = new ConcurrentHashMap<>();
+
+    private final String mKey;
+
+    private int mLimit = -1;
+    private int mGood = LENGTH_MIN;
+    private int mBad = LENGTH_MAX + 1;
+    private volatile int mLength = LENGTH_MIN;
+    private int mProbeFrames;
+
+    private volatile boolean mPrintDebug;
+
+    BlufiFrameSizer(String key) {
+        mKey = key;
+    }
+
+    void printDebugLog(boolean enable) {
+        mPrintDebug = enable;
+    }
+
+    /**
+     * @return the current length limit of a frame
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the data bytes a frame of the current length carries
+     */
+    int getPayloadLength(boolean checksum) {
+        return getPayloadLength(mLength, checksum);
+    }
+
+    static int getPayloadLength(int length, boolean checksum) {
+        int payload = length - BlufiFrameEncoder.HEADER_LENGTH - BlufiFrameEncoder.FRAG_TOTAL_LENGTH;
+        return checksum ? payload - BlufiFrameEncoder.CHECKSUM_LENGTH : payload;
+    }
+
+    /**
+     * @return the length limit of the MTU, -1 if it is not exchanged
+     */
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    synchronized void onMtuChanged(int mtu) {
+        mLimit = Math.max(Math.min(mtu - MTU_OVERHEAD, LENGTH_MAX), LENGTH_MIN);
+        int[] learned = mKey == null ? null : LEARNED_LENGTHS.get(mKey);
+        mGood = learned == null ? LENGTH_MIN : Math.min(learned[0], mLimit);
+        mBad = learned == null ? mLimit + 1 : Math.min(learned[1], mLimit + 1);
+        mProbeFrames = 0;
+        int length;
+        if (mBad > mLimit) {
+            length = mLimit;
+        } else {
+            length = mBad - mGood > PROBE_STEP_MIN ? nextProbe() : mGood;
+        }
+        setLength(length, "mtu " + mtu);
+    }
+
+    /**
+     * The connection is lost, the MTU is exchanged again on the next one
+     */
+    synchronized void reset() {
+        mLimit = -1;
+        mGood = LENGTH_MIN;
+        mBad = LENGTH_MAX + 1;
+        mProbeFrames = 0;
+        mLength = LENGTH_MIN;
+    }
+
+    synchronized void onFrameWritten(int frameLength, boolean success) {
+        if (frameLength <= mGood) {
+            // Says nothing about the longer frames
+            return;
+        }
+        if (!success) {
+            onTooLong(frameLength, "write failed");
+            return;
+        }
+        // The last fragment of a message is shorter
+        if (frameLength >= mLength && ++mProbeFrames >= PROBE_FRAMES) {
+            mProbeFrames = 0;
+            mGood = Math.max(mGood, mLength);
+            learn();
+            if (mBad - mGood > PROBE_STEP_MIN) {
+                setLength(nextProbe(), "trusted " + mGood);
+            } else if (mPrintDebug) {
+                Log.d(TAG, "length " + mLength + " trusted");
+            }
+        }
+    }
+
+    synchronized void onWriteTimeout(int frameLength) {
+        if (frameLength > mGood) {
+            onTooLong(frameLength, "write timeout");
+        }
+    }
+
+    /**
+     * Device reported a sequence or checksum error
+     */
+    synchronized void onLinkError() {
+        if (mLength > mGood) {
+            onTooLong(mLength, "link error");
+        }
+    }
+
+    private void onTooLong(int frameLength, String reason) {
+        mProbeFrames = 0;
+        mBad = Math.max(Math.min(mBad, frameLength), mGood + 1);
+        learn();
+        setLength(mBad - mGood > PROBE_STEP_MIN ? nextProbe() : mGood, reason);
+    }
+
+    private int nextProbe() {
+        return (mGood + mBad) / 2;
+    }
+
+    private void learn() {
+        if (mKey != null) {
+            LEARNED_LENGTHS.put(mKey, new int[]{mGood, mBad});
+        }
+    }
+
+    private void setLength(int length, String reason) {
+        length = Math.min(Math.max(length, LENGTH_MIN), LENGTH_MAX);
+        if (length == mLength) {
+            return;
+        }
+        if (mPrintDebug) {
+            Log.d(TAG, "length " + mLength + " -> " + length + ", " + reason);
+        }
+        mLength = length;
+    }
+}
@@ -0,0 +1,34 @@
+package de.codext.capacitor.blufi;
+
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Completes a future with the result of a request, exceptionally with {@link BlufiException} if the
+ * status is an error.
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+class BlufiFutureListener<T> extends BlufiResultListener<T> {
+    private final CompletableFuture<T> mFuture = new CompletableFuture<>();
+
+    CompletableFuture<T> getFuture() {
+        return mFuture;
+    }
+
+    @Override
+    void onClosed() {
+        mFuture.cancel(false);
+    }
+
+    @Override
+    void onResult(int status, T result) {
+        if (status == BlufiCallback.STATUS_SUCCESS) {
+            mFuture.complete(result);
+        } else {
+            mFuture.completeExceptionally(new BlufiException(status));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package de.codext.capacitor.blufi;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedList;
+
+/**
+ * Issue the GATT operations of a connection one at a time.
+ * <p>
+ * Android keeps one GATT operation in flight per connection and rejects the others, so every operation
+ * is queued here and the next one is issued as soon as the callback of the previous one arrived. An
+ * operation rejected as busy is retried on the next turn of the loop, then after a backoff doubling up
+ * to {@link #BUSY_BACKOFF_MAX}. If its callback does not arrive in time, by default
+ * {@link #CALLBACK_TIMEOUT}, the next operation is issued anyway.
+ * <p>
+ * Not thread safe, it must be used on the thread of the handler. The retries and timeouts are sent as
+ * messages to the handler, which passes them to {@link #onIssueMessage()} and {@link #onTimeoutMessage()},
+ * so they run inside the error handling of its other messages.
+ */
+class BlufiGattQueue {
+    private static final String TAG = "BlufiGattQueue";
+
+    static final String OP_DISCOVER_SERVICES = "discoverServices";
+    static final String OP_WRITE_DESCRIPTOR = "writeDescriptor";
+    static final String OP_WRITE_CHARACTERISTIC = "writeCharacteristic";
+    static final String OP_REQUEST_MTU = "requestMtu";
+    static final String OP_READ_RSSI = "readRemoteRssi";
+    static final String OP_CONNECTION_PRIORITY = "requestConnectionPriority";
+    static final String OP_PREFERRED_PHY = "setPreferredPhy";
+
+    static final long CALLBACK_TIMEOUT = 5000L;
+    private static final long BUSY_BACKOFF_MIN = 1L;
+    private static final long BUSY_BACKOFF_MAX = 64L;
+
+    abstract static class Operation {
+        final String mName;
+        private long mQueueTime;
+        private long mBackoff;
+
+        Operation(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return false if the stack rejected the operation
+         */
+        abstract boolean issue();
+
+        /**
+         * @return false if the operation has no callback, it is done once issued
+         */
+        boolean hasCallback() {
+            return true;
+        }
+
+        /**
+         * @return milliseconds to wait for the callback before the next operation is issued anyway
+         */
+        long getCallbackTimeout() {
+            return CALLBACK_TIMEOUT;
+        }
+
+        /**
+         * The operation was rejected by every retry or its callback did not arrive in time
+         */
+        void onFailed() {
+        }
+    }
+
+    private final Handler mHandler;
+    private final int mIssueWhat;
+    private final int mTimeoutWhat;
+    private final BlufiGattStats mStats;
+    private final LinkedList<Operation> mQueue = new LinkedList<>();
+    private Operation mCurrent;
+    private boolean mIssued;
+
+    /**
+     * @param issueWhat   message {@code what} of the retries to issue an operation rejected as busy
+     * @param timeoutWhat message {@code what} of the callback timeouts
+     */
+    BlufiGattQueue(Handler handler, int issueWhat, int timeoutWhat, BlufiGattStats stats) {
+        mHandler = handler;
+        mIssueWhat = issueWhat;
+        mTimeoutWhat = timeoutWhat;
+        mStats = stats;
+    }
+
+    void enqueue(Operation operation) {
+        operation.mQueueTime = SystemClock.elapsedRealtimeNanos();
+        operation.mBackoff = 0L;
+        mQueue.add(operation);
+        mStats.onQueued(mQueue.size());
+        if (mCurrent == null) {
+            issueNext();
+        }
+    }
+
+    /**
+     * The callback of an operation arrived, ignored unless it is the one of the operation in flight
+     */
+    void onComplete(String name) {
+        if (mCurrent == null || !mIssued || !mCurrent.mName.equals(name)) {
+            return;
+        }
+        mHandler.removeMessages(mTimeoutWhat);
+        mCurrent = null;
+        issueNext();
+    }
+
+    /**
+     * A message of the issue {@code what} arrived
+     */
+    void onIssueMessage() {
+        issueNext();
+    }
+
+    /**
+     * A message of the timeout {@code what} arrived
+     */
+    void onTimeoutMessage() {
+        onCallbackTimeout();
+    }
+
+    /**
+     * Drop all operations, the connection is lost
+     */
+    void clear() {
+        mHandler.removeMessages(mIssueWhat);
+        mHandler.removeMessages(mTimeoutWhat);
+        mQueue.clear();
+        mCurrent = null;
+        mIssued = false;
+    }
+
+    int size() {
+        return mQueue.size() + (mCurrent != null ? 1 : 0);
+    }
+
+    private void issueNext() {
+        if (mCurrent == null) {
+            mCurrent = mQueue.poll();
+            mIssued = false;
+        }
+        Operation operation = mCurrent;
+        if (operation == null) {
+            return;
+        }
+
+        if (!operation.issue()) {
+            if (operation.mBackoff > BUSY_BACKOFF_MAX) {
+                Log.w(TAG, operation.mName + " rejected");
+                mStats.onFailed();
+                mCurrent = null;
+                operation.onFailed();
+                // The failure handling may have queued and issued an operation already
+                if (mCurrent == null) {
+                    issueNext();
+                }
+                return;
+            }
+            // Retry on the next turn first, the previous operation may just be finishing its callback
+            mStats.onBusy();
+            mHandler.sendEmptyMessageDelayed(mIssueWhat, operation.mBackoff);
+            operation.mBackoff = operation.mBackoff == 0L ? BUSY_BACKOFF_MIN : operation.mBackoff << 1;
+            return;
+        }
+
+        mStats.onIssued(SystemClock.elapsedRealtimeNanos() - operation.mQueueTime);
+        if (!operation.hasCallback()) {
+            mCurrent = null;
+            issueNext();
+            return;
+        }
+        mIssued = true;
+        mHandler.sendEmptyMessageDelayed(mTimeoutWhat, operation.getCallbackTimeout());
+    }
+
+    private void onCallbackTimeout() {
+        Operation operation = mCurrent;
+        if (operation == null || !mIssued) {
+            return;
+        }
+        Log.w(TAG, operation.mName + " callback not received in " + operation.getCallbackTimeout() + "ms");
+        mStats.onTimeout();
+        mCurrent = null;
+        operation.onFailed();
+        if (mCurrent == null) {
+            issueNext();
+        }
+    }
+}
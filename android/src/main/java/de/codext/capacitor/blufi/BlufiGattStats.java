@@ -0,0 +1,100 @@
+package de.codext.capacitor.blufi;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the GATT operations of a {@link BlufiClient}: how long they waited in the queue for the
+ * operation before them, and how often the stack rejected them as busy.
+ */
+public class BlufiGattStats {
+    private long mOperationCount;
+    private long mWaitNanos;
+    private long mMaxWaitNanos;
+    private long mBusyRetryCount;
+    private long mTimeoutCount;
+    private long mFailedCount;
+    private int mMaxQueueDepth;
+
+    synchronized void onIssued(long waitNanos) {
+        mOperationCount++;
+        mWaitNanos += waitNanos;
+        if (waitNanos > mMaxWaitNanos) {
+            mMaxWaitNanos = waitNanos;
+        }
+    }
+
+    synchronized void onQueued(int depth) {
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    synchronized void onBusy() {
+        mBusyRetryCount++;
+    }
+
+    synchronized void onTimeout() {
+        mTimeoutCount++;
+    }
+
+    synchronized void onFailed() {
+        mFailedCount++;
+    }
+
+    /**
+     * @return count of the issued operations
+     */
+    public synchronized long getOperationCount() {
+        return mOperationCount;
+    }
+
+    /**
+     * @return average time in microseconds from queueing an operation until it was issued
+     */
+    public synchronized double getAverageWaitMicros() {
+        return mOperationCount > 0 ? mWaitNanos / 1000d / mOperationCount : 0;
+    }
+
+    /**
+     * @return longest time in microseconds from queueing an operation until it was issued
+     */
+    public synchronized double getMaxWaitMicros() {
+        return mMaxWaitNanos / 1000d;
+    }
+
+    /**
+     * @return times an operation was rejected because Bluetooth was busy and retried
+     */
+    public synchronized long getBusyRetryCount() {
+        return mBusyRetryCount;
+    }
+
+    /**
+     * @return operations whose callback did not arrive in time, the next one was issued anyway
+     */
+    public synchronized long getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * @return operations given up after being rejected by every retry
+     */
+    public synchronized long getFailedCount() {
+        return mFailedCount;
+    }
+
+    /**
+     * @return most operations waiting in the queue at once
+     */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+                "operations=%d, avgWait=%.1fus, maxWait=%.1fus, busyRetries=%d, timeouts=%d, failed=%d, maxDepth=%d",
+                mOperationCount, getAverageWaitMicros(), getMaxWaitMicros(), mBusyRetryCount, mTimeoutCount,
+                mFailedCount, mMaxQueueDepth);
+    }
+}
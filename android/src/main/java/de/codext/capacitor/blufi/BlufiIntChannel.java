@@ -0,0 +1,37 @@
+package de.codext.capacitor.blufi;
+
+/**
+ * {@link BlufiChannel} of int values, such as the sequences acked by the device.
+ */
+class BlufiIntChannel extends BlufiChannel {
+    private final int[] mValues;
+
+    BlufiIntChannel(int capacity) {
+        super(capacity);
+        mValues = new int[capacity()];
+    }
+
+    /**
+     * Producer side
+     *
+     * @return false if the channel is full
+     */
+    boolean offer(int value) {
+        int index = claim();
+        if (index < 0) {
+            return false;
+        }
+        mValues[index] = value;
+        publish();
+        return true;
+    }
+
+    /**
+     * Consumer side, only valid if the channel is not empty.
+     */
+    int poll() {
+        int value = mValues[peekIndex()];
+        release();
+        return value;
+    }
+}
@@ -0,0 +1,63 @@
+package de.codext.capacitor.blufi;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * Settings of the BLE link applied together: connection priority, preferred PHY, MTU and the
+ * smallest gap between posted frames.
+ * <p>
+ * The MTU is exchanged once per connection, so only the profile set when connecting decides it.
+ */
+public enum BlufiLinkProfile {
+    /**
+     * Shortest connection interval on the robust 1M PHY, for request and response traffic.
+     * The MTU keeps a frame within one link layer packet of 251 bytes.
+     */
+    LOW_LATENCY(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothDevice.PHY_LE_1M_MASK, 247, 0L),
+    /**
+     * Shortest connection interval on the 2M PHY if both ends support it, with the largest frames
+     */
+    BULK_THROUGHPUT(BluetoothGatt.CONNECTION_PRIORITY_HIGH, BluetoothDevice.PHY_LE_2M_MASK, 512, 0L),
+    /**
+     * Default connection interval on the 1M PHY, frames leave air time for other connections
+     */
+    BALANCED(BluetoothGatt.CONNECTION_PRIORITY_BALANCED, BluetoothDevice.PHY_LE_1M_MASK, 512, 2L);
+
+    private final int mConnectionPriority;
+    private final int mPhyMask;
+    private final int mMtu;
+    private final long mGapMin;
+
+    BlufiLinkProfile(int connectionPriority, int phyMask, int mtu, long gapMin) {
+        mConnectionPriority = connectionPriority;
+        mPhyMask = phyMask;
+        mMtu = mtu;
+        mGapMin = gapMin;
+    }
+
+    /**
+     * @return one of the BluetoothGatt.CONNECTION_PRIORITY values
+     */
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    /**
+     * @return the preferred PHY, one of the BluetoothDevice.PHY_LE masks
+     */
+    public int getPhyMask() {
+        return mPhyMask;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the smallest gap in milliseconds between posted frames
+     */
+    public long getGapMin() {
+        return mGapMin;
+    }
+}
@@ -9,7 +9,7 @@ public class BlufiLog {
     /**
      * @param cls The tag will use simple name of the cls.
      */
-    public BlufiLog(Class cls) {
+    public BlufiLog(Class<?> cls) {
         mTag = String.format("[%s]", cls.getSimpleName());
     }
 
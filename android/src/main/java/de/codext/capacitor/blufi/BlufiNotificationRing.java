@@ -0,0 +1,68 @@
+package de.codext.capacitor.blufi;
+
+/**
+ * {@link BlufiChannel} of received notifications, copied into preallocated slots of the largest Blufi frame.
+ * <p>
+ * If the decoder falls behind and the ring is full, the newest notifications are dropped. The count of
+ * dropped notifications is handed over with the next one accepted, so the decoder knows how many frame
+ * sequences to skip.
+ */
+class BlufiNotificationRing extends BlufiChannel {
+    static final int CAPACITY_DEFAULT = 64;
+    // Longer notifications carry nothing a Blufi frame can use
+    static final int SLOT_LENGTH = BlufiFrameEncoder.FRAME_LENGTH_MAX;
+
+    private final byte[][] mSlots;
+    private final int[] mLengths;
+    private final int[] mSkipped;
+
+    // Producer side
+    private int mDropped;
+
+    BlufiNotificationRing(int capacity) {
+        super(capacity);
+        mSlots = new byte[capacity()][SLOT_LENGTH];
+        mLengths = new int[capacity()];
+        mSkipped = new int[capacity()];
+    }
+
+    /**
+     * Producer side, copy a notification into the ring.
+     *
+     * @return false if the ring is full and the notification is dropped
+     */
+    boolean offer(byte[] data) {
+        int index = claim();
+        if (index < 0) {
+            mDropped++;
+            return false;
+        }
+        int length = data == null ? 0 : Math.min(data.length, SLOT_LENGTH);
+        if (length > 0) {
+            System.arraycopy(data, 0, mSlots[index], 0, length);
+        }
+        mLengths[index] = length;
+        mSkipped[index] = mDropped;
+        mDropped = 0;
+        publish();
+        return true;
+    }
+
+    /**
+     * Consumer side, the slot stays valid until {@link #release()}.
+     */
+    byte[] getSlot(int index) {
+        return mSlots[index];
+    }
+
+    int getLength(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * @return count of the notifications dropped right before the one in the slot
+     */
+    int getSkipped(int index) {
+        return mSkipped[index];
+    }
+}
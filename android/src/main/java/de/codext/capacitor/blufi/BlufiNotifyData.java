@@ -1,18 +1,23 @@
 package de.codext.capacitor.blufi;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 class BlufiNotifyData {
+    private static final int DATA_CAPACITY_DEFAULT = 256;
+
     private int mTypeValue;
     private int mPkgType;
     private int mSubType;
 
     private int mFrameCtrlValue;
 
-    private final ByteArrayOutputStream mDataOS;
+    private byte[] mData;
+    private ByteBuffer mDataBuffer;
+    private int mDataLength;
 
     BlufiNotifyData() {
-        mDataOS = new ByteArrayOutputStream();
+        mData = new byte[DATA_CAPACITY_DEFAULT];
+        mDataBuffer = ByteBuffer.wrap(mData);
     }
 
     int getType() {
@@ -47,11 +52,44 @@ class BlufiNotifyData {
         mFrameCtrlValue = frameCtrl;
     }
 
-    void addData(byte[] bytes, int offset) {
-        mDataOS.write(bytes, offset, bytes.length - offset);
+    /**
+     * Discard the data and make sure the buffer can hold the capacity without growing.
+     */
+    void reset(int capacity) {
+        if (capacity > mData.length) {
+            mData = new byte[Math.max(capacity, mData.length * 2)];
+            mDataBuffer = ByteBuffer.wrap(mData);
+        }
+        mDataLength = 0;
+    }
+
+    void addData(byte[] bytes, int offset, int length) {
+        if (mDataLength + length > mData.length) {
+            byte[] data = new byte[Math.max(mDataLength + length, mData.length * 2)];
+            System.arraycopy(mData, 0, data, 0, mDataLength);
+            mData = data;
+            mDataBuffer = ByteBuffer.wrap(mData);
+        }
+        System.arraycopy(bytes, offset, mData, mDataLength, length);
+        mDataLength += length;
+    }
+
+    int getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * @return a view of the data, which is valid until the next {@link #reset(int)}
+     */
+    ByteBuffer getData() {
+        mDataBuffer.clear();
+        mDataBuffer.limit(mDataLength);
+        return mDataBuffer;
     }
 
     byte[] getDataArray() {
-        return mDataOS.toByteArray();
+        byte[] result = new byte[mDataLength];
+        System.arraycopy(mData, 0, result, 0, mDataLength);
+        return result;
     }
 }
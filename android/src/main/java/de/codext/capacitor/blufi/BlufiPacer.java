@@ -0,0 +1,139 @@
+package de.codext.capacitor.blufi;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learn the smallest safe gap between posted frames of a device.
+ * <p>
+ * Frames are posted back to back while the link is healthy. Write timeouts, failed writes and sequence or
+ * checksum errors reported by the device double the gap, a write completion much slower than usual
+ * widens it by one step, and every run of healthy writes narrows it by one step again.
+ * The learned gap is kept per device address for the next connection. The link profile may keep the
+ * gap above a floor.
+ */
+class BlufiPacer {
+    private static final String TAG = "BlufiPacer";
+
+    static final long GAP_MIN = 0L;
+    static final long GAP_MAX = 40L;
+    private static final long GAP_STEP = 1L;
+    private static final long GAP_ERROR_MIN = 2L;
+
+    private static final int HEALTHY_WRITES_TO_DECREASE = 16;
+    private static final long LATENCY_SPIKE_FACTOR = 4L;
+    private static final long LATENCY_SPIKE_MIN_NANOS = 5_000_000L;
+    // Weight of a new latency sample is 1 / 2^LATENCY_EWMA_SHIFT
+    private static final int LATENCY_EWMA_SHIFT = 3;
+
+    private static final Map<String, Long> LEARNED_GAPS = new ConcurrentHashMap<>();
+
+    private final String mKey;
+
+    private volatile long mGap;
+    private volatile long mGapFloor = GAP_MIN;
+    private long mLastWriteTime;
+    private long mLatencyAvg = -1;
+    private int mHealthyWrites;
+
+    private volatile boolean mPrintDebug;
+
+    BlufiPacer(String key) {
+        mKey = key;
+        Long learned = key == null ? null : LEARNED_GAPS.get(key);
+        mGap = learned == null ? GAP_MIN : learned;
+    }
+
+    void printDebugLog(boolean enable) {
+        mPrintDebug = enable;
+    }
+
+    /**
+     * @return current gap in milliseconds between the completion of a write and the next write
+     */
+    long getGap() {
+        return Math.max(mGap, mGapFloor);
+    }
+
+    /**
+     * @return milliseconds until the gap since the last write completion passed, 0 if the next write may go now
+     */
+    synchronized long getDelay() {
+        long gap = getGap();
+        if (gap <= 0) {
+            return 0L;
+        }
+        return Math.max(gap - (SystemClock.elapsedRealtime() - mLastWriteTime), 0L);
+    }
+
+    /**
+     * Keep the gap at least this long, the learned gap applies again once the floor is lowered
+     *
+     * @param floor in milliseconds
+     */
+    synchronized void setGapFloor(long floor) {
+        mGapFloor = Math.min(Math.max(floor, GAP_MIN), GAP_MAX);
+    }
+
+    synchronized void onWriteComplete(long latencyNanos, boolean success) {
+        mLastWriteTime = SystemClock.elapsedRealtime();
+        if (!success) {
+            increase("write failed");
+            return;
+        }
+
+        if (mLatencyAvg < 0) {
+            mLatencyAvg = latencyNanos;
+        } else {
+            boolean spike = latencyNanos > mLatencyAvg * LATENCY_SPIKE_FACTOR
+                    && latencyNanos > LATENCY_SPIKE_MIN_NANOS;
+            mLatencyAvg += (latencyNanos - mLatencyAvg) >> LATENCY_EWMA_SHIFT;
+            if (spike) {
+                mHealthyWrites = 0;
+                setGap(mGap + GAP_STEP, "latency " + latencyNanos / 1000 + "us");
+                return;
+            }
+        }
+
+        if (++mHealthyWrites >= HEALTHY_WRITES_TO_DECREASE) {
+            mHealthyWrites = 0;
+            if (mGap > GAP_MIN) {
+                setGap(mGap - GAP_STEP, "healthy");
+            }
+        }
+    }
+
+    synchronized void onWriteTimeout() {
+        mLastWriteTime = SystemClock.elapsedRealtime();
+        increase("write timeout");
+    }
+
+    /**
+     * Device reported a sequence or checksum error, the frames arrived faster than it could handle
+     */
+    synchronized void onLinkError() {
+        increase("link error");
+    }
+
+    private void increase(String reason) {
+        mHealthyWrites = 0;
+        setGap(Math.max(mGap * 2, GAP_ERROR_MIN), reason);
+    }
+
+    private void setGap(long gap, String reason) {
+        gap = Math.min(Math.max(gap, GAP_MIN), GAP_MAX);
+        if (gap == mGap) {
+            return;
+        }
+        if (mPrintDebug) {
+            Log.d(TAG, "gap " + mGap + "ms -> " + gap + "ms, " + reason);
+        }
+        mGap = gap;
+        if (mKey != null) {
+            LEARNED_GAPS.put(mKey, gap);
+        }
+    }
+}
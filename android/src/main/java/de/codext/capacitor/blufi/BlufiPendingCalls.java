@@ -0,0 +1,134 @@
+package de.codext.capacitor.blufi;
+
+import android.os.Handler;
+
+import com.getcapacitor.PluginCall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The plugin calls of one device waiting for a result of its {@link BlufiClient}, keyed by request ID.
+ * <p>
+ * Each call gets a listener of its own, so concurrent calls of the same operation are resolved in
+ * order instead of overwriting each other. An entry settles exactly once: by its result, by its
+ * timeout, or rejected when the device disconnects. Results arriving after that are dropped.
+ */
+class BlufiPendingCalls {
+    interface Resolver<T> {
+        /**
+         * Settle the call with the result of its request
+         */
+        void resolve(PluginCall call, int status, T result);
+    }
+
+    private final BlufiClient mClient;
+    private final Handler mHandler;
+    private final BlufiLog mLog = new BlufiLog(getClass());
+
+    private final Map<Long, Entry<?>> mEntries = new LinkedHashMap<>();
+    private long mNextRequestId = 1;
+
+    /**
+     * @param handler runs the timeouts
+     */
+    BlufiPendingCalls(BlufiClient client, Handler handler) {
+        mClient = client;
+        mHandler = handler;
+    }
+
+    /**
+     * Add a call, pass the returned listener along with the request of the call.
+     *
+     * @param operation the kind of the request, for logs and {@link #count(String)}
+     * @param timeout   in milliseconds, the call is rejected if the result does not arrive in time
+     */
+    synchronized <T> Entry<T> add(String operation, PluginCall call, long timeout, Resolver<T> resolver) {
+        Entry<T> entry = new Entry<>(mNextRequestId++, operation, call, resolver);
+        mEntries.put(entry.mRequestId, entry);
+        if (timeout > 0) {
+            mHandler.postDelayed(entry.mTimeoutTask, timeout);
+        }
+        return entry;
+    }
+
+    /**
+     * @return count of the pending calls of the operation
+     */
+    synchronized int count(String operation) {
+        int count = 0;
+        for (Entry<?> entry : mEntries.values()) {
+            if (entry.mOperation.equals(operation)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Reject all pending calls, their requests are dropped.
+     */
+    void rejectAll(String message) {
+        List<Entry<?>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.values());
+        }
+        for (Entry<?> entry : entries) {
+            entry.reject(message);
+        }
+    }
+
+    private synchronized boolean remove(Entry<?> entry) {
+        return mEntries.remove(entry.mRequestId) != null;
+    }
+
+    class Entry<T> extends BlufiResultListener<T> {
+        private final long mRequestId;
+        private final String mOperation;
+        private final PluginCall mCall;
+        private final Resolver<T> mResolver;
+        private final Runnable mTimeoutTask = () -> reject("Timeout");
+
+        private Entry(long requestId, String operation, PluginCall call, Resolver<T> resolver) {
+            mRequestId = requestId;
+            mOperation = operation;
+            mCall = call;
+            mResolver = resolver;
+        }
+
+        long getRequestId() {
+            return mRequestId;
+        }
+
+        @Override
+        void onClosed() {
+            reject("Disconnected");
+        }
+
+        @Override
+        void onResult(int status, T result) {
+            if (!remove(this)) {
+                mLog.w("Drop stale result of " + mOperation + " #" + mRequestId);
+                return;
+            }
+            mHandler.removeCallbacks(mTimeoutTask);
+            mResolver.resolve(mCall, status, result);
+        }
+
+        void reject(String message) {
+            if (!remove(this)) {
+                return;
+            }
+            mHandler.removeCallbacks(mTimeoutTask);
+            mClient.cancel(this);
+            mLog.w(mOperation + " #" + mRequestId + " rejected: " + message);
+            mCall.reject(message);
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.RequiresApi;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
@@ -33,21 +34,27 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
-import de.codext.capacitor.blufi.constants.BlufiConstants;
 import de.codext.capacitor.blufi.params.BlufiConfigureParams;
 import de.codext.capacitor.blufi.params.BlufiParameter;
 import de.codext.capacitor.blufi.response.BlufiScanResult;
 import de.codext.capacitor.blufi.response.BlufiStatusResponse;
 import de.codext.capacitor.blufi.response.BlufiVersionResponse;
+import de.codext.capacitor.blufi.security.BlufiDHKeyPool;
+import de.codext.capacitor.blufi.security.BlufiDHNegotiator;
+import de.codext.capacitor.blufi.security.BlufiSecurityNegotiator;
+import de.codext.capacitor.blufi.security.BlufiX25519Negotiator;
 
 @CapacitorPlugin(
     name = "Blufi",
@@ -63,28 +70,44 @@ public class BlufiPlugin extends Plugin {
 
     private static final long TIMEOUT_SCAN = 4000L;
 
+    private static final String OP_SCAN_WIFI = "scanWifi";
+    private static final String OP_SET_WIFI = "setWifi";
+    private static final String OP_NETWORK_STATUS = "getNetworkStatus";
+
+    // Default timeouts of the pending calls, the device scans wifi for a few seconds
+    private static final long TIMEOUT_SCAN_WIFI = 20000L;
+    private static final long TIMEOUT_SET_WIFI = 10000L;
+    private static final long TIMEOUT_NETWORK_STATUS = 10000L;
+
+    private static final String SECURITY_DH = "dh";
+    private static final String SECURITY_X25519 = "x25519";
+
+    private static final String LINK_PROFILE_AUTO = "auto";
+    private static final String LINK_PROFILE_LOW_LATENCY = "low_latency";
+    private static final String LINK_PROFILE_BULK_THROUGHPUT = "bulk_throughput";
+    private static final String LINK_PROFILE_BALANCED = "balanced";
+
     private List<ScanResult> mBleList;
     private Map<String, ScanResult> mDeviceMap;
-    private ScanCallback mScanCallback;
-    private String mBlufiFilter;
+    private BlufiScanEngine mScanEngine;
     private volatile long mScanStartTime;
 
     private ExecutorService mThreadPool;
-    private Future mUpdateFuture;
+    private Future<?> mUpdateFuture;
 
-    private BluetoothDevice mDevice;
-    private BlufiClient mBlufiClient;
-    private volatile boolean mConnected;
+    private BlufiSessionManager mSessions;
+
+    // The batch is started by plugin calls, the scan timeout on the main thread and finished on its own thread
+    private final Object mBatchLock = new Object();
+    private BlufiBatchProvisioner mBatch;
+    private PluginCall mBatchCall;
+    private volatile BlufiScanEngine mBatchScan;
+    private long mNextBatchId = 1;
 
     private Handler handler;
 
     private final BlufiLog mLog = new BlufiLog(getClass());
 
-    // Saved calls for async results
-    private PluginCall scanWifiCall;
-    private PluginCall setWifiCall;
-    private PluginCall networkStatusCall;
-
     @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
     @Override
     public void load() {
@@ -93,7 +116,12 @@ public class BlufiPlugin extends Plugin {
         mThreadPool = Executors.newSingleThreadExecutor();
         mBleList = new LinkedList<>();
         mDeviceMap = new HashMap<>();
-        mScanCallback = new ScanCallback();
+        mSessions = new BlufiSessionManager(
+                getConfig().getInt("maxConnections", BlufiSessionManager.MAX_SESSIONS_DEFAULT));
+
+        // Generate DH key pairs before the first connection, so security negotiation does not wait for them
+        BlufiDHKeyPool.getInstance().setUseEngine(getConfig().getBoolean("dhEngine", false));
+        BlufiDHKeyPool.getInstance().setDepth(getConfig().getInt("dhKeyPoolDepth", BlufiDHKeyPool.DEPTH_DEFAULT));
     }
 
     @PluginMethod
@@ -111,40 +139,47 @@ public class BlufiPlugin extends Plugin {
             return;
         }
 
+        if (mScanEngine != null) {
+            mScanEngine.stop();
+        }
         mDeviceMap.clear();
         mBleList.clear();
-        mBlufiFilter = filter;
+        BlufiScanMatcher matcher = new BlufiScanMatcher(TextUtils.isEmpty(filter)
+                ? Collections.<String>emptyList() : Collections.singletonList(filter));
+        long reportDelay = call.getLong("reportDelay", 0L);
         mScanStartTime = SystemClock.elapsedRealtime();
 
         mLog.d("Start scan ble");
-        scanner.startScan(null, new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build(),
-                mScanCallback);
+        mScanEngine = new BlufiScanEngine(adapter, scanner, matcher, reportDelay, this::onScanDevice);
+        mScanEngine.start(ScanSettings.SCAN_MODE_LOW_LATENCY);
 
         call.resolve();
     }
 
     @PluginMethod
     public void stopScan(PluginCall call) {
-        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-        if (adapter != null) {
-            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
-            if (scanner != null) {
-                scanner.stopScan(mScanCallback);
-            }
+        BlufiScanEngine engine = mScanEngine;
+        if (engine != null) {
+            engine.stop();
         }
-        
+
         mLog.d("Stop scan ble");
         
         JSObject ret = new JSObject();
         JSONArray scanResults = new JSONArray();
         for (ScanResult result : mBleList) {
             JSObject item = new JSObject();
-            item.put("name", result.getDevice().getName() != null ? result.getDevice().getName() : "Unknown");
+            String name = BlufiScanMatcher.getName(result);
+            item.put("name", name != null ? name : "Unknown");
             item.put("address", result.getDevice().getAddress());
             item.put("rssi", result.getRssi());
             scanResults.put(item);
         }
         ret.put("scanResult", scanResults);
+        if (engine != null) {
+            mLog.d("Scan " + engine.getStats());
+            ret.put("stats", makeScanStatsJson(engine));
+        }
         call.resolve(ret);
     }
 
@@ -156,169 +191,479 @@ public class BlufiPlugin extends Plugin {
             return;
         }
 
-        BluetoothDevice device = null;
-
-        if (mDeviceMap.containsKey(deviceId)) {
-            device = mDeviceMap.get(deviceId).getDevice();
-        } else {
-            try {
-                BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
-                if (adapter != null) {
-                    device = adapter.getRemoteDevice(deviceId);
-                }
-            } catch (IllegalArgumentException e) {
-                mLog.e("Invalid device address: " + deviceId);
-            }
+        BlufiSecurityNegotiator negotiator = createSecurityNegotiator(call.getString("security", SECURITY_DH));
+        if (negotiator == null) {
+            call.reject("Unsupported security: " + call.getString("security"));
+            return;
+        }
+        String linkProfile = call.getString("linkProfile", LINK_PROFILE_AUTO);
+        if (!isLinkProfile(linkProfile)) {
+            call.reject("Unsupported link profile: " + linkProfile);
+            return;
         }
 
-        if (device != null) {
-            connectDevice(device);
-            handler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    if (mConnected && mBlufiClient != null) {
-                        mBlufiClient.negotiateSecurity();
-                    }
-                }
-            }, 1000);
-            call.resolve();
-        } else {
+        BluetoothDevice device = getRemoteDevice(deviceId);
+        if (device == null) {
             call.reject("Device not found or invalid address");
+            return;
+        }
+
+        // Connecting again replaces the session of the device
+        BlufiSession previous = mSessions.remove(device.getAddress());
+        if (previous != null) {
+            previous.close();
+        }
+
+        if (mSessions.size() >= mSessions.getMaxSessions()) {
+            call.reject("Too many connections, at most " + mSessions.getMaxSessions());
+            return;
+        }
+        final BlufiSession session = createSession(device, negotiator, mThreadPool);
+        if (!mSessions.add(session)) {
+            session.close();
+            call.reject("Too many connections, at most " + mSessions.getMaxSessions());
+            return;
         }
+        // Before connecting, the profile decides the MTU requested
+        session.getClient().setLinkProfile(getLinkProfile(linkProfile));
+        session.getSetup().setListener(new BlufiConnectSetup.Listener() {
+            @Override
+            public void onNegotiate() {
+                if (session.isConnected()) {
+                    session.getClient().negotiateSecurity();
+                }
+            }
+        });
+        session.getSetup().start();
+        session.getClient().connect();
+        call.resolve();
     }
 
     @PluginMethod
     public void disconnectFromDevice(PluginCall call) {
-        disconnectGatt();
+        String deviceId = call.getString("deviceId");
+        if (deviceId == null) {
+            closeAllSessions();
+        } else {
+            BlufiSession session = mSessions.remove(deviceId);
+            if (session != null) {
+                session.close();
+            }
+        }
         call.resolve();
     }
 
     @PluginMethod
     public void resetPlugin(PluginCall call) {
-        disconnectGatt();
+        cancelBatch();
+        closeAllSessions();
         mDeviceMap.clear();
         mBleList.clear();
         call.resolve();
     }
 
+    @PluginMethod
+    public void setLinkProfile(PluginCall call) {
+        String linkProfile = call.getString("profile");
+        if (!isLinkProfile(linkProfile)) {
+            call.reject("Unsupported link profile: " + linkProfile);
+            return;
+        }
+        BlufiSession session = getSession(call);
+        if (session == null) {
+            return;
+        }
+        session.getClient().setLinkProfile(getLinkProfile(linkProfile));
+        JSObject ret = new JSObject();
+        ret.put("deviceId", session.getDeviceId());
+        ret.put("profile", linkProfile);
+        call.resolve(ret);
+    }
+
     @PluginMethod
     public void getDeviceInfo(PluginCall call) {
-        requestDeviceVersion();
+        BlufiSession session = getSession(call);
+        if (session == null) {
+            return;
+        }
+        session.getClient().requestDeviceVersion();
         // Status will be sent via event
         call.resolve();
     }
 
     @PluginMethod
     public void scanWifi(PluginCall call) {
-        mLog.d("scanWifi called, mBlufiClient=" + (mBlufiClient != null ? "exists" : "null") + ", mConnected=" + mConnected);
-        if (mBlufiClient == null) {
-            mLog.e("scanWifi failed: mBlufiClient is null");
-            call.reject("Not connected");
+        BlufiSession session = getSession(call);
+        if (session == null) {
+            mLog.e("scanWifi failed: no session");
             return;
         }
-        if (!mConnected) {
+        if (!session.isConnected()) {
             mLog.e("scanWifi failed: not connected");
-            call.reject("Not connected (mConnected=false)");
+            call.reject("Not connected");
             return;
         }
-        mLog.d("scanWifi: requesting device WiFi scan...");
-        scanWifiCall = call;
-        mBlufiClient.requestDeviceWifiScan();
+        mLog.d("scanWifi: requesting device WiFi scan of " + session.getDeviceId());
+        long timeout = call.getLong("timeout", TIMEOUT_SCAN_WIFI);
+        session.getClient().requestDeviceWifiScan(session.getPendingCalls().add(OP_SCAN_WIFI, call, timeout,
+                (pending, status, results) -> resolveScanWifi(session, pending, status, results)));
     }
 
     @PluginMethod
     public void setWifi(PluginCall call) {
-        if (mBlufiClient == null) {
-            call.reject("Not connected");
+        BlufiSession session = getSession(call);
+        if (session == null) {
             return;
         }
         String ssid = call.getString("ssid");
         String password = call.getString("password");
-        setWifiCall = call;
-        configure(ssid, password);
+        if (ssid == null) {
+            call.reject("SSID is required");
+            return;
+        }
+        long timeout = call.getLong("timeout", TIMEOUT_SET_WIFI);
+        configure(session, ssid, password, session.getPendingCalls().add(OP_SET_WIFI, call, timeout,
+                (pending, status, result) -> resolveSetWifi(session, pending, status)));
     }
 
     @PluginMethod
     public void getNetworkStatus(PluginCall call) {
-        if (mBlufiClient == null) {
-            call.reject("Not connected");
+        BlufiSession session = getSession(call);
+        if (session == null) {
             return;
         }
-        networkStatusCall = call;
-        mBlufiClient.requestDeviceStatus();
+        long timeout = call.getLong("timeout", TIMEOUT_NETWORK_STATUS);
+        session.getClient().requestDeviceStatus(session.getPendingCalls().add(OP_NETWORK_STATUS, call, timeout,
+                (pending, status, response) -> resolveNetworkStatus(session, pending, status, response)));
+    }
+
+    @PluginMethod
+    public void provisionBatch(final PluginCall call) {
+        final String ssid = call.getString("ssid");
+        final String password = call.getString("password", "");
+        if (ssid == null) {
+            call.reject("SSID is required");
+            return;
+        }
+        final String security = call.getString("security", SECURITY_DH);
+        if (createSecurityNegotiator(security) == null) {
+            call.reject("Unsupported security: " + security);
+            return;
+        }
+        final List<String> deviceIds = getStringList(call, "deviceIds");
+        final List<String> filters = getStringList(call, "filters");
+        if (deviceIds.isEmpty() && filters.isEmpty()) {
+            call.reject("Device IDs or filters are required");
+            return;
+        }
+        final List<BluetoothDevice> devices = new ArrayList<>();
+        // A device listed twice would hold two slots and fight itself for the connection
+        for (String deviceId : new LinkedHashSet<>(deviceIds)) {
+            BluetoothDevice device = BluetoothAdapter.checkBluetoothAddress(deviceId)
+                    ? getRemoteDevice(deviceId) : null;
+            if (device == null) {
+                call.reject("Invalid device address: " + deviceId);
+                return;
+            }
+            devices.add(device);
+        }
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter == null) {
+            call.reject("Bluetooth not supported");
+            return;
+        }
+        final BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+        if (!adapter.isEnabled() || scanner == null) {
+            call.reject("Bluetooth not enabled");
+            return;
+        }
+        // Claimed, scanning and started at once, so cancelBatch sees either no batch or all of it
+        synchronized (mBatchLock) {
+            if (mBatchCall != null) {
+                call.reject("A batch is running already");
+                return;
+            }
+            mBatchCall = call;
+            mBatch = null;
+            final long batchId = mNextBatchId++;
+
+            final int parallelism = Math.max(1, Math.min(mSessions.getMaxSessions(),
+                    call.getInt("parallelism", BlufiBatchProvisioner.PARALLELISM_DEFAULT)));
+            final int retries = Math.max(0, call.getInt("retries", BlufiBatchProvisioner.RETRIES_DEFAULT));
+            final long timeout = call.getLong("timeout", BlufiBatchProvisioner.TIMEOUT_DEFAULT);
+            final long scanTimeout = call.getLong("scanTimeout", TIMEOUT_SCAN);
+            final BatchHost host = new BatchHost(call, security);
+            if (filters.isEmpty()) {
+                startBatch(new BlufiBatchProvisioner(batchId, devices, ssid, password, parallelism, retries,
+                        timeout, host));
+                return;
+            }
+
+            final BlufiCandidatePool<BluetoothDevice> candidates = new BlufiCandidatePool<>();
+            // Results go to the candidates as they come, a report delay would hold back the next device
+            mBatchScan = new BlufiScanEngine(adapter, scanner, new BlufiScanMatcher(filters), 0L,
+                    (result, name) -> candidates.offer(result.getDevice().getAddress(), result.getDevice(),
+                            result.getRssi(), SystemClock.elapsedRealtime()));
+            mBatchScan.start(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            if (call.getBoolean("pipeline", false)) {
+                // Keep scanning while provisioning, the batch takes the next device as soon as a slot is free
+                BlufiBatchProvisioner batch = new BlufiBatchProvisioner(batchId, devices, ssid, password,
+                        parallelism, retries, timeout, host);
+                batch.setCandidates(candidates, call.getInt("maxDevices", 0), scanTimeout);
+                startBatch(batch);
+                return;
+            }
+
+            // Find the devices of the filters first
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mBatchLock) {
+                        if (mBatchCall != call || mBatch != null) {
+                            return;
+                        }
+                        stopBatchScan();
+                        for (String deviceId : deviceIds) {
+                            candidates.exclude(deviceId);
+                        }
+                        BluetoothDevice device;
+                        while ((device = candidates.poll(SystemClock.elapsedRealtime())) != null) {
+                            devices.add(device);
+                        }
+                        if (!devices.isEmpty()) {
+                            startBatch(new BlufiBatchProvisioner(batchId, devices, ssid, password, parallelism,
+                                    retries, timeout, host));
+                            return;
+                        }
+                        mBatchCall = null;
+                    }
+                    call.reject("No devices found");
+                }
+            }, scanTimeout);
+        }
+    }
+
+    /**
+     * Called with mBatchLock held
+     */
+    private void startBatch(BlufiBatchProvisioner batch) {
+        mLog.d("Provision batch " + batch.getBatchId() + ", parallelism " + batch.getParallelism());
+        mBatch = batch;
+        batch.start();
+    }
+
+    private void stopBatchScan() {
+        BlufiScanEngine scan = mBatchScan;
+        mBatchScan = null;
+        if (scan != null) {
+            scan.stop();
+            mLog.d("Batch scan " + scan.getStats());
+        }
     }
 
-    void connectDevice(BluetoothDevice device) {
-        mDevice = device;
-        if (mBlufiClient != null) {
-            mBlufiClient.close();
-            mBlufiClient = null;
+    private void cancelBatch() {
+        stopBatchScan();
+        PluginCall call;
+        synchronized (mBatchLock) {
+            if (mBatch != null) {
+                // Resolves the call with the summary, unless the batch finished already
+                mBatch.cancel();
+                return;
+            }
+            // Still scanning for the devices
+            call = mBatchCall;
+            mBatchCall = null;
         }
+        if (call != null) {
+            call.reject("Cancelled");
+        }
+    }
 
-        mBlufiClient = new BlufiClient(getContext(), mDevice);
-        mBlufiClient.setGattCallback(new GattCallback());
-        mBlufiClient.setBlufiCallback(new BlufiCallbackMain());
-        mBlufiClient.connect();
+    private List<String> getStringList(PluginCall call, String key) {
+        List<String> list = new ArrayList<>();
+        JSArray array = call.getArray(key);
+        if (array != null) {
+            for (int i = 0; i < array.length(); i++) {
+                String value = array.optString(i);
+                if (!TextUtils.isEmpty(value)) {
+                    list.add(value);
+                }
+            }
+        }
+        return list;
     }
 
-    private void disconnectGatt() {
-        if (mBlufiClient != null) {
-            mBlufiClient.requestCloseConnection();
-            mBlufiClient.close();
-            mBlufiClient = null;
+    private BluetoothDevice getRemoteDevice(String deviceId) {
+        ScanResult scanResult = mDeviceMap.get(deviceId);
+        if (scanResult != null) {
+            return scanResult.getDevice();
         }
-        mConnected = false;
+        try {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            if (adapter != null) {
+                return adapter.getRemoteDevice(deviceId);
+            }
+        } catch (IllegalArgumentException e) {
+            mLog.e("Invalid device address: " + deviceId);
+        }
+        return null;
     }
 
-    private void configure(String userName, String password) {
-        if (mBlufiClient != null) {
-            BlufiConfigureParams params = new BlufiConfigureParams();
-            params.setOpMode(1);
-            byte[] ssidBytes = userName.getBytes();
-            params.setStaSSIDBytes(ssidBytes);
-            params.setStaPassword(password);
-            mBlufiClient.configure(params);
+    /**
+     * Get the session of the deviceId of the call, or the only one if the call has no deviceId.
+     * Rejects the call if there is no such session.
+     */
+    private BlufiSession getSession(PluginCall call) {
+        String deviceId = call.getString("deviceId");
+        BlufiSession session = deviceId != null ? mSessions.get(deviceId) : mSessions.getOnly();
+        if (session == null) {
+            if (deviceId == null && mSessions.size() > 1) {
+                call.reject("Device ID is required");
+            } else {
+                call.reject("Not connected");
+            }
         }
+        return session;
     }
 
-    private void requestDeviceVersion() {
-        if (mBlufiClient != null) {
-            mBlufiClient.requestDeviceVersion();
+    private void resolveScanWifi(BlufiSession session, PluginCall call, int status, List<BlufiScanResult> results) {
+        mLog.d("onDeviceScanResult called, status=" + status + ", results count=" + (results != null ? results.size() : 0));
+        JSObject ret = new JSObject();
+        JSONArray list = new JSONArray();
+        if (status == BlufiCallback.STATUS_SUCCESS) {
+            mLog.d("onDeviceScanResult: scan successful, building result list...");
+            for (BlufiScanResult scanResult : results) {
+                mLog.d("onDeviceScanResult: found SSID=" + scanResult.getSsid() + ", RSSI=" + scanResult.getRssi());
+                list.put(scanResult.getSsid());
+            }
+        } else {
+            mLog.e("onDeviceScanResult: scan failed with status=" + status);
         }
+        ret.put("deviceId", session.getDeviceId());
+        ret.put("list", list);
+        mLog.d("onDeviceScanResult: resolving call with " + list.length() + " networks");
+        call.resolve(ret);
+
+        session.getCallback().onDeviceScanResult(session.getClient(), status, results);
     }
 
-    private void postCustomData(String dataString) {
-        if (mBlufiClient != null && dataString != null) {
-            mBlufiClient.postCustomData(dataString.getBytes());
+    private void resolveSetWifi(BlufiSession session, PluginCall call, int status) {
+        JSObject ret = new JSObject();
+        ret.put("deviceId", session.getDeviceId());
+        if (status == BlufiCallback.STATUS_SUCCESS) {
+            ret.put("success", true);
+            ret.put("message", "Configuration sent");
+        } else {
+            ret.put("success", false);
+            ret.put("message", "Failed to send configuration");
         }
+        call.resolve(ret);
+
+        session.getCallback().onPostConfigureParams(session.getClient(), status);
     }
 
-    private void onGattConnected() {
-        mConnected = true;
+    private void resolveNetworkStatus(BlufiSession session, PluginCall call, int status,
+                                      BlufiStatusResponse response) {
+        JSObject ret = new JSObject();
+        ret.put("deviceId", session.getDeviceId());
+        if (status == BlufiCallback.STATUS_SUCCESS) {
+            ret.put("connected", response.isStaConnectWifi());
+            ret.put("status", "Connected"); // Simplified
+        } else {
+            ret.put("connected", false);
+            ret.put("status", "Error");
+        }
+        call.resolve(ret);
+
+        session.getCallback().onDeviceStatusResponse(session.getClient(), status, response);
     }
 
-    private void onGattDisconnected() {
-        mConnected = false;
-        if (scanWifiCall != null) {
-            scanWifiCall.reject("Disconnected");
-            scanWifiCall = null;
+    private BlufiSecurityNegotiator createSecurityNegotiator(String security) {
+        if (SECURITY_DH.equals(security)) {
+            return new BlufiDHNegotiator();
+        } else if (SECURITY_X25519.equals(security)) {
+            return new BlufiX25519Negotiator();
         }
-        if (setWifiCall != null) {
-            setWifiCall.reject("Disconnected");
-            setWifiCall = null;
+        return null;
+    }
+
+    private static boolean isLinkProfile(String name) {
+        return LINK_PROFILE_AUTO.equals(name) || getLinkProfile(name) != null;
+    }
+
+    /**
+     * @return null for the automatic profile or an unknown name
+     */
+    private static BlufiLinkProfile getLinkProfile(String name) {
+        if (LINK_PROFILE_LOW_LATENCY.equals(name)) {
+            return BlufiLinkProfile.LOW_LATENCY;
+        } else if (LINK_PROFILE_BULK_THROUGHPUT.equals(name)) {
+            return BlufiLinkProfile.BULK_THROUGHPUT;
+        } else if (LINK_PROFILE_BALANCED.equals(name)) {
+            return BlufiLinkProfile.BALANCED;
         }
-        if (networkStatusCall != null) {
-            networkStatusCall.reject("Disconnected");
-            networkStatusCall = null;
+        return null;
+    }
+
+    BlufiSession createSession(BluetoothDevice device, BlufiSecurityNegotiator negotiator,
+                               Executor callbackExecutor) {
+        BlufiClient client = new BlufiClient(getContext(), device);
+        BlufiConnectSetup setup = new BlufiConnectSetup();
+        BlufiCallbackMain callback = new BlufiCallbackMain(device.getAddress(), setup);
+        BlufiSession session = new BlufiSession(device, client, callback, setup, handler);
+        client.setGattCallback(new GattCallback(session));
+        client.setBlufiCallback(callback);
+        // The callbacks only notify listeners and resolve calls, keep them off the main thread
+        client.setCallbackExecutor(callbackExecutor);
+        client.setSecurityNegotiator(negotiator);
+        return session;
+    }
+
+    private void closeAllSessions() {
+        for (BlufiSession session : mSessions.removeAll()) {
+            session.close();
         }
     }
 
+    private void configure(BlufiSession session, String userName, String password,
+                           BlufiResultListener<Void> listener) {
+        BlufiConfigureParams params = new BlufiConfigureParams();
+        params.setOpMode(1);
+        byte[] ssidBytes = userName.getBytes();
+        params.setStaSSIDBytes(ssidBytes);
+        params.setStaPassword(password);
+        session.getClient().configure(params, listener);
+    }
+
+    private void onGattConnected(BlufiSession session) {
+        session.setConnected(true);
+    }
+
+    private void onGattDisconnected(final BlufiSession session) {
+        session.setConnected(false);
+        // Free the slot of the device, the client is closed off its own callback
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mSessions.remove(session)) {
+                    session.close();
+                }
+            }
+        });
+    }
+
     private void onGattServiceCharacteristicDiscovered() {
         // Implementation if needed
     }
 
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
     private class GattCallback extends BluetoothGattCallback {
+        private final BlufiSession mSession;
+
+        GattCallback(BlufiSession session) {
+            mSession = session;
+        }
+
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
             String devAddr = gatt.getDevice().getAddress();
@@ -327,31 +672,29 @@ public class BlufiPlugin extends Plugin {
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 switch (newState) {
                     case BluetoothProfile.STATE_CONNECTED:
-                        onGattConnected();
-                        notifyListeners("onBlufiEvent", makeJson("peripheral_connect", "1"));
+                        onGattConnected(mSession);
+                        notifyListeners("onBlufiEvent", makeJson(mSession.getDeviceId(), "peripheral_connect", "1"));
                         break;
                     case BluetoothProfile.STATE_DISCONNECTED:
                         gatt.close();
-                        onGattDisconnected();
-                        notifyListeners("onBlufiEvent", makeJson("peripheral_connect", "0"));
+                        onGattDisconnected(mSession);
+                        notifyListeners("onBlufiEvent", makeJson(mSession.getDeviceId(), "peripheral_connect", "0"));
                         break;
                 }
             } else {
                 gatt.close();
-                onGattDisconnected();
-                notifyListeners("onBlufiEvent", makeJson("peripheral_disconnect", "1"));
+                onGattDisconnected(mSession);
+                notifyListeners("onBlufiEvent", makeJson(mSession.getDeviceId(), "peripheral_disconnect", "1"));
             }
         }
 
         @Override
         public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            mLog.d(String.format(Locale.ENGLISH, "onMtuChanged status=%d, mtu=%d", status, mtu));
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                mBlufiClient.setPostPackageLengthLimit(20);
-            } else {
-                mBlufiClient.setPostPackageLengthLimit(20);
-            }
+            // The client sizes its packets by the MTU, stepping down if the device rejects them
+            mLog.d(String.format(Locale.ENGLISH, "onMtuChanged status=%d, mtu=%d, package length=%d",
+                    status, mtu, mSession.getClient().getPostPackageLength()));
             onGattServiceCharacteristicDiscovered();
+            mSession.getSetup().onMtuDone();
         }
 
         @Override
@@ -359,7 +702,7 @@ public class BlufiPlugin extends Plugin {
             mLog.d(String.format(Locale.ENGLISH, "onServicesDiscovered status=%d", status));
             if (status != BluetoothGatt.GATT_SUCCESS) {
                 gatt.disconnect();
-                notifyListeners("onBlufiEvent", makeJson("discover_services", "1"));
+                notifyListeners("onBlufiEvent", makeJson(mSession.getDeviceId(), "discover_services", "1"));
             }
         }
 
@@ -377,6 +720,14 @@ public class BlufiPlugin extends Plugin {
     }
 
     private class BlufiCallbackMain extends BlufiCallback {
+        private final String mDeviceId;
+        private final BlufiConnectSetup mSetup;
+
+        BlufiCallbackMain(String deviceId, BlufiConnectSetup setup) {
+            mDeviceId = deviceId;
+            mSetup = setup;
+        }
+
         @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN_MR2)
         @Override
         public void onGattPrepared(BlufiClient client, int status, BluetoothGatt gatt) {
@@ -393,145 +744,109 @@ public class BlufiPlugin extends Plugin {
             if (service == null) {
                 mLog.w("Discover service failed");
                 gatt.disconnect();
-                notifyListeners("onBlufiEvent", makeJson("discover_service", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "discover_service", "0"));
                 return;
             }
             if (writeChar == null) {
                 mLog.w("Get write characteristic failed");
                 gatt.disconnect();
-                notifyListeners("onBlufiEvent", makeJson("get_write_characteristic", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "get_write_characteristic", "0"));
                 return;
             }
             if (notifyChar == null) {
                 mLog.w("Get notification characteristic failed");
                 gatt.disconnect();
-                notifyListeners("onBlufiEvent", makeJson("get_notification_characteristic", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "get_notification_characteristic", "0"));
                 return;
             }
-            notifyListeners("onBlufiEvent", makeJson("discover_service", "1"));
+            if (status != STATUS_SUCCESS) {
+                mLog.w("Enable notification failed, status=" + status);
+                gatt.disconnect();
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "open_notification", "0"));
+                return;
+            }
+            notifyListeners("onBlufiEvent", makeJson(mDeviceId, "discover_service", "1"));
 
-            int mtu = BlufiConstants.DEFAULT_MTU_LENGTH;
+            // The MTU is requested from here on, the exchange may complete before requestMtu returns
+            mSetup.onPrepared();
+            int mtu = client.getLinkMtu();
             mLog.d("Request MTU " + mtu);
             boolean requestMtu = false;
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                requestMtu = gatt.requestMtu(mtu);
-                notifyListeners("onBlufiEvent", makeJson("request_mtu", "1"));
+                requestMtu = client.requestMtu(mtu);
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "request_mtu", "1"));
             }
             if (!requestMtu) {
                 mLog.w("Request mtu failed");
-                notifyListeners("onBlufiEvent", makeJson("request_mtu", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "request_mtu", "0"));
                 onGattServiceCharacteristicDiscovered();
+                mSetup.onMtuDone();
             }
         }
 
         @Override
         public void onNegotiateSecurityResult(BlufiClient client, int status) {
             mLog.d("onNegotiateSecurityResult: status=" + status + " (SUCCESS=" + STATUS_SUCCESS + ")");
+            mSetup.onNegotiated(status == STATUS_SUCCESS);
             if (status == STATUS_SUCCESS) {
                 mLog.d("onNegotiateSecurityResult: Security negotiation SUCCESSFUL - device ready for encrypted operations");
-                notifyListeners("onBlufiEvent", makeJson("negotiate_security", "1"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "negotiate_security", "1"));
+                notifyListeners("onBlufiEvent", makeSetupJson(mDeviceId, client, mSetup));
             } else {
                 mLog.e("onNegotiateSecurityResult: Security negotiation FAILED with status=" + status);
-                notifyListeners("onBlufiEvent", makeJson("negotiate_security", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "negotiate_security", "0"));
             }
         }
 
         @Override
         public void onPostConfigureParams(BlufiClient client, int status) {
-            if (setWifiCall != null) {
-                JSObject ret = new JSObject();
-                if (status == STATUS_SUCCESS) {
-                    ret.put("success", true);
-                    ret.put("message", "Configuration sent");
-                } else {
-                    ret.put("success", false);
-                    ret.put("message", "Failed to send configuration");
-                }
-                setWifiCall.resolve(ret);
-                setWifiCall = null;
-            }
-            
             if (status == STATUS_SUCCESS) {
-                notifyListeners("onBlufiEvent", makeJson("configure_params", "1"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "configure_params", "1"));
             } else {
-                notifyListeners("onBlufiEvent", makeJson("configure_params", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "configure_params", "0"));
             }
         }
 
         @Override
         public void onDeviceStatusResponse(BlufiClient client, int status, BlufiStatusResponse response) {
-            if (networkStatusCall != null) {
-                JSObject ret = new JSObject();
-                if (status == STATUS_SUCCESS) {
-                    ret.put("connected", response.isStaConnectWifi());
-                    ret.put("status", "Connected"); // Simplified
-                } else {
-                    ret.put("connected", false);
-                    ret.put("status", "Error");
-                }
-                networkStatusCall.resolve(ret);
-                networkStatusCall = null;
-            }
-
             if (status == STATUS_SUCCESS) {
-                notifyListeners("onBlufiEvent", makeJson("device_status", "1"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "device_status", "1"));
                 if (response.isStaConnectWifi()) {
-                    notifyListeners("onBlufiEvent", makeJson("device_wifi_connect", "1"));
+                    notifyListeners("onBlufiEvent", makeJson(mDeviceId, "device_wifi_connect", "1"));
                 } else {
-                    notifyListeners("onBlufiEvent", makeJson("device_wifi_connect", "0"));
+                    notifyListeners("onBlufiEvent", makeJson(mDeviceId, "device_wifi_connect", "0"));
                 }
             } else {
-                notifyListeners("onBlufiEvent", makeJson("device_status", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "device_status", "0"));
             }
         }
 
         @Override
         public void onDeviceScanResult(BlufiClient client, int status, List<BlufiScanResult> results) {
-            mLog.d("onDeviceScanResult called, status=" + status + ", results count=" + (results != null ? results.size() : 0));
-            if (scanWifiCall != null) {
-                JSObject ret = new JSObject();
-                JSONArray list = new JSONArray();
-                if (status == STATUS_SUCCESS) {
-                    mLog.d("onDeviceScanResult: scan successful, building result list...");
-                    for (BlufiScanResult scanResult : results) {
-                        mLog.d("onDeviceScanResult: found SSID=" + scanResult.getSsid() + ", RSSI=" + scanResult.getRssi());
-                        list.put(scanResult.getSsid());
-                    }
-                } else {
-                    mLog.e("onDeviceScanResult: scan failed with status=" + status);
-                }
-                ret.put("list", list);
-                mLog.d("onDeviceScanResult: resolving call with " + list.length() + " networks");
-                scanWifiCall.resolve(ret);
-                scanWifiCall = null;
-            } else {
-                mLog.w("onDeviceScanResult: scanWifiCall is null, cannot return result");
-            }
-
             if (status == STATUS_SUCCESS) {
                 for (BlufiScanResult scanResult : results) {
-                    notifyListeners("onBlufiEvent", makeWifiInfoJson(scanResult.getSsid(), scanResult.getRssi()));
+                    notifyListeners("onBlufiEvent", makeWifiInfoJson(mDeviceId, scanResult.getSsid(), scanResult.getRssi()));
                 }
             } else {
-                notifyListeners("onBlufiEvent", makeJson("wifi_info", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "wifi_info", "0"));
             }
         }
 
         @Override
         public void onDeviceVersionResponse(BlufiClient client, int status, BlufiVersionResponse response) {
             if (status == STATUS_SUCCESS) {
-                notifyListeners("onBlufiEvent", makeJson("device_version", response.getVersionString()));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "device_version", response.getVersionString()));
             } else {
-                notifyListeners("onBlufiEvent", makeJson("device_version", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "device_version", "0"));
             }
         }
 
         @Override
         public void onPostCustomDataResult(BlufiClient client, int status, byte[] data) {
             if (status == STATUS_SUCCESS) {
-                notifyListeners("onBlufiEvent", makeJson("post_custom_data", "1"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "post_custom_data", "1"));
             } else {
-                notifyListeners("onBlufiEvent", makeJson("post_custom_data", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "post_custom_data", "0"));
             }
         }
 
@@ -540,29 +855,25 @@ public class BlufiPlugin extends Plugin {
             if (status == STATUS_SUCCESS) {
                 String customStr = new String(data);
                 customStr = customStr.replace("\"", "\\\"");
-                notifyListeners("onBlufiEvent", makeJson("receive_device_custom_data", customStr));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "receive_device_custom_data", customStr));
             } else {
-                notifyListeners("onBlufiEvent", makeJson("receive_device_custom_data", "0"));
+                notifyListeners("onBlufiEvent", makeJson(mDeviceId, "receive_device_custom_data", "0"));
             }
         }
 
         @Override
         public void onError(BlufiClient client, int errCode) {
-            notifyListeners("onBlufiEvent", makeJson("receive_error_code", errCode + ""));
+            notifyListeners("onBlufiEvent", makeJson(mDeviceId, "receive_error_code", errCode + ""));
         }
     }
 
-    private JSObject makeJson(String command, String data) {
+    private JSObject makeJson(String deviceId, String command, String data) {
         try {
-            String address = "";
-            if (mDevice != null) {
-                address = mDevice.getAddress();
-            }
-
             JSONObject json = new JSONObject();
             json.put("key", command);
             json.put("value", data);
-            json.put("address", address);
+            json.put("address", deviceId);
+            json.put("deviceId", deviceId);
 
             return JSObject.fromJSONObject(json);
         } catch (JSONException e) {
@@ -571,14 +882,45 @@ public class BlufiPlugin extends Plugin {
         }
     }
 
+    private JSObject makeSetupJson(String deviceId, BlufiClient client, BlufiConnectSetup setup) {
+        JSObject json = makeJson(deviceId, "connection_ready", "1");
+        json.put("packageLength", client.getPostPackageLength());
+        json.put("payloadLength", client.getPostPayloadLength());
+        JSObject stages = new JSObject();
+        for (Map.Entry<String, Long> entry : setup.getDurations().entrySet()) {
+            stages.put(entry.getKey(), entry.getValue());
+        }
+        json.put("duration", setup.getElapsed());
+        json.put("stages", stages);
+        return json;
+    }
+
+    private JSObject makeScanStatsJson(BlufiScanEngine engine) {
+        BlufiScanStats stats = engine.getStats();
+        long now = SystemClock.elapsedRealtime();
+        JSObject json = new JSObject();
+        json.put("duration", stats.getDuration(now));
+        json.put("callbacks", stats.getCallbackCount());
+        json.put("results", stats.getResultCount());
+        json.put("matched", stats.getMatchedCount());
+        json.put("callbackRate", stats.getCallbackRate(now));
+        json.put("cpuTime", stats.getCpuMillis());
+        json.put("cpuUsage", stats.getCpuUsage(now));
+        json.put("offloadedFiltering", engine.isOffloadedFiltering());
+        json.put("batching", engine.isBatching());
+        return json;
+    }
+
     private JSObject makeScanDeviceJson(String address, String name, int rssi) {
         try {
             JSONObject json = new JSONObject();
             json.put("key", "ble_scan_result");
+            json.put("deviceId", address);
 
             JSONObject value = new JSONObject();
             value.put("address", address);
-            value.put("name", name);
+            // A device advertising the BluFi service only has no name
+            value.put("name", name != null ? name : JSONObject.NULL);
             value.put("rssi", rssi);
 
             json.put("value", value);
@@ -590,20 +932,16 @@ public class BlufiPlugin extends Plugin {
         }
     }
 
-    private JSObject makeWifiInfoJson(String ssid, int rssi) {
+    private JSObject makeWifiInfoJson(String deviceId, String ssid, int rssi) {
         try {
-            String address = "";
-            if (mDevice != null) {
-                address = mDevice.getAddress();
-            }
-
             JSONObject json = new JSONObject();
             json.put("key", "wifi_info");
+            json.put("deviceId", deviceId);
 
             JSONObject value = new JSONObject();
             value.put("ssid", ssid);
             value.put("rssi", rssi);
-            value.put("address", address);
+            value.put("address", deviceId);
 
             json.put("value", value);
 
@@ -614,67 +952,85 @@ public class BlufiPlugin extends Plugin {
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private class ScanCallback extends android.bluetooth.le.ScanCallback {
+    private void onScanDevice(ScanResult scanResult, String name) {
+        String address = scanResult.getDevice().getAddress();
+        mLog.d("BLE scan: " + address);
 
-        @Override
-        public void onScanFailed(int errorCode) {
-            super.onScanFailed(errorCode);
+        // Add to list if not already present (by address)
+        if (mDeviceMap.put(address, scanResult) == null) {
+            mBleList.add(scanResult);
+        }
+
+        notifyListeners("onBlufiEvent", makeScanDeviceJson(address, name, scanResult.getRssi()));
+    }
+
+    /**
+     * Opens the sessions of a batch among the other sessions of the plugin and reports its progress
+     */
+    private class BatchHost implements BlufiBatchProvisioner.Host {
+        private final PluginCall mCall;
+        private final String mSecurity;
+
+        BatchHost(PluginCall call, String security) {
+            mCall = call;
+            mSecurity = security;
         }
 
         @Override
-        public void onBatchScanResults(List<ScanResult> results) {
-            for (ScanResult result : results) {
-                onLeScan(result);
+        public BlufiSession openSession(BluetoothDevice device, Executor callbackExecutor) {
+            // The batch takes the device over from a connection of its own
+            BlufiSession previous = mSessions.remove(device.getAddress());
+            if (previous != null) {
+                previous.close();
+            }
+            if (mSessions.size() >= mSessions.getMaxSessions()) {
+                return null;
             }
+            BlufiSession session = createSession(device, createSecurityNegotiator(mSecurity), callbackExecutor);
+            if (!mSessions.add(session)) {
+                session.close();
+                return null;
+            }
+            BlufiScanEngine scan = mBatchScan;
+            if (scan != null) {
+                // The scan takes air time from the connections, keep its duty cycle low while provisioning
+                scan.start(ScanSettings.SCAN_MODE_LOW_POWER);
+            }
+            return session;
         }
 
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            onLeScan(result);
+        public void closeSession(BlufiSession session) {
+            mSessions.remove(session);
+            session.close();
         }
 
-        private void onLeScan(ScanResult scanResult) {
-            String name = scanResult.getDevice().getName();
-
-            if (!TextUtils.isEmpty(mBlufiFilter)) {
-                if (name == null || !name.toLowerCase().contains(mBlufiFilter.toLowerCase())) {
-                    return;
-                }
-            }
-
-            mLog.d("BLE scan: " + scanResult.getDevice().getAddress());
+        @Override
+        public void onProgress(JSObject progress) {
+            notifyListeners("onProvisionProgress", progress);
+        }
 
-            if (scanResult.getDevice().getName() != null) {
-                mDeviceMap.put(scanResult.getDevice().getAddress(), scanResult);
-                // Add to list if not already present (by address)
-                boolean exists = false;
-                for (ScanResult r : mBleList) {
-                    if (r.getDevice().getAddress().equals(scanResult.getDevice().getAddress())) {
-                        exists = true;
-                        break;
-                    }
-                }
-                if (!exists) {
-                    mBleList.add(scanResult);
+        @Override
+        public void onFinished(JSObject summary) {
+            stopBatchScan();
+            synchronized (mBatchLock) {
+                if (mBatchCall == mCall) {
+                    mBatchCall = null;
+                    mBatch = null;
                 }
-                
-                notifyListeners("onBlufiEvent", makeScanDeviceJson(
-                    scanResult.getDevice().getAddress(),
-                    scanResult.getDevice().getName(),
-                    scanResult.getRssi()
-                ));
             }
+            mCall.resolve(summary);
         }
     }
 
     @Override
     protected void handleOnDestroy() {
         super.handleOnDestroy();
-        if (mBlufiClient != null) {
-            mBlufiClient.close();
-            mBlufiClient = null;
+        if (mScanEngine != null) {
+            mScanEngine.stop();
         }
+        cancelBatch();
+        closeAllSessions();
         if (mThreadPool != null) {
             mThreadPool.shutdown();
         }
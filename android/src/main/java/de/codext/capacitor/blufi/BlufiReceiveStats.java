@@ -0,0 +1,74 @@
+package de.codext.capacitor.blufi;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the notifications received by a {@link BlufiClient} and queued for decoding.
+ */
+public class BlufiReceiveStats {
+    private final BlufiNotificationRing mRing;
+
+    // Written by the thread receiving the notifications only
+    private volatile long mNotificationCount;
+    private volatile long mDroppedCount;
+    private volatile int mMaxQueueDepth;
+
+    BlufiReceiveStats(BlufiNotificationRing ring) {
+        mRing = ring;
+    }
+
+    void onReceived(boolean queued) {
+        mNotificationCount++;
+        if (!queued) {
+            mDroppedCount++;
+            return;
+        }
+        int depth = mRing.size();
+        if (depth > mMaxQueueDepth) {
+            mMaxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * @return count of the received notifications, including the dropped ones
+     */
+    public long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    /**
+     * @return count of the notifications dropped because the decoding queue was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return count of the notifications waiting for decoding now
+     */
+    public int getQueueDepth() {
+        return mRing.size();
+    }
+
+    /**
+     * @return highest count of notifications which waited for decoding at once
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return count of notifications the decoding queue holds, more are dropped
+     */
+    public int getQueueCapacity() {
+        return mRing.capacity();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH,
+                "notifications=%d, dropped=%d, queueDepth=%d, maxQueueDepth=%d, capacity=%d",
+                getNotificationCount(), getDroppedCount(), getQueueDepth(), getMaxQueueDepth(),
+                getQueueCapacity());
+    }
+}
@@ -0,0 +1,31 @@
+package de.codext.capacitor.blufi;
+
+/**
+ * Receiver of the result of one {@link BlufiClient} request. The callback API and the future API
+ * both pass one along with each request.
+ */
+abstract class BlufiResultListener<T> {
+    private volatile boolean mCancelled;
+
+    /**
+     * Nobody waits for the result anymore, a request which has not been posted yet is skipped.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * The client closed before the result arrived.
+     */
+    void onClosed() {
+    }
+
+    /**
+     * @param status {@link BlufiCallback#STATUS_SUCCESS} or one of the error codes of {@link BlufiCallback}
+     */
+    abstract void onResult(int status, T result);
+}
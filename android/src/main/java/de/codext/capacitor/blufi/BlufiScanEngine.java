@@ -0,0 +1,170 @@
+package de.codext.capacitor.blufi;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Debug;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+
+import de.codext.capacitor.blufi.constants.BlufiConstants;
+
+/**
+ * Scan for BluFi devices with as much of the work as possible left to the Bluetooth controller.
+ * <p>
+ * Without name filters, if the controller filters, only advertisers of the BluFi service wake the app.
+ * A controller filter matches whole names only, so the name prefix is matched by the
+ * {@link BlufiScanMatcher} on every result anyway. Name filters are matched by the matcher alone, a device
+ * matching one does not need to advertise the service, whatever the controller supports.
+ * On controllers without offloaded filtering the matcher is the only filter.
+ * <p>
+ * With a report delay the controller collects the results for the window and delivers them in one
+ * callback, where it supports batching. A scan failing as unsupported is started again without either.
+ * <p>
+ * Results are delivered on the thread of the scan callbacks, the main thread.
+ */
+class BlufiScanEngine extends ScanCallback {
+    private static final String TAG = "BlufiScanEngine";
+
+    private static final int SCAN_MODE_NONE = Integer.MIN_VALUE;
+
+    interface Listener {
+        /**
+         * @param name the advertised name of the device, null if it advertises the BluFi service only
+         */
+        void onDevice(ScanResult result, String name);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final BluetoothLeScanner mScanner;
+    private final BlufiScanMatcher mMatcher;
+    private final Listener mListener;
+    private final long mReportDelay;
+    private final BlufiScanStats mStats;
+
+    private int mScanMode = SCAN_MODE_NONE;
+    private boolean mStopped;
+    private boolean mSoftwareOnly;
+    private boolean mOffloadedFiltering;
+    private boolean mBatching;
+
+    /**
+     * @param reportDelay milliseconds the controller collects results before delivering them, 0 for
+     *                    every result at once
+     */
+    BlufiScanEngine(BluetoothAdapter adapter, BluetoothLeScanner scanner, BlufiScanMatcher matcher,
+                    long reportDelay, Listener listener) {
+        mAdapter = adapter;
+        mScanner = scanner;
+        mMatcher = matcher;
+        mReportDelay = Math.max(0L, reportDelay);
+        mListener = listener;
+        mStats = new BlufiScanStats(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Start scanning, or restart it if the scan mode changes
+     */
+    synchronized void start(int scanMode) {
+        if (mStopped || scanMode == mScanMode) {
+            return;
+        }
+        if (mScanMode != SCAN_MODE_NONE) {
+            mScanner.stopScan(this);
+        }
+        mScanMode = scanMode;
+        startScan();
+    }
+
+    synchronized void stop() {
+        if (!mStopped && mScanMode != SCAN_MODE_NONE) {
+            if (mBatching) {
+                // Deliver the results of the open window
+                mScanner.flushPendingScanResults(this);
+            }
+            mScanner.stopScan(this);
+        }
+        mStopped = true;
+        mStats.onStopped(SystemClock.elapsedRealtime());
+    }
+
+    BlufiScanStats getStats() {
+        return mStats;
+    }
+
+    synchronized boolean isOffloadedFiltering() {
+        return mOffloadedFiltering;
+    }
+
+    synchronized boolean isBatching() {
+        return mBatching;
+    }
+
+    private void startScan() {
+        mOffloadedFiltering = !mSoftwareOnly && !mMatcher.hasFilters() && mAdapter.isOffloadedFilteringSupported();
+        mBatching = !mSoftwareOnly && mReportDelay > 0L && mAdapter.isOffloadedScanBatchingSupported();
+
+        List<ScanFilter> filters = null;
+        if (mOffloadedFiltering) {
+            filters = Collections.singletonList(new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(BlufiConstants.UUID_SERVICE))
+                    .build());
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(mScanMode);
+        if (mBatching) {
+            settings.setReportDelay(mReportDelay);
+        }
+        mScanner.startScan(filters, settings.build(), this);
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        synchronized (this) {
+            if (errorCode == SCAN_FAILED_FEATURE_UNSUPPORTED && !mSoftwareOnly && !mStopped
+                    && mScanMode != SCAN_MODE_NONE) {
+                Log.w(TAG, "Offloaded scan unsupported, filtering in software");
+                mSoftwareOnly = true;
+                mScanner.stopScan(this);
+                startScan();
+                return;
+            }
+        }
+        Log.w(TAG, "Scan failed: " + errorCode);
+    }
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+        long cpuTime = Debug.threadCpuTimeNanos();
+        int matched = onResult(result) ? 1 : 0;
+        mStats.onCallback(1, matched, Debug.threadCpuTimeNanos() - cpuTime);
+    }
+
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+        long cpuTime = Debug.threadCpuTimeNanos();
+        int matched = 0;
+        for (int i = 0; i < results.size(); i++) {
+            if (onResult(results.get(i))) {
+                matched++;
+            }
+        }
+        mStats.onCallback(results.size(), matched, Debug.threadCpuTimeNanos() - cpuTime);
+    }
+
+    private boolean onResult(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record == null || !mMatcher.match(record)) {
+            return false;
+        }
+        mListener.onDevice(result, record.getDeviceName());
+        return true;
+    }
+}
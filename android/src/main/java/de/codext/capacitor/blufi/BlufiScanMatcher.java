@@ -0,0 +1,103 @@
+package de.codext.capacitor.blufi;
+
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+
+import java.util.List;
+import java.util.UUID;
+
+import de.codext.capacitor.blufi.constants.BlufiConstants;
+
+/**
+ * Decide from the advertisement data alone whether a scanned device is a BluFi device.
+ * <p>
+ * The name and service UUIDs are parsed from the {@link ScanRecord} the scan delivers, unlike
+ * {@code BluetoothDevice.getName()} which asks the Bluetooth service for every call. The filters are
+ * compared ignoring case in place, so advertisers not matching are skipped without allocating.
+ * Without filters a device matches if it advertises the BluFi service, with or without a name, or its name
+ * starts with {@link BlufiConstants#BLUFI_PREFIX}.
+ */
+class BlufiScanMatcher {
+    private final String[] mFilters;
+
+    /**
+     * @param filters parts of the advertised name to match, any of them is enough
+     */
+    BlufiScanMatcher(List<String> filters) {
+        int count = 0;
+        String[] compiled = new String[filters == null ? 0 : filters.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            String filter = filters.get(i);
+            if (filter != null && !filter.isEmpty()) {
+                compiled[count++] = filter;
+            }
+        }
+        mFilters = new String[count];
+        System.arraycopy(compiled, 0, mFilters, 0, count);
+    }
+
+    /**
+     * @return false if the device is not a BluFi device, or its advertised name matches no filter
+     */
+    boolean match(ScanRecord record) {
+        String name = record.getDeviceName();
+        if (mFilters.length > 0) {
+            return name != null && matchFilters(name);
+        }
+        return hasBlufiService(record.getServiceUuids()) || name != null && isBlufiName(name);
+    }
+
+    /**
+     * @return true if devices are matched by name filters instead of being BluFi devices
+     */
+    boolean hasFilters() {
+        return mFilters.length > 0;
+    }
+
+    boolean matchFilters(String name) {
+        for (String filter : mFilters) {
+            if (containsIgnoreCase(name, filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isBlufiName(String name) {
+        return name.regionMatches(true, 0, BlufiConstants.BLUFI_PREFIX, 0, BlufiConstants.BLUFI_PREFIX.length());
+    }
+
+    private static boolean hasBlufiService(List<ParcelUuid> uuids) {
+        if (uuids == null) {
+            return false;
+        }
+        // Indexed, an iterator would be allocated for every advertisement
+        for (int i = 0; i < uuids.size(); i++) {
+            UUID uuid = uuids.get(i).getUuid();
+            if (BlufiConstants.UUID_SERVICE.equals(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean containsIgnoreCase(String text, String part) {
+        int last = text.length() - part.length();
+        for (int i = 0; i <= last; i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the advertised name, or the name known to the system for a device that did not advertise one
+     */
+    static String getName(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        String name = record != null ? record.getDeviceName() : null;
+        return name != null ? name : result.getDevice().getName();
+    }
+}
@@ -0,0 +1,99 @@
+package de.codext.capacitor.blufi;
+
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Statistics of a BLE scan: how often the stack woke the app, with how many results, how many of them
+ * were BluFi devices and how much CPU time their handling took.
+ */
+public class BlufiScanStats {
+    private final long mStartTime;
+    private long mStopTime = -1L;
+    private long mCallbackCount;
+    private long mResultCount;
+    private long mMatchedCount;
+    private long mCpuNanos;
+
+    /**
+     * @param startTime in milliseconds, of {@link SystemClock#elapsedRealtime()}
+     */
+    BlufiScanStats(long startTime) {
+        mStartTime = startTime;
+    }
+
+    synchronized void onCallback(int results, int matched, long cpuNanos) {
+        mCallbackCount++;
+        mResultCount += results;
+        mMatchedCount += matched;
+        mCpuNanos += cpuNanos;
+    }
+
+    synchronized void onStopped(long time) {
+        if (mStopTime < 0L) {
+            mStopTime = time;
+        }
+    }
+
+    /**
+     * @param now in milliseconds, of {@link SystemClock#elapsedRealtime()}
+     * @return milliseconds the scan ran, until now if it is still running
+     */
+    public synchronized long getDuration(long now) {
+        return (mStopTime < 0L ? now : mStopTime) - mStartTime;
+    }
+
+    /**
+     * @return times the stack called back with results
+     */
+    public synchronized long getCallbackCount() {
+        return mCallbackCount;
+    }
+
+    /**
+     * @return results delivered, a batched callback delivers several
+     */
+    public synchronized long getResultCount() {
+        return mResultCount;
+    }
+
+    /**
+     * @return results of BluFi devices
+     */
+    public synchronized long getMatchedCount() {
+        return mMatchedCount;
+    }
+
+    /**
+     * @return CPU time in milliseconds spent handling the callbacks
+     */
+    public synchronized double getCpuMillis() {
+        return mCpuNanos / 1000000d;
+    }
+
+    /**
+     * @return callbacks per second over the duration until now
+     */
+    public synchronized double getCallbackRate(long now) {
+        long duration = getDuration(now);
+        return duration > 0L ? mCallbackCount * 1000d / duration : 0;
+    }
+
+    /**
+     * @return share of the duration until now spent handling the callbacks, in percent
+     */
+    public synchronized double getCpuUsage(long now) {
+        long duration = getDuration(now);
+        return duration > 0L ? mCpuNanos / 10000d / duration : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = mStopTime < 0L ? SystemClock.elapsedRealtime() : mStopTime;
+        return String.format(Locale.ENGLISH,
+                "duration=%dms, callbacks=%d (%.1f/s), results=%d, matched=%d, cpu=%.1fms (%.2f%%)",
+                getDuration(now), mCallbackCount, getCallbackRate(now), mResultCount, mMatchedCount,
+                getCpuMillis(), getCpuUsage(now));
+    }
+}
@@ -0,0 +1,88 @@
+package de.codext.capacitor.blufi;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+/**
+ * The connection of the plugin to one device: its client, the callback emitting its events and the
+ * plugin calls waiting for its results.
+ */
+class BlufiSession {
+    private final BluetoothDevice mDevice;
+    private final BlufiClient mClient;
+    private final BlufiCallback mCallback;
+    private final BlufiPendingCalls mPendingCalls;
+    private final BlufiConnectSetup mSetup;
+
+    private volatile boolean mConnected;
+    private volatile boolean mClosed;
+
+    /**
+     * @param handler runs the timeouts of the pending calls and of the connection setup
+     */
+    BlufiSession(BluetoothDevice device, BlufiClient client, BlufiCallback callback, BlufiConnectSetup setup,
+                 Handler handler) {
+        mDevice = device;
+        mClient = client;
+        mCallback = callback;
+        mSetup = setup;
+        mPendingCalls = new BlufiPendingCalls(client, handler);
+    }
+
+    String getDeviceId() {
+        return mDevice.getAddress();
+    }
+
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    BlufiClient getClient() {
+        return mClient;
+    }
+
+    BlufiCallback getCallback() {
+        return mCallback;
+    }
+
+    BlufiPendingCalls getPendingCalls() {
+        return mPendingCalls;
+    }
+
+    BlufiConnectSetup getSetup() {
+        return mSetup;
+    }
+
+    boolean isConnected() {
+        return mConnected && !mClosed;
+    }
+
+    void setConnected(boolean connected) {
+        mConnected = connected;
+        if (connected) {
+            mSetup.onConnected();
+        } else {
+            mSetup.onDisconnected();
+            mPendingCalls.rejectAll("Disconnected");
+        }
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Ask the device to disconnect and close the client, the pending calls are rejected.
+     */
+    synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mConnected = false;
+        mClient.requestCloseConnection();
+        mClient.close();
+        mSetup.onDisconnected();
+        mPendingCalls.rejectAll("Disconnected");
+    }
+}
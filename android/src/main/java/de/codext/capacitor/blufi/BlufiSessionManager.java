@@ -0,0 +1,83 @@
+package de.codext.capacitor.blufi;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sessions of the plugin keyed by device address, at most {@link #getMaxSessions()} at once.
+ * <p>
+ * The Bluetooth controller of a phone keeps only a few LE links in parallel, and each of them gets a
+ * smaller share of the connection events, so the cap stays below what the controller allows.
+ */
+class BlufiSessionManager {
+    static final int MAX_SESSIONS_DEFAULT = 4;
+    // Most controllers do not keep more LE links at once
+    static final int MAX_SESSIONS_LIMIT = 7;
+
+    private final Map<String, BlufiSession> mSessions = new LinkedHashMap<>();
+    private final int mMaxSessions;
+
+    /**
+     * @param maxSessions range is 1 ~ {@link #MAX_SESSIONS_LIMIT}
+     */
+    BlufiSessionManager(int maxSessions) {
+        mMaxSessions = Math.max(1, Math.min(maxSessions, MAX_SESSIONS_LIMIT));
+    }
+
+    int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    synchronized int size() {
+        return mSessions.size();
+    }
+
+    synchronized BlufiSession get(String deviceId) {
+        return mSessions.get(deviceId);
+    }
+
+    /**
+     * @return the session if there is exactly one, the device of the calls without a device ID
+     */
+    synchronized BlufiSession getOnly() {
+        return mSessions.size() == 1 ? mSessions.values().iterator().next() : null;
+    }
+
+    synchronized List<BlufiSession> getAll() {
+        return new ArrayList<>(mSessions.values());
+    }
+
+    /**
+     * @return false if the cap is reached or the device has a session already
+     */
+    synchronized boolean add(BlufiSession session) {
+        if (mSessions.size() >= mMaxSessions || mSessions.containsKey(session.getDeviceId())) {
+            return false;
+        }
+        mSessions.put(session.getDeviceId(), session);
+        return true;
+    }
+
+    /**
+     * Remove the session unless it has been replaced already
+     */
+    synchronized boolean remove(BlufiSession session) {
+        if (mSessions.get(session.getDeviceId()) != session) {
+            return false;
+        }
+        mSessions.remove(session.getDeviceId());
+        return true;
+    }
+
+    synchronized BlufiSession remove(String deviceId) {
+        return mSessions.remove(deviceId);
+    }
+
+    synchronized List<BlufiSession> removeAll() {
+        List<BlufiSession> sessions = new ArrayList<>(mSessions.values());
+        mSessions.clear();
+        return sessions;
+    }
+}
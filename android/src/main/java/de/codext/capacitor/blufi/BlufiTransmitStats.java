@@ -0,0 +1,91 @@
+package de.codext.capacitor.blufi;
+
+import java.util.Locale;
+
+/**
+ * Statistics of the data posted by a {@link BlufiClient}.
+ */
+public class BlufiTransmitStats {
+    private static final double NANOS_PER_SECOND = 1_000_000_000d;
+
+    private long mMessageCount;
+    private long mFrameCount;
+    private long mDataBytes;
+    private long mFrameBytes;
+    private long mElapsedNanos;
+    private long mBusyRetryCount;
+
+    private long mLastDataBytes;
+    private long mLastElapsedNanos;
+
+    synchronized void onPosted(int frames, int dataBytes, int frameBytes, long elapsedNanos) {
+        mMessageCount++;
+        mFrameCount += frames;
+        mDataBytes += dataBytes;
+        mFrameBytes += frameBytes;
+        mElapsedNanos += elapsedNanos;
+        mLastDataBytes = dataBytes;
+        mLastElapsedNanos = elapsedNanos;
+    }
+
+    synchronized void onWriteBusy() {
+        mBusyRetryCount++;
+    }
+
+    /**
+     * @return count of the posted messages
+     */
+    public synchronized long getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * @return count of the posted frames, a fragmented message posts several frames
+     */
+    public synchronized long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return posted data bytes, excluding frame header, fragment length and checksum
+     */
+    public synchronized long getDataBytes() {
+        return mDataBytes;
+    }
+
+    /**
+     * @return posted frame bytes
+     */
+    public synchronized long getFrameBytes() {
+        return mFrameBytes;
+    }
+
+    /**
+     * @return times a write was rejected because Bluetooth was busy and retried after backoff
+     */
+    public synchronized long getBusyRetryCount() {
+        return mBusyRetryCount;
+    }
+
+    /**
+     * @return average data throughput of all posted messages in bytes per second
+     */
+    public synchronized double getThroughput() {
+        return mElapsedNanos > 0 ? mDataBytes * NANOS_PER_SECOND / mElapsedNanos : 0;
+    }
+
+    /**
+     * @return data throughput of the last posted message in bytes per second
+     */
+    public synchronized double getLastThroughput() {
+        return mLastElapsedNanos > 0 ? mLastDataBytes * NANOS_PER_SECOND / mLastElapsedNanos : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH,
+                "messages=%d, frames=%d, dataBytes=%d, frameBytes=%d, busyRetries=%d, throughput=%.1fB/s, last=%.1fB/s",
+                mMessageCount, mFrameCount, mDataBytes, mFrameBytes, mBusyRetryCount,
+                getThroughput(), getLastThroughput());
+    }
+}
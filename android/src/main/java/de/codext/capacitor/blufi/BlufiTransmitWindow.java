@@ -0,0 +1,53 @@
+package de.codext.capacitor.blufi;
+
+/**
+ * The sequences of the posted frames which are still waiting for device ack, oldest first.
+ */
+class BlufiTransmitWindow {
+    static final int SIZE_MIN = 1;
+    static final int SIZE_MAX = 32;
+    static final int SIZE_DEFAULT = 4;
+
+    private final int[] mSequences = new int[SIZE_MAX];
+    private int mHead;
+    private int mCount;
+    private int mSize = SIZE_DEFAULT;
+
+    void setSize(int size) {
+        mSize = Math.min(Math.max(size, SIZE_MIN), SIZE_MAX);
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    boolean isFull() {
+        return mCount >= mSize;
+    }
+
+    boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    void add(int sequence) {
+        mSequences[(mHead + mCount) % SIZE_MAX] = sequence;
+        mCount++;
+    }
+
+    /**
+     * Remove the oldest sequence
+     *
+     * @return the oldest sequence
+     */
+    int poll() {
+        int sequence = mSequences[mHead];
+        mHead = (mHead + 1) % SIZE_MAX;
+        mCount--;
+        return sequence;
+    }
+
+    void clear() {
+        mHead = 0;
+        mCount = 0;
+    }
+}
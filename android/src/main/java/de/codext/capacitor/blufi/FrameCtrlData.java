@@ -15,24 +15,40 @@ class FrameCtrlData {
         mValue = frameCtrlValue;
     }
 
-    private boolean check(int position) {
-        return ((mValue >> position) & 1) == 1;
+    private static boolean check(int value, int position) {
+        return ((value >> position) & 1) == 1;
     }
 
     boolean isEncrypted() {
-        return check(FRAME_CTRL_POSITION_ENCRYPTED);
+        return isEncrypted(mValue);
     }
 
     boolean isChecksum() {
-        return check(FRAME_CTRL_POSITION_CHECKSUM);
+        return isChecksum(mValue);
     }
 
     boolean isAckRequirement() {
-        return check(FRAME_CTRL_POSITION_REQUIRE_ACK);
+        return isAckRequirement(mValue);
     }
 
     boolean hasFrag() {
-        return check(FRAME_CTRL_POSITION_FRAG);
+        return hasFrag(mValue);
+    }
+
+    static boolean isEncrypted(int frameCtrlValue) {
+        return check(frameCtrlValue, FRAME_CTRL_POSITION_ENCRYPTED);
+    }
+
+    static boolean isChecksum(int frameCtrlValue) {
+        return check(frameCtrlValue, FRAME_CTRL_POSITION_CHECKSUM);
+    }
+
+    static boolean isAckRequirement(int frameCtrlValue) {
+        return check(frameCtrlValue, FRAME_CTRL_POSITION_REQUIRE_ACK);
+    }
+
+    static boolean hasFrag(int frameCtrlValue) {
+        return check(frameCtrlValue, FRAME_CTRL_POSITION_FRAG);
     }
 
     static int getFrameCTRLValue(boolean encrypted, boolean checksum, int direction, boolean requireAck, boolean frag) {
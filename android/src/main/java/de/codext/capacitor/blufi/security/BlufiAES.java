@@ -11,6 +11,12 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * AES with a transformation of choice, one array per call.
+ * <p>
+ * The client encrypts the frames with {@link BlufiAESEngine}. This class stays part of the public security
+ * API for apps using it directly.
+ */
 public class BlufiAES {
     private final byte[] mKey;
     private final byte[] mIV;
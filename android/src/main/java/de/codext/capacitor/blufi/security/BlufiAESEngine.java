@@ -0,0 +1,172 @@
+package de.codext.capacitor.blufi.security;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES engine of a Blufi session, created once the key is negotiated.
+ * <p>
+ * Blufi encrypts each frame with AES/CFB/NoPadding, using an IV whose first byte is the frame sequence.
+ * The engine keeps its ciphers and the IVs of all 256 sequences, so a frame costs a cipher re-init
+ * and one pass over the data.
+ * <p>
+ * Encryption and decryption use separate ciphers, each of them must be used by one thread at a time.
+ */
+public class BlufiAESEngine {
+    private static final String TRANSFORMATION = "AES/CFB/NoPadding";
+    private static final int SEQUENCE_COUNT = 256;
+    private static final int IV_LENGTH = 16;
+    // Data checksummed and encrypted per cipher update, a multiple of the AES block size
+    private static final int CHECKSUM_CHUNK = 64;
+
+    private final SecretKeySpec mKey;
+    private final IvParameterSpec[] mIVs;
+    private final Cipher mEncryptCipher;
+    private final Cipher mDecryptCipher;
+
+    public BlufiAESEngine(byte[] key) {
+        mKey = new SecretKeySpec(key, "AES");
+        mIVs = new IvParameterSpec[SEQUENCE_COUNT];
+        for (int sequence = 0; sequence < SEQUENCE_COUNT; sequence++) {
+            byte[] iv = new byte[IV_LENGTH];
+            iv[0] = (byte) sequence;
+            mIVs[sequence] = new IvParameterSpec(iv);
+        }
+
+        mEncryptCipher = createCipher();
+        mDecryptCipher = createCipher();
+    }
+
+    private Cipher createCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Encrypt the frame data in place.
+     *
+     * @return the number of bytes written, or -1 if failed
+     */
+    public int encrypt(int sequence, byte[] data, int offset, int length) {
+        try {
+            mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey, mIVs[sequence & 0xff]);
+            return mEncryptCipher.doFinal(data, offset, length, data, offset);
+        } catch (GeneralSecurityException | NullPointerException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Calculate the checksum of the frame data and encrypt it in place, in one pass over the data.
+     *
+     * @param crc the crc to continue, usually {@link BlufiCRC#seed(int, int)}
+     * @return the crc of the plain data, or -1 if failed
+     */
+    public int encryptWithChecksum(int sequence, int crc, byte[] data, int offset, int length) {
+        try {
+            mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey, mIVs[sequence & 0xff]);
+            int end = offset + length;
+            int position = offset;
+            int outPosition = offset;
+            while (end - position > CHECKSUM_CHUNK) {
+                crc = BlufiCRC.calcCRC(crc, data, position, CHECKSUM_CHUNK);
+                outPosition += mEncryptCipher.update(data, position, CHECKSUM_CHUNK, data, outPosition);
+                position += CHECKSUM_CHUNK;
+            }
+            crc = BlufiCRC.calcCRC(crc, data, position, end - position);
+            mEncryptCipher.doFinal(data, position, end - position, data, outPosition);
+            return crc;
+        } catch (GeneralSecurityException | NullPointerException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Encrypt the remaining bytes of input into output, they may be the same buffer.
+     *
+     * @return the number of bytes written, or -1 if failed
+     */
+    public int encrypt(int sequence, ByteBuffer input, ByteBuffer output) {
+        try {
+            mEncryptCipher.init(Cipher.ENCRYPT_MODE, mKey, mIVs[sequence & 0xff]);
+            return mEncryptCipher.doFinal(input, output);
+        } catch (GeneralSecurityException | NullPointerException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decrypt the frame data into output, they may be the same array.
+     *
+     * @return the number of bytes written, or -1 if failed
+     */
+    public int decrypt(int sequence, byte[] data, int offset, int length, byte[] output, int outputOffset) {
+        try {
+            mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey, mIVs[sequence & 0xff]);
+            return mDecryptCipher.doFinal(data, offset, length, output, outputOffset);
+        } catch (GeneralSecurityException | NullPointerException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decrypt the frame data into output and calculate the checksum of the plain data, in one pass over the data.
+     *
+     * @param crc the crc to continue, usually {@link BlufiCRC#seed(int, int)}
+     * @return the crc of the plain data, or -1 if failed
+     */
+    public int decryptWithChecksum(int sequence, int crc, byte[] data, int offset, int length,
+                                   byte[] output, int outputOffset) {
+        try {
+            mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey, mIVs[sequence & 0xff]);
+            int end = offset + length;
+            int position = offset;
+            int outPosition = outputOffset;
+            while (end - position > CHECKSUM_CHUNK) {
+                int written = mDecryptCipher.update(data, position, CHECKSUM_CHUNK, output, outPosition);
+                crc = BlufiCRC.calcCRC(crc, output, outPosition, written);
+                outPosition += written;
+                position += CHECKSUM_CHUNK;
+            }
+            int written = mDecryptCipher.doFinal(data, position, end - position, output, outPosition);
+            return BlufiCRC.calcCRC(crc, output, outPosition, written);
+        } catch (GeneralSecurityException | NullPointerException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+
+    /**
+     * Decrypt the remaining bytes of input into output, they may be the same buffer.
+     *
+     * @return the number of bytes written, or -1 if failed
+     */
+    public int decrypt(int sequence, ByteBuffer input, ByteBuffer output) {
+        try {
+            mDecryptCipher.init(Cipher.DECRYPT_MODE, mKey, mIVs[sequence & 0xff]);
+            return mDecryptCipher.doFinal(input, output);
+        } catch (GeneralSecurityException | NullPointerException e) {
+            e.printStackTrace();
+        }
+
+        return -1;
+    }
+}
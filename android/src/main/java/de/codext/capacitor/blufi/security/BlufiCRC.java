@@ -1,5 +1,7 @@
 package de.codext.capacitor.blufi.security;
 
+import java.nio.ByteBuffer;
+
 public class BlufiCRC {
     private static final int[] CRC_TB = {
             0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50a5, 0x60c6, 0x70e7, 0x8108, 0x9129, 0xa14a, 0xb16b, 0xc18c, 0xd1ad, 0xe1ce, 0xf1ef,
@@ -20,10 +22,74 @@ public class BlufiCRC {
             0xef1f, 0xff3e, 0xcf5d, 0xdf7c, 0xaf9b, 0xbfba, 0x8fd9, 0x9ff8, 0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0x0ed1, 0x1ef0
     };
 
+    // SLICE_TB[k][i] is the crc of byte i followed by k zero bytes, SLICE_TB[0] is CRC_TB
+    private static final int[][] SLICE_TB = new int[8][];
+    private static final int SLICE_LENGTH_MIN = 16;
+
+    static {
+        SLICE_TB[0] = CRC_TB;
+        for (int k = 1; k < SLICE_TB.length; k++) {
+            int[] prev = SLICE_TB[k - 1];
+            int[] table = new int[256];
+            for (int i = 0; i < 256; i++) {
+                table[i] = (CRC_TB[prev[i] >> 8] ^ (prev[i] << 8)) & 0xffff;
+            }
+            SLICE_TB[k] = table;
+        }
+    }
+
+    /**
+     * Calculate the crc of the frame sequence and data length, which start the checksum of a Blufi frame.
+     *
+     * @return the crc which can be continued with the data by {@link #calcCRC(int, byte[], int, int)}
+     */
+    public static int seed(int sequence, int dataLength) {
+        int crc = 0xffff;
+        crc = (CRC_TB[(crc >> 8) ^ (sequence & 0xff)] ^ (crc << 8)) & 0xffff;
+        crc = (CRC_TB[(crc >> 8) ^ (dataLength & 0xff)] ^ (crc << 8)) & 0xffff;
+        return (~crc) & 0xffff;
+    }
+
     public static int calcCRC(int crc, byte[] pByte) {
+        return calcCRC(crc, pByte, 0, pByte.length);
+    }
+
+    public static int calcCRC(int crc, byte[] pByte, int offset, int length) {
+        crc = (~crc) & 0xffff;
+        int i = offset;
+        int end = offset + length;
+        if (length >= SLICE_LENGTH_MIN) {
+            int[] t0 = SLICE_TB[0], t1 = SLICE_TB[1], t2 = SLICE_TB[2], t3 = SLICE_TB[3];
+            int[] t4 = SLICE_TB[4], t5 = SLICE_TB[5], t6 = SLICE_TB[6], t7 = SLICE_TB[7];
+            for (int sliceEnd = end - 7; i < sliceEnd; i += 8) {
+                crc = t7[((crc >> 8) ^ pByte[i]) & 0xff]
+                        ^ t6[(crc ^ pByte[i + 1]) & 0xff]
+                        ^ t5[pByte[i + 2] & 0xff]
+                        ^ t4[pByte[i + 3] & 0xff]
+                        ^ t3[pByte[i + 4] & 0xff]
+                        ^ t2[pByte[i + 5] & 0xff]
+                        ^ t1[pByte[i + 6] & 0xff]
+                        ^ t0[pByte[i + 7] & 0xff];
+            }
+        }
+        for (; i < end; i++) {
+            crc = CRC_TB[(crc >> 8) ^ (pByte[i] & 0xff)] ^ (crc << 8);
+            crc &= 0xffff;
+        }
+        return (~crc) & 0xffff;
+    }
+
+    /**
+     * Calculate the crc of the remaining bytes in the buffer, the position of the buffer is not changed.
+     */
+    public static int calcCRC(int crc, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return calcCRC(crc, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+
         crc = (~crc) & 0xffff;
-        for (byte aPByte : pByte) {
-            crc = CRC_TB[(crc >> 8) ^ (aPByte & 0xff)] ^ (crc << 8);
+        for (int i = buffer.position(), end = buffer.limit(); i < end; i++) {
+            crc = CRC_TB[(crc >> 8) ^ (buffer.get(i) & 0xff)] ^ (crc << 8);
             crc &= 0xffff;
         }
         return (~crc) & 0xffff;
@@ -11,17 +11,22 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.interfaces.DHPrivateKey;
 import javax.crypto.interfaces.DHPublicKey;
 import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPrivateKeySpec;
 import javax.crypto.spec.DHPublicKeySpec;
 
 public class BlufiDH {
     private static final String TAG = "BlufiDH";
 
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     private final BigInteger mP;
     private final BigInteger mG;
 
@@ -30,10 +35,22 @@ public class BlufiDH {
 
     private byte[] mSecretKey;
 
+    private final BlufiDHEngine mEngine;
+
     public BlufiDH(BigInteger p, BigInteger g, int length) {
+        this(p, g, length, false);
+    }
+
+    /**
+     * @param useEngine generate the keys with the pure Java {@link BlufiDHEngine} instead of the JCA provider,
+     *                  only applies to the Blufi group of {@link BlufiDHKeyPool}
+     */
+    public BlufiDH(BigInteger p, BigInteger g, int length, boolean useEngine) {
         mP = p;
         mG = g;
-        Key[] keys = generateKeys(p, g, length);
+        mEngine = useEngine && BlufiDHKeyPool.P.equals(p) && BlufiDHKeyPool.G.equals(g)
+                ? BlufiDHEngine.getBlufiGroup() : null;
+        Key[] keys = mEngine != null ? generateKeys(mEngine, length) : generateKeys(p, g, length);
         assert keys != null;
         mPrivateKey = (DHPrivateKey) keys[0];
         mPublicKey = (DHPublicKey) keys[1];
@@ -60,6 +77,17 @@ public class BlufiDH {
     }
 
     public void generateSecretKey(BigInteger y) {
+        if (mEngine != null) {
+            try {
+                byte[] secret = mEngine.generateSecret(y, mPrivateKey.getX()).toByteArray();
+                // Same as the provider secret with its leading zeros removed
+                mSecretKey = secret[0] == 0 ? Arrays.copyOfRange(secret, 1, secret.length) : secret;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, e);
+            }
+            return;
+        }
+
         try {
             DHPublicKeySpec pbks = new DHPublicKeySpec(y, mP, mG);
             KeyFactory keyFact = KeyFactory.getInstance("DH");
@@ -93,6 +121,24 @@ public class BlufiDH {
         }
     }
 
+    private static Key[] generateKeys(BlufiDHEngine engine, int length) {
+        try {
+            BigInteger x = engine.generatePrivateValue(length, RANDOM);
+            BigInteger y = engine.generatePublicValue(x);
+            KeyFactory keyFact = KeyFactory.getInstance("DH");
+
+            Key[] result = new Key[2];
+            result[0] = keyFact.generatePrivate(new DHPrivateKeySpec(x, engine.getP(), engine.getG()));
+            result[1] = keyFact.generatePublic(new DHPublicKeySpec(y, engine.getP(), engine.getG()));
+
+            return result;
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException | ClassCastException e) {
+            Log.w(TAG, e);
+
+            return null;
+        }
+    }
+
     private static Key[] generateKeys(BigInteger p, BigInteger g, int length) {
         try {
             // Use the values to generate a key pair
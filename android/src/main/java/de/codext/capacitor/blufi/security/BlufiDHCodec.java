@@ -0,0 +1,104 @@
+package de.codext.capacitor.blufi.security;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * Encode and decode the payloads of the Blufi DH negotiation.
+ * <p>
+ * Numbers are written as unsigned big-endian magnitudes, P and G with their own width and the public value
+ * with the width of P. The messages are laid out once per group, so encoding the public value of a
+ * negotiation is a copy of the template and one write of the key bytes.
+ */
+public class BlufiDHCodec {
+    public static final byte NEG_SECURITY_SET_TOTAL_LENGTH = 0x00;
+    public static final byte NEG_SECURITY_SET_ALL_DATA = 0x01;
+
+    // Each of P, G and the public value is prefixed with its 2 bytes length
+    private static final int FIELD_LENGTH = 2;
+
+    private final byte[] mLengthMessage;
+    private final byte[] mKeysTemplate;
+    private final int mKeyOffset;
+    private final int mKeyLength;
+
+    public BlufiDHCodec(BigInteger p, BigInteger g) {
+        int pLength = magnitudeLength(p);
+        int gLength = magnitudeLength(g);
+        mKeyLength = pLength;
+
+        int pgkLength = pLength + gLength + mKeyLength + FIELD_LENGTH * 3;
+        mLengthMessage = new byte[]{
+                NEG_SECURITY_SET_TOTAL_LENGTH,
+                (byte) (pgkLength >> 8 & 0xff),
+                (byte) (pgkLength & 0xff)
+        };
+
+        mKeysTemplate = new byte[1 + pgkLength];
+        mKeysTemplate[0] = NEG_SECURITY_SET_ALL_DATA;
+        int offset = writeField(p, pLength, mKeysTemplate, 1);
+        offset = writeField(g, gLength, mKeysTemplate, offset);
+        mKeysTemplate[offset] = (byte) (mKeyLength >> 8 & 0xff);
+        mKeysTemplate[offset + 1] = (byte) (mKeyLength & 0xff);
+        mKeyOffset = offset + FIELD_LENGTH;
+    }
+
+    /**
+     * @return the message announcing the length of the keys message, must not be modified
+     */
+    public byte[] getLengthMessage() {
+        return mLengthMessage;
+    }
+
+    /**
+     * @return the message carrying P, G and the public value
+     */
+    public byte[] encodeKeys(BigInteger publicValue) {
+        byte[] message = mKeysTemplate.clone();
+        writeUnsigned(publicValue, message, mKeyOffset, mKeyLength);
+        return message;
+    }
+
+    /**
+     * Read the public value sent by the device, an empty payload reads as 0.
+     */
+    public static BigInteger decodePublicValue(ByteBuffer data) {
+        byte[] magnitude = new byte[data.remaining()];
+        data.get(magnitude);
+        return new BigInteger(1, magnitude);
+    }
+
+    /**
+     * Write the unsigned big-endian magnitude of value, left padded with zeros to width.
+     *
+     * @throws IllegalArgumentException if value is negative or does not fit into width
+     */
+    public static void writeUnsigned(BigInteger value, byte[] out, int offset, int width) {
+        if (value.signum() < 0) {
+            throw new IllegalArgumentException("Negative value");
+        }
+        byte[] bytes = value.toByteArray();
+        // toByteArray has a leading zero byte if the highest bit of the magnitude is set
+        int start = bytes.length > 1 && bytes[0] == 0 ? 1 : 0;
+        int length = bytes.length - start;
+        if (length > width) {
+            throw new IllegalArgumentException("Value needs " + length + " bytes, width is " + width);
+        }
+        int padding = width - length;
+        for (int i = 0; i < padding; i++) {
+            out[offset + i] = 0;
+        }
+        System.arraycopy(bytes, start, out, offset + padding, length);
+    }
+
+    private static int magnitudeLength(BigInteger value) {
+        return Math.max((value.bitLength() + 7) / 8, 1);
+    }
+
+    private static int writeField(BigInteger value, int width, byte[] out, int offset) {
+        out[offset] = (byte) (width >> 8 & 0xff);
+        out[offset + 1] = (byte) (width & 0xff);
+        writeUnsigned(value, out, offset + FIELD_LENGTH, width);
+        return offset + FIELD_LENGTH + width;
+    }
+}
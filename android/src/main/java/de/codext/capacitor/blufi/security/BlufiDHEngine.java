@@ -0,0 +1,272 @@
+package de.codext.capacitor.blufi.security;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+/**
+ * Pure Java DH arithmetic for one fixed group, used by {@link BlufiDH} instead of the JCA provider.
+ * <p>
+ * Numbers are kept in Montgomery form as little-endian arrays of 32 bits words. Public values use a fixed-base
+ * window table of g^(2^(5i)) mod p, built once per group, so g^x costs about one multiplication per 5 bits of x
+ * instead of one squaring per bit.
+ * <p>
+ * The engine is immutable after construction and may be shared by threads.
+ */
+class BlufiDHEngine {
+    private static final long WORD_MASK = 0xffffffffL;
+    private static final int WINDOW_BITS = 5;
+    private static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+    private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+    private static volatile BlufiDHEngine sBlufiGroupEngine;
+
+    private final BigInteger mP;
+    private final BigInteger mG;
+    private final BigInteger mPMinus1;
+    private final int mWords;
+    private final int[] mModulus;
+    // -p^-1 mod 2^32
+    private final int mModulusInverse;
+    // R^2 mod p with R = 2^(32 * words), converts a number into Montgomery form
+    private final int[] mRSquare;
+    // g^(2^(WINDOW_BITS * i)) mod p in Montgomery form
+    private final int[][] mBaseTable;
+
+    /**
+     * @return the engine of the Blufi group, built on the first call
+     */
+    static BlufiDHEngine getBlufiGroup() {
+        BlufiDHEngine engine = sBlufiGroupEngine;
+        if (engine == null) {
+            synchronized (BlufiDHEngine.class) {
+                engine = sBlufiGroupEngine;
+                if (engine == null) {
+                    engine = new BlufiDHEngine(BlufiDHKeyPool.P, BlufiDHKeyPool.G);
+                    sBlufiGroupEngine = engine;
+                }
+            }
+        }
+        return engine;
+    }
+
+    BlufiDHEngine(BigInteger p, BigInteger g) {
+        if (!p.testBit(0) || p.bitLength() < 2) {
+            throw new IllegalArgumentException("Modulus must be odd");
+        }
+        mP = p;
+        mG = g;
+        mPMinus1 = p.subtract(BigInteger.ONE);
+        mWords = (p.bitLength() + 31) >>> 5;
+        mModulus = toWords(p);
+        mModulusInverse = -inverseWord(mModulus[0]);
+
+        BigInteger r = BigInteger.ONE.shiftLeft(mWords * 32);
+        mRSquare = toWords(r.multiply(r).mod(p));
+
+        int tableLength = (p.bitLength() + WINDOW_BITS - 1) / WINDOW_BITS;
+        mBaseTable = new int[tableLength][];
+        int[] scratch = new int[mWords + 2];
+        int[] base = toMontgomery(g.mod(p));
+        for (int i = 0; i < tableLength; i++) {
+            mBaseTable[i] = base.clone();
+            for (int s = 0; s < WINDOW_BITS; s++) {
+                multiply(base, base, scratch, base);
+            }
+        }
+    }
+
+    BigInteger getP() {
+        return mP;
+    }
+
+    BigInteger getG() {
+        return mG;
+    }
+
+    /**
+     * Generate a private value in [2, p - 2] with the given bit length, or shorter if p is shorter.
+     */
+    BigInteger generatePrivateValue(int length, SecureRandom random) {
+        int bits = Math.min(length, mP.bitLength());
+        BigInteger two = BigInteger.valueOf(2);
+        BigInteger x;
+        do {
+            x = new BigInteger(bits, random);
+        } while (x.compareTo(two) < 0 || x.compareTo(mPMinus1) >= 0);
+        return x;
+    }
+
+    /**
+     * @return g^x mod p
+     */
+    BigInteger generatePublicValue(BigInteger x) {
+        if (x.signum() < 0 || x.bitLength() > mBaseTable.length * WINDOW_BITS) {
+            throw new IllegalArgumentException("Private value out of range");
+        }
+
+        // Yao's method: g^x = prod over d of (prod of table[i] with digit i == d)^d
+        int[] digits = new int[mBaseTable.length];
+        for (int i = 0; i < digits.length; i++) {
+            int digit = 0;
+            for (int b = WINDOW_BITS - 1; b >= 0; b--) {
+                digit = (digit << 1) | (x.testBit(i * WINDOW_BITS + b) ? 1 : 0);
+            }
+            digits[i] = digit;
+        }
+
+        int[] scratch = new int[mWords + 2];
+        int[] product = null;
+        int[] result = null;
+        for (int d = WINDOW_MASK; d >= 1; d--) {
+            for (int i = 0; i < digits.length; i++) {
+                if (digits[i] == d) {
+                    if (product == null) {
+                        product = mBaseTable[i].clone();
+                    } else {
+                        multiply(product, mBaseTable[i], scratch, product);
+                    }
+                }
+            }
+            if (product != null) {
+                if (result == null) {
+                    result = product.clone();
+                } else {
+                    multiply(result, product, scratch, result);
+                }
+            }
+        }
+
+        return result == null ? BigInteger.ONE : fromMontgomery(result, scratch);
+    }
+
+    /**
+     * @return y^x mod p
+     * @throws IllegalArgumentException if y is not in [2, p - 2]
+     */
+    BigInteger generateSecret(BigInteger y, BigInteger x) {
+        if (y.compareTo(BigInteger.ONE) <= 0 || y.compareTo(mPMinus1) >= 0) {
+            throw new IllegalArgumentException("Invalid public value");
+        }
+        if (x.signum() <= 0) {
+            throw new IllegalArgumentException("Invalid private value");
+        }
+
+        // The base changes every time, so a table does not pay off. The platform modPow is a native or
+        // intrinsic Montgomery exponentiation, which measured faster than the Java multiplication here.
+        return y.modPow(x, mP);
+    }
+
+    private int[] toMontgomery(BigInteger value) {
+        int[] result = new int[mWords];
+        multiply(toWords(value), mRSquare, new int[mWords + 2], result);
+        return result;
+    }
+
+    private BigInteger fromMontgomery(int[] value, int[] scratch) {
+        int[] one = new int[mWords];
+        one[0] = 1;
+        int[] result = new int[mWords];
+        multiply(value, one, scratch, result);
+        return toBigInteger(result);
+    }
+
+    /**
+     * Montgomery multiplication out = a * b / R mod p, coarsely integrated operand scanning.
+     * out may be a or b.
+     *
+     * @param t scratch of at least words + 2
+     */
+    private void multiply(int[] a, int[] b, int[] t, int[] out) {
+        final int n = mWords;
+        final int[] m = mModulus;
+        for (int i = 0; i < n + 2; i++) {
+            t[i] = 0;
+        }
+
+        for (int i = 0; i < n; i++) {
+            long ai = a[i] & WORD_MASK;
+            long carry = 0;
+            for (int j = 0; j < n; j++) {
+                // At most (2^32 - 1)^2 + 2 * (2^32 - 1), which fits 64 bits unsigned
+                long sum = (t[j] & WORD_MASK) + ai * (b[j] & WORD_MASK) + carry;
+                t[j] = (int) sum;
+                carry = sum >>> 32;
+            }
+            long sum = (t[n] & WORD_MASK) + carry;
+            t[n] = (int) sum;
+            t[n + 1] = (int) (sum >>> 32);
+
+            long q = (t[0] * mModulusInverse) & WORD_MASK;
+            sum = (t[0] & WORD_MASK) + q * (m[0] & WORD_MASK);
+            carry = sum >>> 32;
+            for (int j = 1; j < n; j++) {
+                sum = (t[j] & WORD_MASK) + q * (m[j] & WORD_MASK) + carry;
+                t[j - 1] = (int) sum;
+                carry = sum >>> 32;
+            }
+            sum = (t[n] & WORD_MASK) + carry;
+            t[n - 1] = (int) sum;
+            t[n] = t[n + 1] + (int) (sum >>> 32);
+        }
+
+        reduceOnce(t, 0, t[n] != 0, out);
+    }
+
+    /**
+     * Copy the words of t from offset to out, subtracting p once if they are not less than p.
+     */
+    private void reduceOnce(int[] t, int offset, boolean overflow, int[] out) {
+        final int n = mWords;
+        final int[] m = mModulus;
+        if (overflow || compare(t, offset, m, n) >= 0) {
+            long borrow = 0;
+            for (int j = 0; j < n; j++) {
+                long diff = (t[offset + j] & WORD_MASK) - (m[j] & WORD_MASK) - borrow;
+                out[j] = (int) diff;
+                borrow = (diff >>> 63);
+            }
+        } else {
+            System.arraycopy(t, offset, out, 0, n);
+        }
+    }
+
+    private static int compare(int[] a, int offset, int[] b, int n) {
+        for (int i = n - 1; i >= 0; i--) {
+            if (a[offset + i] != b[i]) {
+                return (a[offset + i] & WORD_MASK) < (b[i] & WORD_MASK) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return v^-1 mod 2^32 for odd v, by Newton iteration
+     */
+    private static int inverseWord(int v) {
+        int inverse = v;
+        for (int i = 0; i < 5; i++) {
+            inverse *= 2 - v * inverse;
+        }
+        return inverse;
+    }
+
+    private int[] toWords(BigInteger value) {
+        int[] words = new int[mWords];
+        for (int i = 0; i < mWords; i++) {
+            words[i] = value.shiftRight(i * 32).intValue();
+        }
+        return words;
+    }
+
+    private static BigInteger toBigInteger(int[] words) {
+        byte[] magnitude = new byte[words.length * 4];
+        for (int i = 0; i < words.length; i++) {
+            int word = words[words.length - 1 - i];
+            magnitude[i * 4] = (byte) (word >>> 24);
+            magnitude[i * 4 + 1] = (byte) (word >>> 16);
+            magnitude[i * 4 + 2] = (byte) (word >>> 8);
+            magnitude[i * 4 + 3] = (byte) word;
+        }
+        return new BigInteger(1, magnitude);
+    }
+}
@@ -0,0 +1,180 @@
+package de.codext.capacitor.blufi.security;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Key pairs of the Blufi DH group, generated in background before they are needed.
+ * <p>
+ * Generating a 1024 bits DH key pair takes hundreds of milliseconds on slow devices. The pool keeps up to
+ * {@link #getDepth()} pairs ready, so a negotiation takes one immediately and the pool generates
+ * a replacement in background. Each pair is handed out once.
+ */
+public class BlufiDHKeyPool {
+    private static final String TAG = "BlufiDHKeyPool";
+
+    private static final String DH_P = "cf5cf5c38419a724957ff5dd323b9c45c3cdd261eb740f69aa94b8bb1a5c9640" +
+            "9153bd76b24222d03274e4725a5406092e9e82e9135c643cae98132b0d95f7d6" +
+            "5347c68afc1e677da90e51bbab5f5cf429c291b4ba39c6b2dc5e8c7231e46aa7" +
+            "728e87664532cdf547be20c9a3fa8342be6e34371a27c06f7dc0edddd2f86373";
+
+    public static final BigInteger P = new BigInteger(DH_P, 16);
+    public static final BigInteger G = BigInteger.valueOf(2);
+    public static final int LENGTH = 1024;
+
+    public static final int DEPTH_DEFAULT = 2;
+    public static final int DEPTH_MAX = 8;
+
+    private static final BlufiDHKeyPool INSTANCE = new BlufiDHKeyPool();
+
+    private final ArrayDeque<BlufiDH> mKeys = new ArrayDeque<>();
+    private final ExecutorService mExecutor;
+    private int mDepth = DEPTH_DEFAULT;
+    private int mGenerating;
+    private volatile boolean mUseEngine;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mGenerateCount;
+    private long mGenerateNanos;
+
+    public static BlufiDHKeyPool getInstance() {
+        return INSTANCE;
+    }
+
+    private BlufiDHKeyPool() {
+        mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Set how many key pairs are kept ready, 0 disables the pool.
+     *
+     * @param depth range is 0 ~ {@link #DEPTH_MAX}
+     */
+    public synchronized void setDepth(int depth) {
+        mDepth = Math.min(Math.max(depth, 0), DEPTH_MAX);
+        while (mKeys.size() > mDepth) {
+            mKeys.pollLast();
+        }
+        fill();
+    }
+
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * Generate the key pairs with the pure Java engine of the Blufi group instead of the JCA provider.
+     * Pairs already in the pool are kept.
+     */
+    public void setUseEngine(boolean useEngine) {
+        mUseEngine = useEngine;
+    }
+
+    public boolean isUseEngine() {
+        return mUseEngine;
+    }
+
+    /**
+     * Generate key pairs in background until the pool is full.
+     */
+    public synchronized void fill() {
+        while (mKeys.size() + mGenerating < mDepth) {
+            mGenerating++;
+            mExecutor.execute(this::generateInBackground);
+        }
+    }
+
+    /**
+     * Take a key pair, it is generated on the calling thread if the pool is empty.
+     * The pool is refilled in background.
+     *
+     * @return the key pair, never handed out again
+     */
+    public BlufiDH take() {
+        BlufiDH keys;
+        synchronized (this) {
+            keys = mKeys.pollFirst();
+            if (keys != null) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            fill();
+        }
+
+        return keys != null ? keys : generate();
+    }
+
+    private void generateInBackground() {
+        BlufiDH keys = null;
+        try {
+            keys = generate();
+        } finally {
+            // Even if generating failed, else fill() would wait for this pair forever
+            synchronized (this) {
+                mGenerating--;
+                if (keys != null && mKeys.size() < mDepth) {
+                    mKeys.addLast(keys);
+                }
+            }
+        }
+    }
+
+    private BlufiDH generate() {
+        // Plain Java clock and no logging, the pool runs in unit tests without the Android framework.
+        // The client logs the statistics of the pool instead.
+        long startTime = System.nanoTime();
+        BlufiDH keys;
+        do {
+            keys = new BlufiDH(P, G, LENGTH, mUseEngine);
+        } while (keys.getPublicKey() == null);
+
+        long elapsed = System.nanoTime() - startTime;
+        synchronized (this) {
+            mGenerateCount++;
+            mGenerateNanos += elapsed;
+        }
+        return keys;
+    }
+
+    /**
+     * @return times a key pair was ready when taken
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return times a key pair had to be generated when taken
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized double getHitRate() {
+        long total = mHitCount + mMissCount;
+        return total > 0 ? (double) mHitCount / total : 0;
+    }
+
+    /**
+     * @return average milliseconds to generate a key pair
+     */
+    public synchronized long getAverageGenerateMillis() {
+        return mGenerateCount > 0 ? mGenerateNanos / 1000000L / mGenerateCount : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.ENGLISH, "depth=%d, ready=%d, hits=%d, misses=%d, hitRate=%.2f, generate=%dms",
+                mDepth, mKeys.size(), mHitCount, mMissCount, getHitRate(), getAverageGenerateMillis());
+    }
+}
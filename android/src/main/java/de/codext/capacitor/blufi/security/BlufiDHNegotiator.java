@@ -0,0 +1,63 @@
+package de.codext.capacitor.blufi.security;
+
+import android.util.Log;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+
+/**
+ * The standard Blufi negotiation: 1024 bits DH, and the MD5 of the shared secret as AES key.
+ */
+public class BlufiDHNegotiator implements BlufiSecurityNegotiator {
+    private static final String TAG = "BlufiDHNegotiator";
+
+    // P and G never change, so the negotiation messages are laid out once
+    private static final BlufiDHCodec CODEC = new BlufiDHCodec(BlufiDHKeyPool.P, BlufiDHKeyPool.G);
+
+    private BlufiDH mDH;
+    private byte[] mKey;
+
+    @Override
+    public byte[][] begin() {
+        mKey = null;
+        // Usually generated in background before, the pool only generates here if it ran empty
+        mDH = BlufiDHKeyPool.getInstance().take();
+        return new byte[][]{
+                CODEC.getLengthMessage(),
+                CODEC.encodeKeys(mDH.getPublicKey().getY())
+        };
+    }
+
+    @Override
+    public int receive(ByteBuffer data) {
+        BlufiDH dh = mDH;
+        if (dh == null) {
+            // Negotiation not begun
+            return ERR_SECURITY;
+        }
+
+        BigInteger devicePublicValue = BlufiDHCodec.decodePublicValue(data);
+        if (devicePublicValue.bitLength() == 0) {
+            return ERR_DEVICE_KEY;
+        }
+
+        mDH = null;
+        try {
+            dh.generateSecretKey(devicePublicValue);
+            if (dh.getSecretKey() == null) {
+                return ERR_SECURITY;
+            }
+            mKey = BlufiMD5.getMD5Bytes(dh.getSecretKey());
+        } catch (Exception e) {
+            Log.w(TAG, "receive: ", e);
+            return ERR_SECURITY;
+        }
+
+        return mKey != null ? RESULT_SUCCESS : ERR_SECURITY;
+    }
+
+    @Override
+    public byte[] getKey() {
+        return mKey;
+    }
+}
@@ -0,0 +1,39 @@
+package de.codext.capacitor.blufi.security;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Key exchange run over the negotiation data frames, deriving the AES key of a Blufi session.
+ * <p>
+ * The client posts the payloads returned by {@link #begin()}, then passes each negotiation payload received
+ * from the device to {@link #receive(ByteBuffer)} until it returns a result other than {@link #RESULT_CONTINUE}.
+ * A negotiator runs one negotiation at a time, {@link #begin()} drops the state of a previous one.
+ */
+public interface BlufiSecurityNegotiator {
+    int RESULT_SUCCESS = 0;
+    int RESULT_CONTINUE = 1;
+
+    int ERR_DEVICE_KEY = -1;
+    int ERR_SECURITY = -2;
+
+    /**
+     * Start a negotiation.
+     *
+     * @return the payloads to post to the device in order
+     */
+    byte[][] begin();
+
+    /**
+     * Handle a payload received from the device.
+     *
+     * @return {@link #RESULT_SUCCESS} once the key is derived, {@link #RESULT_CONTINUE} if more payloads are
+     * expected, {@link #ERR_DEVICE_KEY} if the device key is invalid, or {@link #ERR_SECURITY} if the key
+     * derivation failed
+     */
+    int receive(ByteBuffer data);
+
+    /**
+     * @return the AES key, valid after {@link #receive(ByteBuffer)} returned {@link #RESULT_SUCCESS}
+     */
+    byte[] getKey();
+}
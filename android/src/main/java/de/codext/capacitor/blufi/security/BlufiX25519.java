@@ -0,0 +1,184 @@
+package de.codext.capacitor.blufi.security;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * X25519 of RFC 7748, for platforms without the XDH provider.
+ * <p>
+ * Field elements are 16 limbs of 16 bits in longs, and the Montgomery ladder swaps with masks,
+ * so the running time does not depend on the private key.
+ */
+class BlufiX25519 {
+    static final int KEY_LENGTH = 32;
+
+    private static final long[] A24 = {0xdb41, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final byte[] BASE_POINT = new byte[KEY_LENGTH];
+
+    static {
+        BASE_POINT[0] = 9;
+    }
+
+    private BlufiX25519() {
+    }
+
+    static byte[] generatePrivateKey(SecureRandom random) {
+        byte[] privateKey = new byte[KEY_LENGTH];
+        random.nextBytes(privateKey);
+        return privateKey;
+    }
+
+    static byte[] publicKey(byte[] privateKey) {
+        return scalarMult(privateKey, BASE_POINT);
+    }
+
+    /**
+     * @return the u-coordinate of scalar * point, all zeros if point has a small order
+     */
+    static byte[] scalarMult(byte[] scalar, byte[] point) {
+        byte[] z = new byte[KEY_LENGTH];
+        System.arraycopy(scalar, 0, z, 0, KEY_LENGTH);
+        z[31] = (byte) ((scalar[31] & 127) | 64);
+        z[0] &= (byte) 248;
+
+        long[] x = new long[16];
+        unpack(x, point);
+        long[] a = new long[16];
+        long[] b = x.clone();
+        long[] c = new long[16];
+        long[] d = new long[16];
+        long[] e = new long[16];
+        long[] f = new long[16];
+        long[] t = new long[31];
+        a[0] = 1;
+        d[0] = 1;
+
+        for (int i = 254; i >= 0; i--) {
+            int bit = (z[i >>> 3] >>> (i & 7)) & 1;
+            swap(a, b, bit);
+            swap(c, d, bit);
+            add(e, a, c);
+            sub(a, a, c);
+            add(c, b, d);
+            sub(b, b, d);
+            mul(d, e, e, t);
+            mul(f, a, a, t);
+            mul(a, c, a, t);
+            mul(c, b, e, t);
+            add(e, a, c);
+            sub(a, a, c);
+            mul(b, a, a, t);
+            sub(c, d, f);
+            mul(a, c, A24, t);
+            add(a, a, d);
+            mul(c, c, a, t);
+            mul(a, d, f, t);
+            mul(d, b, x, t);
+            mul(b, e, e, t);
+            swap(a, b, bit);
+            swap(c, d, bit);
+        }
+
+        invert(c, c, t);
+        mul(a, a, c, t);
+        byte[] result = new byte[KEY_LENGTH];
+        pack(result, a);
+        return result;
+    }
+
+    private static void carry(long[] o) {
+        for (int i = 0; i < 16; i++) {
+            o[i] += 1L << 16;
+            long c = o[i] >> 16;
+            if (i < 15) {
+                o[i + 1] += c - 1;
+            } else {
+                o[0] += 38 * (c - 1);
+            }
+            o[i] -= c << 16;
+        }
+    }
+
+    private static void swap(long[] p, long[] q, int bit) {
+        long mask = -bit;
+        for (int i = 0; i < 16; i++) {
+            long t = mask & (p[i] ^ q[i]);
+            p[i] ^= t;
+            q[i] ^= t;
+        }
+    }
+
+    private static void pack(byte[] o, long[] n) {
+        long[] m = new long[16];
+        long[] t = n.clone();
+        carry(t);
+        carry(t);
+        carry(t);
+        for (int j = 0; j < 2; j++) {
+            m[0] = t[0] - 0xffed;
+            for (int i = 1; i < 15; i++) {
+                m[i] = t[i] - 0xffff - ((m[i - 1] >> 16) & 1);
+                m[i - 1] &= 0xffff;
+            }
+            m[15] = t[15] - 0x7fff - ((m[14] >> 16) & 1);
+            int borrow = (int) ((m[15] >> 16) & 1);
+            m[14] &= 0xffff;
+            swap(t, m, 1 - borrow);
+        }
+        for (int i = 0; i < 16; i++) {
+            o[2 * i] = (byte) t[i];
+            o[2 * i + 1] = (byte) (t[i] >> 8);
+        }
+    }
+
+    private static void unpack(long[] o, byte[] n) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = (n[2 * i] & 0xff) + ((long) (n[2 * i + 1] & 0xff) << 8);
+        }
+        o[15] &= 0x7fff;
+    }
+
+    private static void add(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = a[i] + b[i];
+        }
+    }
+
+    private static void sub(long[] o, long[] a, long[] b) {
+        for (int i = 0; i < 16; i++) {
+            o[i] = a[i] - b[i];
+        }
+    }
+
+    /**
+     * @param t scratch of 31 longs
+     */
+    private static void mul(long[] o, long[] a, long[] b, long[] t) {
+        Arrays.fill(t, 0);
+        for (int i = 0; i < 16; i++) {
+            for (int j = 0; j < 16; j++) {
+                t[i + j] += a[i] * b[j];
+            }
+        }
+        for (int i = 0; i < 15; i++) {
+            t[i] += 38 * t[i + 16];
+        }
+        System.arraycopy(t, 0, o, 0, 16);
+        carry(o);
+        carry(o);
+    }
+
+    /**
+     * o = i^(p - 2), by the fixed chain of squarings and multiplications
+     */
+    private static void invert(long[] o, long[] i, long[] t) {
+        long[] c = i.clone();
+        for (int a = 253; a >= 0; a--) {
+            mul(c, c, c, t);
+            if (a != 2 && a != 4) {
+                mul(c, c, i, t);
+            }
+        }
+        System.arraycopy(c, 0, o, 0, 16);
+    }
+}
@@ -0,0 +1,66 @@
+package de.codext.capacitor.blufi.security;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * X25519 negotiation for devices whose firmware supports it, the MD5 of the shared secret is the AES key.
+ * <p>
+ * The client posts {@link #NEG_SECURITY_X25519_PUBLIC_KEY} followed by its 32 bytes public key, the device
+ * replies with its own 32 bytes public key. That is 65 bytes on the link instead of about 400 for DH.
+ */
+public class BlufiX25519Negotiator implements BlufiSecurityNegotiator {
+    public static final byte NEG_SECURITY_X25519_PUBLIC_KEY = 0x10;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private byte[] mPrivateKey;
+    private byte[] mKey;
+
+    @Override
+    public byte[][] begin() {
+        mKey = null;
+        mPrivateKey = BlufiX25519.generatePrivateKey(RANDOM);
+        byte[] publicKey = BlufiX25519.publicKey(mPrivateKey);
+
+        byte[] message = new byte[1 + BlufiX25519.KEY_LENGTH];
+        message[0] = NEG_SECURITY_X25519_PUBLIC_KEY;
+        System.arraycopy(publicKey, 0, message, 1, BlufiX25519.KEY_LENGTH);
+        return new byte[][]{message};
+    }
+
+    @Override
+    public int receive(ByteBuffer data) {
+        byte[] privateKey = mPrivateKey;
+        if (privateKey == null) {
+            return ERR_SECURITY;
+        }
+        if (data.remaining() != BlufiX25519.KEY_LENGTH) {
+            return ERR_DEVICE_KEY;
+        }
+
+        byte[] devicePublicKey = new byte[BlufiX25519.KEY_LENGTH];
+        data.get(devicePublicKey);
+        mPrivateKey = null;
+        byte[] secret = BlufiX25519.scalarMult(privateKey, devicePublicKey);
+        Arrays.fill(privateKey, (byte) 0);
+
+        // A small order device key gives an all zero secret
+        int bits = 0;
+        for (byte b : secret) {
+            bits |= b;
+        }
+        if (bits == 0) {
+            return ERR_DEVICE_KEY;
+        }
+
+        mKey = BlufiMD5.getMD5Bytes(secret);
+        return mKey != null ? RESULT_SUCCESS : ERR_SECURITY;
+    }
+
+    @Override
+    public byte[] getKey() {
+        return mKey;
+    }
+}
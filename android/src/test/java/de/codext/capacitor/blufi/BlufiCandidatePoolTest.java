@@ -0,0 +1,64 @@
+package de.codext.capacitor.blufi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Check the ranking of the scan candidates of a pipelined batch.
+ */
+public class BlufiCandidatePoolTest {
+
+    @Test
+    public void strongestSignalFirst() {
+        BlufiCandidatePool<String> pool = new BlufiCandidatePool<>();
+        pool.offer("A", "a", -80, 1000);
+        pool.offer("B", "b", -50, 1000);
+        pool.offer("C", "c", -65, 1000);
+
+        assertEquals("b", pool.poll(1000));
+        assertEquals("c", pool.poll(1000));
+        assertEquals("a", pool.poll(1000));
+        assertNull(pool.poll(1000));
+    }
+
+    @Test
+    public void olderSightingsLoseRank() {
+        BlufiCandidatePool<String> pool = new BlufiCandidatePool<>();
+        // 5 dBm stronger, but seen 3s earlier
+        pool.offer("A", "a", -55, 1000);
+        pool.offer("B", "b", -60, 4000);
+
+        assertEquals("b", pool.poll(4000));
+        assertEquals("a", pool.poll(4000));
+    }
+
+    @Test
+    public void smoothsTheSignal() {
+        BlufiCandidatePool<String> pool = new BlufiCandidatePool<>();
+        pool.offer("A", "a", -70, 1000);
+        // A single strong advertisement does not make A the best
+        pool.offer("A", "a", -40, 1000);
+        pool.offer("B", "b", -60, 1000);
+
+        assertEquals("b", pool.poll(1000));
+    }
+
+    @Test
+    public void dropsStaleAndHandsOutOnce() {
+        BlufiCandidatePool<String> pool = new BlufiCandidatePool<>();
+        pool.offer("A", "a", -50, 1000);
+        pool.offer("B", "b", -60, 1000 + BlufiCandidatePool.STALE_TIMEOUT);
+        pool.exclude("C");
+        pool.offer("C", "c", -40, 1000 + BlufiCandidatePool.STALE_TIMEOUT);
+        assertEquals(2, pool.size());
+
+        assertEquals("b", pool.poll(2000 + BlufiCandidatePool.STALE_TIMEOUT));
+        assertEquals(0, pool.size());
+
+        // Seen again after it was handed out
+        pool.offer("B", "b", -30, 3000 + BlufiCandidatePool.STALE_TIMEOUT);
+        assertNull(pool.poll(3000 + BlufiCandidatePool.STALE_TIMEOUT));
+        assertEquals(1000 + BlufiCandidatePool.STALE_TIMEOUT, pool.getLastNewTime());
+    }
+}
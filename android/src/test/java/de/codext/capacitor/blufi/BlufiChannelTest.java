@@ -0,0 +1,220 @@
+package de.codext.capacitor.blufi;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Check the completion channels and compare their handoff with the blocking queues they replaced, the
+ * comparison only with {@code -Pbenchmark}.
+ */
+public class BlufiChannelTest {
+    private static final int ROUNDS = 50_000;
+    private static final int ACK_CAPACITY = 64;
+
+    @Test
+    public void intChannelKeepsOrderAndBounds() {
+        BlufiIntChannel channel = new BlufiIntChannel(3);
+        assertEquals(4, channel.capacity());
+        assertTrue(channel.isEmpty());
+
+        // Wrap around the ring a few times
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(channel.offer(round * 10 + i));
+            }
+            assertFalse(channel.offer(-1));
+            assertEquals(4, channel.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(round * 10 + i, channel.poll());
+            }
+            assertTrue(channel.isEmpty());
+        }
+    }
+
+    @Test
+    public void booleanChannelKeepsOrder() {
+        BlufiBooleanChannel channel = new BlufiBooleanChannel(2);
+        assertTrue(channel.offer(true));
+        assertTrue(channel.offer(false));
+        assertFalse(channel.offer(true));
+        assertTrue(channel.poll());
+        assertFalse(channel.poll());
+        assertTrue(channel.isEmpty());
+    }
+
+    @Test
+    public void notificationRingDropsNewest() {
+        BlufiNotificationRing ring = new BlufiNotificationRing(2);
+        assertTrue(ring.offer(new byte[]{1}));
+        assertTrue(ring.offer(new byte[]{2, 2}));
+        assertFalse(ring.offer(new byte[]{3}));
+        assertFalse(ring.offer(new byte[]{4}));
+
+        int index = ring.peekIndex();
+        assertEquals(1, ring.getLength(index));
+        assertEquals(1, ring.getSlot(index)[0]);
+        assertEquals(0, ring.getSkipped(index));
+        ring.release();
+
+        // The next accepted notification carries the count of the dropped ones
+        assertTrue(ring.offer(new byte[BlufiNotificationRing.SLOT_LENGTH + 10]));
+        ring.release();
+        index = ring.peekIndex();
+        assertEquals(2, ring.getSkipped(index));
+        assertEquals(BlufiNotificationRing.SLOT_LENGTH, ring.getLength(index));
+    }
+
+    @Test
+    public void wakeupOncePerBurst() {
+        BlufiIntChannel channel = new BlufiIntChannel(8);
+        channel.offer(1);
+        assertTrue(channel.markWakeup());
+        channel.offer(2);
+        assertFalse(channel.markWakeup());
+
+        channel.clearWakeup();
+        channel.poll();
+        channel.poll();
+        channel.offer(3);
+        assertTrue(channel.markWakeup());
+    }
+
+    @Test
+    public void awaitTimeout() {
+        BlufiIntChannel channel = new BlufiIntChannel(4);
+        long start = System.nanoTime();
+        assertFalse(channel.await(TimeUnit.MILLISECONDS.toNanos(20)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        channel.offer(7);
+        assertTrue(channel.await(0));
+        assertEquals(7, channel.poll());
+    }
+
+    @Test
+    public void crossThreadHandoff() throws Exception {
+        BlufiIntChannel channel = new BlufiIntChannel(16);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                while (!channel.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue(channel.await(TimeUnit.SECONDS.toNanos(5)));
+            assertEquals(i, channel.poll());
+        }
+        producer.join();
+    }
+
+    /**
+     * Ping pong between two threads, each handoff waking the other side like a GATT callback wakes the loop.
+     */
+    @Test
+    public void pingPongHandoff() throws Exception {
+        BlufiIntChannel ping = new BlufiIntChannel(ACK_CAPACITY);
+        BlufiBooleanChannel pong = new BlufiBooleanChannel(4);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < ROUNDS; i++) {
+                ping.offer(i & 0xff);
+                pong.await(-1);
+                pong.poll();
+            }
+        });
+        producer.start();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue(ping.await(TimeUnit.SECONDS.toNanos(5)));
+            assertEquals(i & 0xff, ping.poll());
+            assertTrue(pong.offer(true));
+        }
+        producer.join();
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The ping pong of {@link #pingPongHandoff()} over blocking queues.
+     *
+     * @return nanoseconds per round trip
+     */
+    private static long pingPongQueue(int rounds, long[] producerAllocated) throws Exception {
+        LinkedBlockingQueue<Integer> ping = new LinkedBlockingQueue<>();
+        LinkedBlockingQueue<Boolean> pong = new LinkedBlockingQueue<>();
+        Thread producer = new Thread(() -> {
+            long allocated = allocatedBytes();
+            try {
+                for (int i = 0; i < rounds; i++) {
+                    // Acks above the boxing cache like the real 0..255 sequences mostly are
+                    ping.add(i & 0xff | 0x100);
+                    pong.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            producerAllocated[0] = allocatedBytes() - allocated;
+        });
+        long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < rounds; i++) {
+            ping.take();
+            pong.add(Boolean.TRUE);
+        }
+        producer.join();
+        return (System.nanoTime() - start) / rounds;
+    }
+
+    private static long pingPongChannel(int rounds, long[] producerAllocated) throws Exception {
+        BlufiIntChannel ping = new BlufiIntChannel(ACK_CAPACITY);
+        BlufiBooleanChannel pong = new BlufiBooleanChannel(4);
+        Thread producer = new Thread(() -> {
+            long allocated = allocatedBytes();
+            for (int i = 0; i < rounds; i++) {
+                ping.offer(i & 0xff | 0x100);
+                pong.await(-1);
+                pong.poll();
+            }
+            producerAllocated[0] = allocatedBytes() - allocated;
+        });
+        long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < rounds; i++) {
+            ping.await(-1);
+            ping.poll();
+            pong.offer(true);
+        }
+        producer.join();
+        return (System.nanoTime() - start) / rounds;
+    }
+
+    @Test
+    public void benchmarkHandoff() throws Exception {
+        assumeTrue("Benchmark, run with -Pbenchmark", Boolean.getBoolean("blufi.benchmark"));
+        long[] queueAllocated = new long[1];
+        long[] channelAllocated = new long[1];
+        for (int i = 0; i < 3; i++) {
+            pingPongQueue(ROUNDS / 10, queueAllocated);
+            pingPongChannel(ROUNDS / 10, channelAllocated);
+        }
+
+        long queueNanos = pingPongQueue(ROUNDS, queueAllocated);
+        long channelNanos = pingPongChannel(ROUNDS, channelAllocated);
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "Handoff round trip: LinkedBlockingQueue %dns %.1f bytes, channel %dns %.1f bytes",
+                queueNanos, (double) queueAllocated[0] / ROUNDS,
+                channelNanos, (double) channelAllocated[0] / ROUNDS));
+        assertTrue(channelAllocated[0] < queueAllocated[0]);
+    }
+}
@@ -0,0 +1,47 @@
+package de.codext.capacitor.blufi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Reassemble fragmented frames with {@link BlufiFrameDecoder}.
+ */
+public class BlufiFrameDecoderTest {
+    private static final int TYPE = 0x49;
+    private static final int FRAG = 0x10;
+
+    private static byte[] frame(int frameCtrl, int sequence, int... data) {
+        byte[] frame = new byte[BlufiFrameEncoder.HEADER_LENGTH + data.length];
+        frame[0] = (byte) TYPE;
+        frame[1] = (byte) frameCtrl;
+        frame[2] = (byte) sequence;
+        frame[3] = (byte) data.length;
+        for (int i = 0; i < data.length; i++) {
+            frame[BlufiFrameEncoder.HEADER_LENGTH + i] = (byte) data[i];
+        }
+        return frame;
+    }
+
+    @Test
+    public void reassemblesFragments() {
+        BlufiFrameDecoder decoder = new BlufiFrameDecoder();
+        assertEquals(BlufiFrameDecoder.RESULT_CONTINUE, decoder.decode(frame(FRAG, 0, 4, 0, 1, 2)));
+        assertEquals(BlufiFrameDecoder.RESULT_CONTINUE, decoder.decode(frame(FRAG, 1, 2, 0, 3)));
+        assertEquals(BlufiFrameDecoder.RESULT_COMPLETE, decoder.decode(frame(0, 2, 4)));
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, decoder.getNotifyData().getDataArray());
+    }
+
+    @Test
+    public void discardsTheRestOfABrokenMessage() {
+        BlufiFrameDecoder decoder = new BlufiFrameDecoder();
+        assertEquals(BlufiFrameDecoder.RESULT_CONTINUE, decoder.decode(frame(FRAG, 0, 6, 0, 1, 2)));
+        // The second fragment is lost, the third must not start a message
+        decoder.skip(1);
+        assertEquals(BlufiFrameDecoder.RESULT_DISCARDED, decoder.decode(frame(FRAG, 2, 2, 0, 5)));
+        assertEquals(BlufiFrameDecoder.RESULT_DISCARDED, decoder.decode(frame(0, 3, 6)));
+
+        assertEquals(BlufiFrameDecoder.RESULT_COMPLETE, decoder.decode(frame(0, 4, 7)));
+        assertArrayEquals(new byte[]{7}, decoder.getNotifyData().getDataArray());
+    }
+}
@@ -0,0 +1,79 @@
+package de.codext.capacitor.blufi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Check the frame length found against a device accepting frames up to a length.
+ */
+public class BlufiFrameSizerTest {
+
+    private static void post(BlufiFrameSizer sizer, int accepted, int frames) {
+        for (int i = 0; i < frames; i++) {
+            int length = sizer.getLength();
+            sizer.onFrameWritten(length, length <= accepted);
+        }
+    }
+
+    @Test
+    public void followsTheMtu() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(null);
+        assertEquals(BlufiFrameSizer.LENGTH_MIN, sizer.getLength());
+
+        sizer.onMtuChanged(512);
+        assertEquals(BlufiFrameSizer.LENGTH_MAX, sizer.getLength());
+        post(sizer, BlufiFrameSizer.LENGTH_MAX, 16);
+        assertEquals(BlufiFrameSizer.LENGTH_MAX, sizer.getLength());
+
+        sizer.reset();
+        sizer.onMtuChanged(100);
+        assertEquals(100 - BlufiFrameSizer.MTU_OVERHEAD, sizer.getLength());
+    }
+
+    @Test
+    public void stepsDownToTheLargestWorking() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(null);
+        sizer.onMtuChanged(512);
+        post(sizer, 150, 64);
+
+        int length = sizer.getLength();
+        assertTrue(length <= 150);
+        assertTrue(length > 150 - BlufiFrameSizer.PROBE_STEP_MIN);
+        // Settled, no more failing probes
+        post(sizer, 150, 16);
+        assertEquals(length, sizer.getLength());
+    }
+
+    @Test
+    public void linkErrorsStepDown() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer(null);
+        sizer.onMtuChanged(512);
+        sizer.onLinkError();
+        assertTrue(sizer.getLength() < BlufiFrameSizer.LENGTH_MAX);
+
+        // Errors at a trusted length are not the length's fault
+        sizer.reset();
+        assertEquals(BlufiFrameSizer.LENGTH_MIN, sizer.getLength());
+        sizer.onLinkError();
+        assertEquals(BlufiFrameSizer.LENGTH_MIN, sizer.getLength());
+    }
+
+    @Test
+    public void learnsPerDevice() {
+        BlufiFrameSizer sizer = new BlufiFrameSizer("24:0A:C4:00:00:01");
+        sizer.onMtuChanged(512);
+        post(sizer, 100, 64);
+        int length = sizer.getLength();
+
+        BlufiFrameSizer next = new BlufiFrameSizer("24:0A:C4:00:00:01");
+        next.onMtuChanged(512);
+        assertEquals(length, next.getLength());
+    }
+
+    @Test
+    public void payloadLength() {
+        assertEquals(14, BlufiFrameSizer.getPayloadLength(20, false));
+        assertEquals(247, BlufiFrameSizer.getPayloadLength(255, true));
+    }
+}
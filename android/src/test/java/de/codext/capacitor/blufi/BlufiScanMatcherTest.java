@@ -0,0 +1,37 @@
+package de.codext.capacitor.blufi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Check the advertised names matched without the scan record around them.
+ */
+public class BlufiScanMatcherTest {
+
+    @Test
+    public void filtersIgnoreCase() {
+        BlufiScanMatcher matcher = new BlufiScanMatcher(Arrays.asList("hall-a", "", null, "Sensor"));
+        assertTrue(matcher.matchFilters("HALL-A-0001"));
+        assertTrue(matcher.matchFilters("my sensor"));
+        assertFalse(matcher.matchFilters("hall-b-0001"));
+        assertFalse(matcher.matchFilters("hall"));
+    }
+
+    @Test
+    public void blufiPrefix() {
+        assertTrue(BlufiScanMatcher.isBlufiName("BLUFI_DEVICE"));
+        assertTrue(BlufiScanMatcher.isBlufiName("blufi-42"));
+        assertFalse(BlufiScanMatcher.isBlufiName("my BLUFI"));
+        assertFalse(BlufiScanMatcher.isBlufiName("BLU"));
+    }
+
+    @Test
+    public void containsIgnoreCase() {
+        assertTrue(BlufiScanMatcher.containsIgnoreCase("abc", ""));
+        assertTrue(BlufiScanMatcher.containsIgnoreCase("xxABc", "abc"));
+        assertFalse(BlufiScanMatcher.containsIgnoreCase("ab", "abc"));
+    }
+}
@@ -0,0 +1,143 @@
+package de.codext.capacitor.blufi.security;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPrivateKey;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * Check {@link BlufiDHEngine} against the JCA provider and compare their handshake costs, the comparison
+ * only with {@code -Pbenchmark}.
+ */
+public class BlufiDHEngineTest {
+    private static final BigInteger P = BlufiDHKeyPool.P;
+    private static final BigInteger G = BlufiDHKeyPool.G;
+    private static final int LENGTH = BlufiDHKeyPool.LENGTH;
+
+    private final BlufiDHEngine mEngine = new BlufiDHEngine(P, G);
+
+    private static KeyPair generateProviderKeys() throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
+        keyGen.initialize(new DHParameterSpec(P, G, LENGTH));
+        return keyGen.generateKeyPair();
+    }
+
+    private static BigInteger providerSecret(KeyPair own, KeyPair other) throws Exception {
+        KeyAgreement ka = KeyAgreement.getInstance("DH");
+        ka.init(own.getPrivate());
+        ka.doPhase(other.getPublic(), true);
+        return new BigInteger(1, ka.generateSecret());
+    }
+
+    private static byte[] magnitude(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return bytes[0] == 0 ? Arrays.copyOfRange(bytes, 1, bytes.length) : bytes;
+    }
+
+    @Test
+    public void publicValueMatchesProvider() throws Exception {
+        for (int i = 0; i < 32; i++) {
+            KeyPair keys = generateProviderKeys();
+            BigInteger x = ((DHPrivateKey) keys.getPrivate()).getX();
+            BigInteger y = ((DHPublicKey) keys.getPublic()).getY();
+            assertEquals(y, mEngine.generatePublicValue(x));
+        }
+    }
+
+    @Test
+    public void publicValueMatchesModPow() {
+        SecureRandom random = new SecureRandom();
+        for (int bits = 1; bits <= LENGTH; bits += 37) {
+            BigInteger x = new BigInteger(bits, random).setBit(bits - 1);
+            assertEquals(G.modPow(x, P), mEngine.generatePublicValue(x));
+        }
+        assertEquals(BigInteger.ONE, mEngine.generatePublicValue(BigInteger.ZERO));
+    }
+
+    @Test
+    public void secretMatchesProvider() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            KeyPair own = generateProviderKeys();
+            KeyPair other = generateProviderKeys();
+            BigInteger x = ((DHPrivateKey) own.getPrivate()).getX();
+            BigInteger y = ((DHPublicKey) other.getPublic()).getY();
+            assertEquals(providerSecret(own, other), mEngine.generateSecret(y, x));
+        }
+    }
+
+    @Test
+    public void engineKeysAgreeWithProvider() throws Exception {
+        for (int i = 0; i < 16; i++) {
+            BlufiDH own = new BlufiDH(P, G, LENGTH, true);
+            BigInteger x = own.getPrivateKey().getX();
+            assertTrue(x.compareTo(BigInteger.ONE) > 0 && x.compareTo(P.subtract(BigInteger.ONE)) < 0);
+
+            KeyPair device = generateProviderKeys();
+            own.generateSecretKey(((DHPublicKey) device.getPublic()).getY());
+
+            KeyAgreement ka = KeyAgreement.getInstance("DH");
+            ka.init(device.getPrivate());
+            ka.doPhase(own.getPublicKey(), true);
+            BigInteger expected = new BigInteger(1, ka.generateSecret());
+            assertArrayEquals(magnitude(expected), own.getSecretKey());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPublicValueOne() {
+        mEngine.generateSecret(BigInteger.ONE, BigInteger.TEN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsPublicValuePMinusOne() {
+        mEngine.generateSecret(P.subtract(BigInteger.ONE), BigInteger.TEN);
+    }
+
+    @Test
+    public void benchmarkHandshake() {
+        assumeTrue("Benchmark, run with -Pbenchmark", Boolean.getBoolean("blufi.benchmark"));
+        final int rounds = 50;
+        BigInteger deviceY = new BlufiDH(P, G, LENGTH).getPublicKey().getY();
+
+        // Warm up both paths
+        for (int i = 0; i < 10; i++) {
+            new BlufiDH(P, G, LENGTH, false).generateSecretKey(deviceY);
+            new BlufiDH(P, G, LENGTH, true).generateSecretKey(deviceY);
+        }
+
+        long[] provider = runHandshakes(false, deviceY, rounds);
+        long[] engine = runHandshakes(true, deviceY, rounds);
+        System.out.println(String.format(Locale.ENGLISH,
+                "DH handshake per round: provider keys %.3fms secret %.3fms, engine keys %.3fms secret %.3fms",
+                provider[0] / 1e6 / rounds, provider[1] / 1e6 / rounds,
+                engine[0] / 1e6 / rounds, engine[1] / 1e6 / rounds));
+    }
+
+    private static long[] runHandshakes(boolean useEngine, BigInteger deviceY, int rounds) {
+        long keys = 0;
+        long secret = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            BlufiDH dh = new BlufiDH(P, G, LENGTH, useEngine);
+            long generated = System.nanoTime();
+            dh.generateSecretKey(deviceY);
+            long agreed = System.nanoTime();
+            assertNotNull(dh.getSecretKey());
+            keys += generated - start;
+            secret += agreed - generated;
+        }
+        return new long[]{keys, secret};
+    }
+}
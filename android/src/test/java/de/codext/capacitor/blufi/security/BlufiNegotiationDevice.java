@@ -0,0 +1,87 @@
+package de.codext.capacitor.blufi.security;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.DHPublicKeySpec;
+
+/**
+ * Device side of the security negotiations, answering the payloads posted by a {@link BlufiSecurityNegotiator}
+ * like the firmware does.
+ */
+class BlufiNegotiationDevice {
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private byte[] mKey;
+
+    /**
+     * @return the payload the device replies with, or null if it waits for more payloads
+     */
+    byte[] receive(byte[] payload) throws Exception {
+        switch (payload[0]) {
+            case BlufiDHCodec.NEG_SECURITY_SET_TOTAL_LENGTH:
+                return null;
+            case BlufiDHCodec.NEG_SECURITY_SET_ALL_DATA:
+                return receiveDH(ByteBuffer.wrap(payload, 1, payload.length - 1));
+            case BlufiX25519Negotiator.NEG_SECURITY_X25519_PUBLIC_KEY:
+                return receiveX25519(payload);
+            default:
+                throw new IllegalArgumentException("Unknown negotiation payload " + payload[0]);
+        }
+    }
+
+    /**
+     * @return the AES key the device derived
+     */
+    byte[] getKey() {
+        return mKey;
+    }
+
+    private static BigInteger readField(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xffff;
+        byte[] magnitude = new byte[length];
+        buffer.get(magnitude);
+        return new BigInteger(1, magnitude);
+    }
+
+    private byte[] receiveDH(ByteBuffer buffer) throws Exception {
+        BigInteger p = readField(buffer);
+        BigInteger g = readField(buffer);
+        BigInteger clientY = readField(buffer);
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("DH");
+        keyGen.initialize(new DHParameterSpec(p, g, p.bitLength()));
+        KeyPair keys = keyGen.generateKeyPair();
+
+        KeyAgreement ka = KeyAgreement.getInstance("DH");
+        ka.init(keys.getPrivate());
+        ka.doPhase(KeyFactory.getInstance("DH").generatePublic(new DHPublicKeySpec(clientY, p, g)), true);
+        byte[] secret = new BigInteger(1, ka.generateSecret()).toByteArray();
+        if (secret[0] == 0) {
+            byte[] trimmed = new byte[secret.length - 1];
+            System.arraycopy(secret, 1, trimmed, 0, trimmed.length);
+            secret = trimmed;
+        }
+        mKey = BlufiMD5.getMD5Bytes(secret);
+
+        byte[] reply = new byte[(p.bitLength() + 7) / 8];
+        BlufiDHCodec.writeUnsigned(((DHPublicKey) keys.getPublic()).getY(), reply, 0, reply.length);
+        return reply;
+    }
+
+    private byte[] receiveX25519(byte[] payload) {
+        byte[] clientKey = new byte[BlufiX25519.KEY_LENGTH];
+        System.arraycopy(payload, 1, clientKey, 0, BlufiX25519.KEY_LENGTH);
+
+        byte[] privateKey = BlufiX25519.generatePrivateKey(mRandom);
+        mKey = BlufiMD5.getMD5Bytes(BlufiX25519.scalarMult(privateKey, clientKey));
+        return BlufiX25519.publicKey(privateKey);
+    }
+}
@@ -0,0 +1,82 @@
+package de.codext.capacitor.blufi.security;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Run the negotiators against {@link BlufiNegotiationDevice}.
+ */
+public class BlufiSecurityNegotiatorTest {
+
+    /**
+     * @return bytes posted and received in the negotiation
+     */
+    private static int negotiate(BlufiSecurityNegotiator negotiator, BlufiNegotiationDevice device)
+            throws Exception {
+        int linkBytes = 0;
+        byte[] reply = null;
+        for (byte[] payload : negotiator.begin()) {
+            linkBytes += payload.length;
+            reply = device.receive(payload);
+        }
+        assertNotNull(reply);
+        linkBytes += reply.length;
+
+        assertEquals(BlufiSecurityNegotiator.RESULT_SUCCESS, negotiator.receive(ByteBuffer.wrap(reply)));
+        assertArrayEquals(device.getKey(), negotiator.getKey());
+        assertEquals(16, negotiator.getKey().length);
+        return linkBytes;
+    }
+
+    @Test
+    public void dhAgreesWithDevice() throws Exception {
+        BlufiSecurityNegotiator negotiator = new BlufiDHNegotiator();
+        for (int i = 0; i < 8; i++) {
+            negotiate(negotiator, new BlufiNegotiationDevice());
+        }
+    }
+
+    @Test
+    public void x25519AgreesWithDevice() throws Exception {
+        BlufiSecurityNegotiator negotiator = new BlufiX25519Negotiator();
+        for (int i = 0; i < 8; i++) {
+            negotiate(negotiator, new BlufiNegotiationDevice());
+        }
+    }
+
+    @Test
+    public void dhRejectsEmptyDeviceKey() {
+        BlufiSecurityNegotiator negotiator = new BlufiDHNegotiator();
+        negotiator.begin();
+        assertEquals(BlufiSecurityNegotiator.ERR_DEVICE_KEY, negotiator.receive(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void x25519RejectsSmallOrderDeviceKey() {
+        BlufiSecurityNegotiator negotiator = new BlufiX25519Negotiator();
+        negotiator.begin();
+        assertEquals(BlufiSecurityNegotiator.ERR_DEVICE_KEY,
+                negotiator.receive(ByteBuffer.wrap(new byte[BlufiX25519.KEY_LENGTH])));
+
+        negotiator.begin();
+        assertEquals(BlufiSecurityNegotiator.ERR_DEVICE_KEY, negotiator.receive(ByteBuffer.wrap(new byte[16])));
+    }
+
+    @Test
+    public void receiveBeforeBegin() {
+        assertEquals(BlufiSecurityNegotiator.ERR_SECURITY,
+                new BlufiX25519Negotiator().receive(ByteBuffer.wrap(new byte[BlufiX25519.KEY_LENGTH])));
+        assertEquals(BlufiSecurityNegotiator.ERR_SECURITY,
+                new BlufiDHNegotiator().receive(ByteBuffer.wrap(new byte[128])));
+    }
+
+    @Test
+    public void x25519PostsFewerBytes() throws Exception {
+        int dhBytes = negotiate(new BlufiDHNegotiator(), new BlufiNegotiationDevice());
+        int x25519Bytes = negotiate(new BlufiX25519Negotiator(), new BlufiNegotiationDevice());
+        assertTrue(x25519Bytes < dhBytes);
+    }
+}
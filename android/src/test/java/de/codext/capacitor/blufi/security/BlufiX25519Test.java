@@ -0,0 +1,70 @@
+package de.codext.capacitor.blufi.security;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Check {@link BlufiX25519} against the test vectors of RFC 7748.
+ */
+public class BlufiX25519Test {
+    private static final byte[] BASE_POINT = hex("0900000000000000000000000000000000000000000000000000000000000000");
+
+    private static byte[] hex(String text) {
+        byte[] bytes = new byte[text.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(text.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Section 5.2, the two single scalar multiplications
+     */
+    @Test
+    public void scalarMultVectors() {
+        assertArrayEquals(hex("c3da55379de9c6908e94ea4df28d084f32eccf03491c71f754b4075577a28552"),
+                BlufiX25519.scalarMult(
+                        hex("a546e36bf0527c9d3b16154b82465edd62144c0ac1fc5a18506a2244ba449ac4"),
+                        hex("e6db6867583030db3594c1a424b15f7c726624ec26b3353b10a903a6d0ab1c4c")));
+        assertArrayEquals(hex("95cbde9476e8907d7aade45cb4b873f88b595a68799fa152e6f8f7647aac7957"),
+                BlufiX25519.scalarMult(
+                        hex("4b66e9d4d1b4673c5ad22691957d6af5c11b6421e0ea01d42ca4169e7918ba0d"),
+                        hex("e5210f12786811d3f4b7959d0538ae2c31dbe7106fc03c3efc4cd549c715a493")));
+    }
+
+    /**
+     * Section 5.2, the result fed back as scalar 1 and 1000 times
+     */
+    @Test
+    public void iteratedScalarMult() {
+        byte[] k = BASE_POINT.clone();
+        byte[] u = BASE_POINT.clone();
+        for (int i = 1; i <= 1000; i++) {
+            byte[] result = BlufiX25519.scalarMult(k, u);
+            u = k;
+            k = result;
+            if (i == 1) {
+                assertArrayEquals(hex("422c8e7a6227d7bca1350b3e2bb7279f7897b87bb6854b783c60e80311ae3079"), k);
+            }
+        }
+        assertArrayEquals(hex("684cf59ba83309552800ef566f2f4d3c1c3887c49360e3875f2eb94d99532c51"), k);
+    }
+
+    /**
+     * Section 6.1, the key agreement of Alice and Bob
+     */
+    @Test
+    public void diffieHellmanVectors() {
+        byte[] alicePrivate = hex("77076d0a7318a57d3c16c17251b26645df4c2f87ebc0992ab177fba51db92c2a");
+        byte[] bobPrivate = hex("5dab087e624a8a4b79e17f8b83800ee66f3bb1292618b6fd1c2f8b27ff88e0eb");
+        byte[] alicePublic = BlufiX25519.publicKey(alicePrivate);
+        byte[] bobPublic = BlufiX25519.publicKey(bobPrivate);
+        assertArrayEquals(hex("8520f0098930a754748b7ddcb43ef75a0dbf3a0d26381af4eba4a98eaa9b4e6a"), alicePublic);
+        assertArrayEquals(hex("de9edb7d7b7dc1b4d35b61c2ece435373f8343c85b78674dadfc7e146f882b4f"), bobPublic);
+
+        byte[] shared = hex("4a5d9d5ba4ce2de1728e3bf480350f25e07e21c947d19e3376f09b3c1e161742");
+        assertArrayEquals(shared, BlufiX25519.scalarMult(alicePrivate, bobPublic));
+        assertArrayEquals(shared, BlufiX25519.scalarMult(bobPrivate, alicePublic));
+    }
+}
@@ -6,30 +6,235 @@ export interface ScanResultItem {
   address: string;
 }
 
+export interface ScanOptions {
+  /**
+   * Report only devices whose advertised name contains the filter, ignoring case, whether they advertise
+   * the BluFi service or not.
+   */
+  filter?: string;
+  /**
+   * Milliseconds the Bluetooth controller collects results before delivering them at once, so the app wakes
+   * less often. Ignored if the controller does not support batching. Defaults to 0, every result at once.
+   */
+  reportDelay?: number;
+}
+
+export interface ScanStats {
+  /**
+   * Milliseconds the scan ran.
+   */
+  duration: number;
+  /**
+   * Times the Bluetooth stack called back with results.
+   */
+  callbacks: number;
+  /**
+   * Results delivered, a batched callback delivers several.
+   */
+  results: number;
+  /**
+   * Results of BluFi devices.
+   */
+  matched: number;
+  /**
+   * Callbacks per second.
+   */
+  callbackRate: number;
+  /**
+   * CPU time in milliseconds spent handling the callbacks.
+   */
+  cpuTime: number;
+  /**
+   * Share of the duration spent handling the callbacks, in percent.
+   */
+  cpuUsage: number;
+  /**
+   * Whether the controller filtered the advertisers of the BluFi service.
+   */
+  offloadedFiltering: boolean;
+  /**
+   * Whether the controller collected the results for `reportDelay`.
+   */
+  batching: boolean;
+}
+
 export interface WifiListResult {
+  deviceId: string;
   list: string[];
 }
 
 export interface WifiConnectResult {
+  deviceId: string;
   success: boolean;
   message: string;
 }
 
 export interface NetworkStatusResult {
+  deviceId: string;
   connected: boolean;
   status: string;
 }
 
+export type SecurityMode = 'dh' | 'x25519';
+
+export type LinkProfile = 'auto' | 'low_latency' | 'bulk_throughput' | 'balanced';
+
+export type ProvisionStep =
+  | 'queued'
+  | 'connecting'
+  | 'negotiating'
+  | 'configuring'
+  | 'waiting_wifi'
+  | 'provisioned'
+  | 'retrying'
+  | 'failed';
+
+export interface ProvisionBatchOptions {
+  /**
+   * Addresses of the devices to provision, a device listed twice is provisioned once.
+   */
+  deviceIds?: string[];
+  /**
+   * Devices whose advertised name contains any of the filters are provisioned too, found by a scan first.
+   */
+  filters?: string[];
+  ssid: string;
+  password?: string;
+  security?: SecurityMode;
+  /**
+   * Devices provisioned at once, at most `maxConnections`. Defaults to 2.
+   */
+  parallelism?: number;
+  /**
+   * Attempts after the first one of a device failed. Defaults to 1.
+   */
+  retries?: number;
+  /**
+   * Timeout of each attempt in milliseconds, and of the wait for a free connection slot. Defaults to 30000.
+   */
+  timeout?: number;
+  /**
+   * Duration of the scan for the `filters` in milliseconds. Defaults to 4000.
+   * With `pipeline` the batch ends once no new device was found for this long.
+   */
+  scanTimeout?: number;
+  /**
+   * Keep scanning for the `filters` while provisioning, the next device is the strongest recent one
+   * as soon as a slot is free. Defaults to false.
+   */
+  pipeline?: boolean;
+  /**
+   * With `pipeline`, stop after this many devices. Defaults to no limit.
+   */
+  maxDevices?: number;
+}
+
+export interface ProvisionDeviceResult {
+  deviceId: string;
+  step: ProvisionStep;
+  success: boolean;
+  attempts: number;
+  /**
+   * Milliseconds from the first attempt until the device was done, or until now.
+   */
+  duration: number;
+  error?: string;
+  /**
+   * Milliseconds each step of the last attempt took.
+   */
+  steps: { [step: string]: number };
+}
+
+export interface ProvisionProgress extends ProvisionDeviceResult {
+  batchId: number;
+}
+
+export interface ProvisionBatchResult {
+  batchId: number;
+  total: number;
+  succeeded: number;
+  failed: number;
+  duration: number;
+  devices: ProvisionDeviceResult[];
+}
+
 export interface BlufiPlugin {
-  startScan(): Promise<void>;
-  stopScan(): Promise<{ scanResult: ScanResultItem[] }>;
-  connectToDevice(options: { deviceId: string }): Promise<void>;
-  disconnectFromDevice(): Promise<void>;
+  /**
+   * Scan for BluFi devices: devices advertising the BluFi service or a name starting with `BLUFI`.
+   *
+   * Without a `filter`, where the Bluetooth controller supports it, it filters the advertisers of the BluFi
+   * service itself, other devices do not wake the app.
+   */
+  startScan(options?: ScanOptions): Promise<void>;
+  /**
+   * Stop the scan and list the devices found, with the statistics of the scan.
+   */
+  stopScan(): Promise<{ scanResult: ScanResultItem[]; stats?: ScanStats }>;
+  /**
+   * Connect to a device and negotiate security.
+   *
+   * `security` selects the key exchange, `x25519` needs a device firmware supporting it. Defaults to `dh`.
+   *
+   * `linkProfile` sets the connection priority, PHY, MTU and pacing of the link, see `setLinkProfile`.
+   * Defaults to `auto`.
+   *
+   * Several devices may be connected at once, up to the `maxConnections` configuration. The other methods
+   * take the `deviceId` of the device, it may be left out while only one device is connected.
+   */
+  connectToDevice(options: { deviceId: string; security?: SecurityMode; linkProfile?: LinkProfile }): Promise<void>;
+  /**
+   * Android only. Set the profile of the link: `low_latency` for request and response traffic,
+   * `bulk_throughput` for long data on the 2M PHY if both ends support it, `balanced` to leave air time
+   * for other connections. `auto` switches between them by the traffic, to balanced once idle.
+   *
+   * The MTU is only exchanged when connecting, set it with the `linkProfile` of `connectToDevice`.
+   */
+  setLinkProfile(options: {
+    deviceId?: string;
+    profile: LinkProfile;
+  }): Promise<{ deviceId: string; profile: LinkProfile }>;
+  /**
+   * Disconnect the device, or all devices without `deviceId`.
+   */
+  disconnectFromDevice(options?: { deviceId?: string }): Promise<void>;
   resetPlugin(): Promise<void>;
-  getDeviceInfo(): Promise<void>;
-  scanWifi(): Promise<WifiListResult>;
-  setWifi(options: { ssid: string; password: string }): Promise<WifiConnectResult>;
-  getNetworkStatus(): Promise<NetworkStatusResult>;
+  getDeviceInfo(options?: { deviceId?: string }): Promise<void>;
+  /**
+   * Ask the device for the wifi networks it sees.
+   *
+   * Calls may overlap, each one settles with its own result. `timeout` in milliseconds defaults to 20000.
+   */
+  scanWifi(options?: { deviceId?: string; timeout?: number }): Promise<WifiListResult>;
+  /**
+   * Configure the device as a station of the network.
+   *
+   * `timeout` in milliseconds defaults to 10000.
+   */
+  setWifi(options: { deviceId?: string; ssid: string; password: string; timeout?: number }): Promise<WifiConnectResult>;
+  /**
+   * Ask the device for its wifi connection status.
+   *
+   * Calls may overlap, each one settles with its own result. `timeout` in milliseconds defaults to 10000.
+   */
+  getNetworkStatus(options?: { deviceId?: string; timeout?: number }): Promise<NetworkStatusResult>;
+  /**
+   * Android only. Provision several devices with one set of credentials: connect, negotiate security,
+   * configure the station and wait until the device joined the network, all natively.
+   *
+   * Resolves once every device is provisioned or failed. `onProvisionProgress` reports every step.
+   * Only one batch runs at a time, `resetPlugin` cancels it.
+   */
+  provisionBatch(options: ProvisionBatchOptions): Promise<ProvisionBatchResult>;
 
+  /**
+   * Every event carries the `deviceId` of its device.
+   */
   addListener(eventName: 'onBlufiEvent', listenerFunc: (event: any) => void): Promise<PluginListenerHandle>;
+  /**
+   * Android only. Every step of the devices of `provisionBatch`.
+   */
+  addListener(
+    eventName: 'onProvisionProgress',
+    listenerFunc: (progress: ProvisionProgress) => void,
+  ): Promise<PluginListenerHandle>;
 }
@@ -2,26 +2,43 @@ import { WebPlugin } from '@capacitor/core';
 
 import type {
   BlufiPlugin,
+  ScanOptions,
   ScanResultItem,
+  ScanStats,
   WifiListResult,
   WifiConnectResult,
   NetworkStatusResult,
+  SecurityMode,
+  LinkProfile,
+  ProvisionBatchOptions,
+  ProvisionBatchResult,
 } from './definitions';
 
 export class BlufiWeb extends WebPlugin implements BlufiPlugin {
-  async startScan(): Promise<void> {
+  async startScan(_options?: ScanOptions): Promise<void> {
     throw this.unavailable('BLE scanning is not available on web');
   }
 
-  async stopScan(): Promise<{ scanResult: ScanResultItem[] }> {
+  async stopScan(): Promise<{ scanResult: ScanResultItem[]; stats?: ScanStats }> {
     throw this.unavailable('BLE scanning is not available on web');
   }
 
-  async connectToDevice(_options: { deviceId: string }): Promise<void> {
+  async connectToDevice(_options: {
+    deviceId: string;
+    security?: SecurityMode;
+    linkProfile?: LinkProfile;
+  }): Promise<void> {
     throw this.unavailable('BLE connection is not available on web');
   }
 
-  async disconnectFromDevice(): Promise<void> {
+  async setLinkProfile(_options: {
+    deviceId?: string;
+    profile: LinkProfile;
+  }): Promise<{ deviceId: string; profile: LinkProfile }> {
+    throw this.unavailable('BLE connection is not available on web');
+  }
+
+  async disconnectFromDevice(_options?: { deviceId?: string }): Promise<void> {
     throw this.unavailable('BLE connection is not available on web');
   }
 
@@ -29,19 +46,28 @@ export class BlufiWeb extends WebPlugin implements BlufiPlugin {
     throw this.unavailable('BluFi is not available on web');
   }
 
-  async getDeviceInfo(): Promise<void> {
+  async getDeviceInfo(_options?: { deviceId?: string }): Promise<void> {
+    throw this.unavailable('BluFi is not available on web');
+  }
+
+  async scanWifi(_options?: { deviceId?: string; timeout?: number }): Promise<WifiListResult> {
     throw this.unavailable('BluFi is not available on web');
   }
 
-  async scanWifi(): Promise<WifiListResult> {
+  async setWifi(_options: {
+    deviceId?: string;
+    ssid: string;
+    password: string;
+    timeout?: number;
+  }): Promise<WifiConnectResult> {
     throw this.unavailable('BluFi is not available on web');
   }
 
-  async setWifi(_options: { ssid: string; password: string }): Promise<WifiConnectResult> {
+  async getNetworkStatus(_options?: { deviceId?: string; timeout?: number }): Promise<NetworkStatusResult> {
     throw this.unavailable('BluFi is not available on web');
   }
 
-  async getNetworkStatus(): Promise<NetworkStatusResult> {
+  async provisionBatch(_options: ProvisionBatchOptions): Promise<ProvisionBatchResult> {
     throw this.unavailable('BluFi is not available on web');
   }
 }